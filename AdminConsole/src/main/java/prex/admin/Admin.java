@@ -44,6 +44,15 @@ public class Admin {
         @Parameter(names = {"-sname", "--sample-name"})
         private String sampleName  = null;
 
+        @Parameter(names = {"-x", "--export-run"}, description = "Export the given run to the archive file (in the coordinator's prex.archive.dir)")
+        private int exportRun = -1;
+
+        @Parameter(names = {"-i", "--import-run"}, description = "Import a run from the archive file (in the coordinator's prex.archive.dir)")
+        private boolean importRun = false;
+
+        @Parameter(names = {"-f", "--archive-file"}, description = "Run archive file, for --export-run and --import-run")
+        private String archiveFile = null;
+
         @Parameter(names = {"-h", "--help"}, help = true)
         private boolean help;
 
@@ -72,6 +81,18 @@ public class Admin {
             }
             System.out.println("Starting train of exception" + parameters.exceptionClass + " for context " + parameters.context);
             admin.startTraining(parameters.context, parameters.exceptionClass, parameters.T, parameters.k);
+        } else if (parameters.exportRun != -1 || parameters.importRun) {
+            if (parameters.archiveFile == null) {
+                System.err.println("Give the archive file with --archive-file");
+                return;
+            }
+            if (parameters.importRun) {
+                System.out.println("Importing a run from " + parameters.archiveFile);
+                admin.importRun(parameters.archiveFile);
+            } else {
+                System.out.println("Exporting run " + parameters.exportRun + " to " + parameters.archiveFile);
+                admin.exportRun(parameters.exportRun, parameters.archiveFile);
+            }
         } else if (parameters.sampleSrc != null && parameters.sampleName != null) {
                 admin.addPredictionContextIDs(parameters.context, new String[][] { new String[] {parameters.sampleName, parameters.sampleSrc}});
         } else {
@@ -20,6 +20,12 @@ public class ExecutionRun {
     public ExecutionRun() {
     }
 
+    public ExecutionRun(int id, PreXTimestamp start, PreXTimestamp finish) {
+        this.id = id;
+        this.start = start;
+        this.finish = finish;
+    }
+
     public static void createTables(Connection c) throws SQLException {
         PreparedStatement s = c.prepareStatement("CREATE TABLE EXECUTION_RUN (ID INT AUTO_INCREMENT, start TIMESTAMP, finish TIMESTAMP, PRIMARY KEY (ID))");
         s.executeUpdate();
@@ -80,6 +86,10 @@ public class ExecutionRun {
         }
     }
 
+    public int getId() {
+        return id;
+    }
+
     public PreXTimestamp getStart() {
         return start;
     }
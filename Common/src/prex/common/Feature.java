@@ -0,0 +1,191 @@
+package prex.common;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// A feature is something that is sampled: a <name,src> pair (see Sample). Every feature gets a compact integer ID the
+// first time the coordinator sees it, and that ID is what the SAMPLE table (and everything that indexes samples)
+// uses instead of the two strings. IDs start at 1, so 0 can be used to mean "no ID yet".
+//
+// The FEATURE table is also the catalog of what has been sampled: each feature knows when it was first and last
+// sampled, and how many samples it has. These are kept up to date as samples are written (see addStats), so nobody
+// ever has to go through the SAMPLE table to find out.
+public class Feature {
+    private int id;
+    private String name;
+    private String src;
+
+    // Epoch millis of the oldest and newest samples (0 if there are none yet), and how many there have been. Samples
+    // that replaced an older one with the same timestamp are counted twice, and purged samples are still counted.
+    private long firstSeen;
+    private long lastSeen;
+    private long samples;
+
+    public Feature(int id, String name, String src) {
+        this(id, name, src, 0, 0, 0);
+    }
+
+    public Feature(int id, String name, String src, long firstSeen, long lastSeen, long samples) {
+        this.id = id;
+        this.name = name;
+        this.src = src;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+        this.samples = samples;
+    }
+
+    public static void createTables(Connection c) throws SQLException {
+        PreparedStatement s = c.prepareStatement("CREATE TABLE FEATURE (ID INT AUTO_INCREMENT, NAME VARCHAR, SRC VARCHAR, FIRST_SEEN TIMESTAMP, LAST_SEEN TIMESTAMP, SAMPLES BIGINT DEFAULT 0, PRIMARY KEY (ID), UNIQUE (NAME, SRC))");
+        s.executeUpdate();
+    }
+
+    // FEATURE tables created before the stats existed get the new columns, filled in from the SAMPLE table. This is
+    // the one time the SAMPLE table gets scanned for them.
+    public static void upgradeTables(Connection c) throws SQLException {
+        ResultSet resultSet = c.prepareStatement("SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'FEATURE' AND COLUMN_NAME = 'SAMPLES'").executeQuery();
+        if (resultSet.next() && resultSet.getInt(1) > 0)
+            return;
+
+        System.out.println("Adding the sample stats to the FEATURE table. This might take a while...");
+        c.prepareStatement("ALTER TABLE FEATURE ADD COLUMN FIRST_SEEN TIMESTAMP").executeUpdate();
+        c.prepareStatement("ALTER TABLE FEATURE ADD COLUMN LAST_SEEN TIMESTAMP").executeUpdate();
+        c.prepareStatement("ALTER TABLE FEATURE ADD COLUMN SAMPLES BIGINT DEFAULT 0").executeUpdate();
+        recomputeStats(c);
+    }
+
+    // Fill in the stats of every feature from the SAMPLE table (which means scanning all of it)
+    public static void recomputeStats(Connection c) throws SQLException {
+        c.prepareStatement("UPDATE FEATURE f SET (FIRST_SEEN, LAST_SEEN, SAMPLES) = (SELECT MIN(s.time), MAX(s.time), COUNT(*) FROM SAMPLE s WHERE s.feature = f.id)").executeUpdate();
+        c.commit();
+    }
+
+    // Insert a new feature and get its ID. Returns 0 on failure (e.g. someone else inserted it first)
+    public static int insert(Connection c, String name, String src) {
+        try {
+            PreparedStatement s = c.prepareStatement("INSERT INTO FEATURE (NAME,SRC) VALUES (?,?)", PreparedStatement.RETURN_GENERATED_KEYS);
+            s.setString(1, name);
+            s.setString(2, src);
+            s.executeUpdate();
+            ResultSet rs = s.getGeneratedKeys();
+            int id = rs.next() ? rs.getInt(1) : 0;
+            c.commit();
+            return id;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    // Get the ID of the given feature, or 0 if it doesn't exist
+    public static int fetchId(Connection c, String name, String src) {
+        try {
+            PreparedStatement s = c.prepareStatement("SELECT ID FROM FEATURE WHERE NAME = ? AND SRC = ?");
+            s.setString(1, name);
+            s.setString(2, src);
+            ResultSet resultSet = s.executeQuery();
+            if ( resultSet.next() )
+                return resultSet.getInt(1);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    public static List<Feature> all(Connection c) {
+        ArrayList<Feature> features = new ArrayList<>();
+        try {
+            PreparedStatement s = c.prepareStatement("SELECT ID,NAME,SRC,FIRST_SEEN,LAST_SEEN,SAMPLES FROM FEATURE");
+            ResultSet resultSet = s.executeQuery();
+            while ( resultSet.next() ) {
+                Timestamp first = resultSet.getTimestamp(4), last = resultSet.getTimestamp(5);
+                features.add(new Feature(resultSet.getInt(1), resultSet.getString(2), resultSet.getString(3),
+                        first == null ? 0 : first.getTime(), last == null ? 0 : last.getTime(), resultSet.getLong(6)));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return features;
+    }
+
+    // Add the stats of some newly written samples to their features' rows: each of the given features holds the
+    // first/last times and the number of new samples of the feature with the same ID. This only ever widens the
+    // time range and adds to the count, so writers can do it concurrently, in any order. Features are updated in the
+    // order given (keep it the same for everyone, e.g. by ID, so that writers don't deadlock on each other's rows).
+    public static boolean addStats(Connection c, Collection<Feature> stats) {
+        try {
+            PreparedStatement s = c.prepareStatement("UPDATE FEATURE SET FIRST_SEEN = LEAST(COALESCE(FIRST_SEEN, ?), ?), LAST_SEEN = GREATEST(COALESCE(LAST_SEEN, ?), ?), SAMPLES = SAMPLES + ? WHERE ID = ?");
+            for (Feature f : stats) {
+                Timestamp first = new Timestamp(f.firstSeen), last = new Timestamp(f.lastSeen);
+                s.setTimestamp(1, first);
+                s.setTimestamp(2, first);
+                s.setTimestamp(3, last);
+                s.setTimestamp(4, last);
+                s.setLong(5, f.samples);
+                s.setInt(6, f.id);
+                s.addBatch();
+            }
+            s.executeBatch();
+            c.commit();
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                c.rollback();
+            } catch (SQLException e2) {
+                e2.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    // Account for n more samples between first and last (in memory only, see addStats for the database)
+    public synchronized void addStats(long first, long last, long n) {
+        if (samples == 0 || first < firstSeen)
+            firstSeen = first;
+        if (samples == 0 || last > lastSeen)
+            lastSeen = last;
+        samples += n;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSrc() {
+        return src;
+    }
+
+    public synchronized long getFirstSeen() {
+        return firstSeen;
+    }
+
+    public synchronized long getLastSeen() {
+        return lastSeen;
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    @Override
+    public String toString() {
+        return "Feature{" +
+                "id=" + id +
+                ", name='" + name + '\'' +
+                ", src='" + src + '\'' +
+                ", firstSeen=" + firstSeen +
+                ", lastSeen=" + lastSeen +
+                ", samples=" + samples +
+                '}';
+    }
+}
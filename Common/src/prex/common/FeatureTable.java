@@ -0,0 +1,47 @@
+package prex.common;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The features (<name,src> pairs) that a client samples, each with a small local index. Buffers keep the index
+// instead of the strings (or a Sample), so that recording a sample is just three primitives. This is the client-side
+// counterpart of the coordinator's FeatureCatalog, and it is shared by everything that buffers the client's samples
+// (see SampleRecorder and SampleSummarizer).
+//
+// Features are never removed. Lookups by index never lock.
+public class FeatureTable {
+    // <sample-id (src-name), index>
+    private final ConcurrentHashMap<String, Integer> indices = new ConcurrentHashMap<>();
+
+    // index -> feature (the feature's ID is the coordinator's, so it is 0 here). Replaced when it grows.
+    private volatile Feature[] features = new Feature[16];
+    private int size = 0;
+
+    public int register(String name, String src) {
+        Integer index = indices.get(src + "-" + name);
+        if (index != null)
+            return index;
+
+        synchronized (this) {
+            index = indices.get(src + "-" + name);
+            if (index != null)
+                return index;
+
+            Feature[] f = features;
+            if (size == f.length)
+                f = Arrays.copyOf(f, f.length * 2);
+            f[size] = new Feature(0, name, src);
+            features = f; // Publish the feature before its index
+            indices.put(src + "-" + name, size);
+            return size++;
+        }
+    }
+
+    public Feature get(int index) {
+        return features[index];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,245 @@
+package prex.common;
+
+import java.util.Arrays;
+
+// Compression for series of samples of ONE feature, as in Facebook's Gorilla paper ("Gorilla: A Fast, Scalable,
+// In-Memory Time Series Database", Pelkonen et al. 2015). Probe data is very regular, and both halves of a sample
+// take advantage of that:
+//
+//    - Timestamps are stored as the difference between consecutive deltas (delta-of-delta). A probe sampling at a
+//      fixed interval has a delta-of-delta of 0, which takes a single bit. Small jitter takes 9 to 16 bits.
+//    - Values are XORed with the previous value. An unchanged value takes a single bit. Otherwise only the bits
+//      between the leading and trailing zeros of the XOR are written, reusing the previous window when they fit.
+//
+// The Encoder and Decoder work on a BitWriter/BitReader, so that many series can share one buffer. The first
+// timestamp of each series is not part of the bit stream: whoever stores the series must store it (e.g. as a varint),
+// and hand it to the Encoder and Decoder. Timestamps don't need to be in order, but out of order ones cost more.
+//
+// The paper uses 64-bit doubles. Our values are 32-bit floats, so the leading zeros and the length of the
+// meaningful bits take 5 bits each.
+public class GorillaCodec {
+
+    public static class Encoder {
+        private final BitWriter out;
+        private long previousTime;
+        private long previousDelta = 0;
+        private int previousValue;
+        private int previousLeading = -1, previousTrailing = 0; // -1: no window yet
+        private boolean first = true;
+
+        public Encoder(BitWriter out, long firstTime) {
+            this.out = out;
+            this.previousTime = firstTime;
+        }
+
+        public void add(long time, float value) {
+            long delta = time - previousTime;
+            writeDeltaOfDelta(delta - previousDelta);
+            previousDelta = delta;
+            previousTime = time;
+
+            int bits = Float.floatToRawIntBits(value);
+            if (first) {
+                out.write(bits, 32);
+                first = false;
+            } else
+                writeXor(bits ^ previousValue);
+            previousValue = bits;
+        }
+
+        // '0' for 0, then '10', '110', '1110' followed by 7, 9 and 12 bits (two's complement), and '1111' followed by
+        // the full 64 bits
+        private void writeDeltaOfDelta(long dod) {
+            if (dod == 0)
+                out.write(0, 1);
+            else if (dod >= -64 && dod <= 63) {
+                out.write(0b10, 2);
+                out.write(dod, 7);
+            } else if (dod >= -256 && dod <= 255) {
+                out.write(0b110, 3);
+                out.write(dod, 9);
+            } else if (dod >= -2048 && dod <= 2047) {
+                out.write(0b1110, 4);
+                out.write(dod, 12);
+            } else {
+                out.write(0b1111, 4);
+                out.write(dod, 64);
+            }
+        }
+
+        // '0' if the value is the same. '10' followed by the meaningful bits if they fit in the previous window. '11',
+        // the leading zeros (5 bits), the length of the meaningful bits minus one (5 bits) and the bits otherwise.
+        private void writeXor(int xor) {
+            if (xor == 0) {
+                out.write(0, 1);
+                return;
+            }
+
+            int leading = Integer.numberOfLeadingZeros(xor);
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                out.write(0b10, 2);
+                out.write(xor >>> previousTrailing, 32 - previousLeading - previousTrailing);
+            } else {
+                int length = 32 - leading - trailing;
+                out.write(0b11, 2);
+                out.write(leading, 5);
+                out.write(length - 1, 5);
+                out.write(xor >>> trailing, length);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+    }
+
+    public static class Decoder {
+        private final BitReader in;
+        private long previousTime;
+        private long previousDelta = 0;
+        private int previousValue;
+        private int previousLeading = 0, previousTrailing = 0;
+        private boolean first = true;
+
+        // The last decoded sample
+        private long time;
+        private float value;
+
+        public Decoder(BitReader in, long firstTime) {
+            this.in = in;
+            this.previousTime = firstTime;
+        }
+
+        // Decode the next sample. Get it with getTime() and getValue()
+        public void next() {
+            long delta = previousDelta + readDeltaOfDelta();
+            time = previousTime + delta;
+            previousDelta = delta;
+            previousTime = time;
+
+            int bits;
+            if (first) {
+                bits = (int) in.read(32);
+                first = false;
+            } else
+                bits = previousValue ^ readXor();
+            previousValue = bits;
+            value = Float.intBitsToFloat(bits);
+        }
+
+        private long readDeltaOfDelta() {
+            if (in.read(1) == 0) return 0;
+            if (in.read(1) == 0) return in.readSigned(7);
+            if (in.read(1) == 0) return in.readSigned(9);
+            if (in.read(1) == 0) return in.readSigned(12);
+            return in.read(64);
+        }
+
+        private int readXor() {
+            if (in.read(1) == 0)
+                return 0;
+            if (in.read(1) == 0)
+                return (int) in.read(32 - previousLeading - previousTrailing) << previousTrailing;
+
+            previousLeading = (int) in.read(5);
+            int length = (int) in.read(5) + 1;
+            previousTrailing = 32 - previousLeading - length;
+            return (int) in.read(length) << previousTrailing;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public float getValue() {
+            return value;
+        }
+    }
+
+    // Appends bits (most significant first) to a growing byte array
+    public static class BitWriter {
+        private byte[] buffer;
+        private int bytes = 0;    // Complete bytes in the buffer
+        private long current = 0; // Bits that don't make a byte yet (the lowest "pending" bits)
+        private int pending = 0;
+
+        public BitWriter(int initialCapacity) {
+            this.buffer = new byte[Math.max(initialCapacity, 16)];
+        }
+
+        // Write the lowest n bits of v (0 <= n <= 64)
+        public void write(long v, int n) {
+            if (n > 32) {
+                write(v >>> 32, n - 32);
+                n = 32;
+            }
+            if (n == 0)
+                return;
+
+            current = (current << n) | (v & ((1L << n) - 1));
+            pending += n;
+            while (pending >= 8) {
+                if (bytes == buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                pending -= 8;
+                buffer[bytes++] = (byte) (current >>> pending);
+            }
+        }
+
+        // Pad the last byte with zeros. Call this once, after the last write
+        public void flush() {
+            if (pending > 0)
+                write(0, 8 - pending);
+        }
+
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        // Number of bytes written (only counts the last byte after flush())
+        public int size() {
+            return bytes;
+        }
+
+        public void reset() {
+            bytes = 0;
+            current = 0;
+            pending = 0;
+        }
+    }
+
+    public static class BitReader {
+        private final byte[] buffer;
+        private final int end;
+        private int position;  // Next byte
+        private long current = 0;
+        private int available = 0;
+
+        public BitReader(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        // Read n bits (0 <= n <= 64) as an unsigned value
+        public long read(int n) {
+            if (n > 32) {
+                long high = read(n - 32);
+                return (high << 32) | read(32);
+            }
+            while (available < n) {
+                if (position >= end)
+                    throw new IllegalStateException("Ran out of bits");
+                current = (current << 8) | (buffer[position++] & 0xFF);
+                available += 8;
+            }
+            available -= n;
+            return (current >>> available) & ((1L << n) - 1);
+        }
+
+        // Read n bits as a two's complement value
+        public long readSigned(int n) {
+            long v = read(n);
+            return (v << (64 - n)) >> (64 - n);
+        }
+    }
+}
@@ -7,6 +7,8 @@ import java.util.Date;
 // This class represents an event in time. It can be presented as a UNIX timestamp or in human readable fashion.
 // Mostly, it acts as a wrapper for Date.
 public class PreXTimestamp implements Serializable {
+    private static final long serialVersionUID = -4547439868051062132L;
+
     private final Date date;
     private final boolean unixPresentationModeByDefault;
 
@@ -27,6 +29,10 @@ public class PreXTimestamp implements Serializable {
         return "" + this.date.getTime();
     }
 
+    public long asMillis() {
+        return this.date.getTime();
+    }
+
     public Timestamp asTimestamp() {
         return new Timestamp(this.date.getTime());
     }
@@ -7,6 +7,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 
 // A prediction context is characterized exclusively by a name. Perhaps in a future version we can extend the concept
 // to allow for different prediction contexts in different systems, all using the same coordinator.
@@ -14,6 +15,8 @@ import java.util.List;
 // A prediction context must also keep track of all the samples that it wants to use for prediction. This is done
 // by mapping the array of relevant sample IDs in here. Remember that a sample "ID" is just its name and src.
 public class PredictionContext implements Serializable {
+    private static final long serialVersionUID = -8117361516777329969L;
+
     private String name;
 
     // ArrayList of <name,src> ids relevant to this prediction context
@@ -54,25 +57,31 @@ public class PredictionContext implements Serializable {
         }
     }
 
+    // Ids that are already there are left alone. All of them go in one batch.
     protected boolean insertIDs(Connection c) {
-
+        try {
+            PreparedStatement s = c.prepareStatement("MERGE INTO PREDICTION_CONTEXT_IDS (CONTEXT_NAME,SAMPLE_NAME,SAMPLE_SRC) KEY (CONTEXT_NAME,SAMPLE_NAME,SAMPLE_SRC) VALUES (?,?,?)");
             for ( String[] nameAndSrc : ids ) {
-                try {
-                    PreparedStatement s = c.prepareStatement("INSERT INTO PREDICTION_CONTEXT_IDS (CONTEXT_NAME,SAMPLE_NAME,SAMPLE_SRC) VALUES (?,?,?)");
-
-                    s.setString(1, name);
-                    s.setString(2, nameAndSrc[0]);
-                    s.setString(3, nameAndSrc[1]);
-                    s.executeUpdate();
-                } catch (SQLException e) {
-                    //e.printStackTrace();
-
-                }
+                s.setString(1, name);
+                s.setString(2, nameAndSrc[0]);
+                s.setString(3, nameAndSrc[1]);
+                s.addBatch();
             }
+            if (!ids.isEmpty())
+                s.executeBatch();
             return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
     public boolean insert(Connection c) {
+        return insert(c, () -> Sample.allSampleIds(c));
+    }
+
+    // allIds gives every known <name,src> pair (the coordinator gets them from its in-memory feature catalog)
+    public boolean insert(Connection c, Supplier<ArrayList<String[]>> allIds) {
         try {
             PreparedStatement s = c.prepareStatement("INSERT INTO PREDICTION_CONTEXT (name) VALUES (?)");
             s.setString(1, name);
@@ -80,10 +89,9 @@ public class PredictionContext implements Serializable {
 
             //FIXME: This is where we add all the features. Might want to remove in a future version. In practice
             // this means that the first time a prediction context is seen by the system, then it is automatically
-            // mapped to all features/samples that already exist in the system. Also note that allSampleIds is probably
-            // computationally expensive!!
+            // mapped to all features/samples that already exist in the system.
             if ( ids == null || ids.isEmpty())
-                ids = Sample.allSampleIds(c);
+                ids = allIds.get();
 
 
             if(!insertIDs(c)) return false;
@@ -113,64 +121,45 @@ public class PredictionContext implements Serializable {
         s.executeUpdate();
     }
 
-    // Get ALL samples regarding this prediction context
-    public List<Sample> getSamples(Connection c) {
-        ArrayList<Sample> samples = new ArrayList<>();
+    // The summaries sent by probes in summary mode (see SampleSummary) for this prediction context, for the run with
+    // the given ID. Samples are read one feature at a time instead (see SampleStore.scan): they are far too many for
+    // a list.
+    public List<SampleSummary> getSummariesFromRun(Connection c, int run) {
+        ArrayList<SampleSummary> summaries = new ArrayList<>();
         try {
             PreparedStatement s;
-            s = c.prepareStatement("SELECT s.* FROM SAMPLE s, PREDICTION_CONTEXT p, PREDICTION_CONTEXT_IDs p_s WHERE p.name = p_s.context_name AND s.src = p_s.sample_src AND s.name = p_s.sample_name AND p.name = ? ORDER BY s.time ASC");
-
-            s.setString(1, name);
-            ResultSet resultSet = s.executeQuery();
-            while ( resultSet.next() ) {
-                samples.add(Sample.fromResultSet(resultSet));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return samples;
-    }
-
-    // Get samples for this prediction context for the run with the given ID
-    public List<Sample> getSamplesFromRun(Connection c, int run) {
-        ArrayList<Sample> samples = new ArrayList<>();
-        try {
-            PreparedStatement s;
-            s = c.prepareStatement("SELECT s.* FROM SAMPLE s, PREDICTION_CONTEXT p, PREDICTION_CONTEXT_IDs p_s, EXECUTION_RUN r WHERE p.name = p_s.context_name AND s.src = p_s.sample_src AND s.name = p_s.sample_name AND p.name = ? AND s.time >= r.start AND s.time <= r.finish AND r.id = ? ORDER BY s.time ASC");
+            s = c.prepareStatement("SELECT " + SampleSummary.COLUMNS + " FROM SAMPLE_SUMMARY s, FEATURE f, PREDICTION_CONTEXT p, PREDICTION_CONTEXT_IDs p_s, EXECUTION_RUN r WHERE p.name = p_s.context_name AND s.feature = f.id AND f.src = p_s.sample_src AND f.name = p_s.sample_name AND p.name = ? AND s.time >= r.start AND s.time <= r.finish AND r.id = ? ORDER BY s.time ASC");
 
             s.setString(1, name);
             s.setInt(2, run);
             ResultSet resultSet = s.executeQuery();
             while ( resultSet.next() ) {
-                samples.add(Sample.fromResultSet(resultSet));
+                summaries.add(SampleSummary.fromResultSet(resultSet));
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return samples;
+        return summaries;
     }
 
-
-    // This gets all samples for the current prediction context since a given data. Since it's meant to be used while
-    // predicting, it bypasses the SAMPLE table and uses the SAMPLE_SNAPSHOT table.
-    public List<Sample> getSamplesSince(Connection c, PreXTimestamp t) {
-        ArrayList<Sample> samples = new ArrayList<>();
+    // Same as getSummariesFromRun, but for the rollups of the given resolution (see SampleRollup)
+    public List<SampleSummary> getRollupsFromRun(Connection c, int run, int resolution) {
+        ArrayList<SampleSummary> rollups = new ArrayList<>();
         try {
             PreparedStatement s;
-
-            // FIXME: Make sure that the snapshot is far enough in the past?
-            s = c.prepareStatement("SELECT s.* FROM SAMPLE_SNAPSHOT s, PREDICTION_CONTEXT p, PREDICTION_CONTEXT_IDs p_s, EXECUTION_RUN r WHERE p.name = p_s.context_name AND s.src = p_s.sample_src AND s.name = p_s.sample_name AND p.name = ? AND s.time >= ? ORDER BY s.time ASC");
+            s = c.prepareStatement("SELECT " + SampleSummary.COLUMNS + " FROM SAMPLE_ROLLUP s, FEATURE f, PREDICTION_CONTEXT p, PREDICTION_CONTEXT_IDs p_s, EXECUTION_RUN r WHERE p.name = p_s.context_name AND s.feature = f.id AND f.src = p_s.sample_src AND f.name = p_s.sample_name AND p.name = ? AND s.bucket = ? AND s.time >= r.start AND s.time <= r.finish AND r.id = ? ORDER BY s.time ASC");
 
             s.setString(1, name);
-            s.setTimestamp(2, t.asTimestamp());
+            s.setInt(2, resolution);
+            s.setInt(3, run);
             ResultSet resultSet = s.executeQuery();
             while ( resultSet.next() ) {
-                samples.add(Sample.fromResultSet(resultSet));
+                rollups.add(SampleSummary.fromResultSet(resultSet));
             }
-        } catch (Exception e) {
+        } catch (SQLException e) {
             e.printStackTrace();
         }
-        return samples;
+        return rollups;
     }
 
     public String getName() {
@@ -246,6 +235,11 @@ public class PredictionContext implements Serializable {
     // sample IDs are current. Note that if it doesn't exist yet, it will be created, and that currently also maps it
     // to all known sample IDs.
     public boolean ensureExistsAndFetchIDs(Connection c) {
+        return ensureExistsAndFetchIDs(c, () -> Sample.allSampleIds(c));
+    }
+
+    // Same, with allIds giving every known <name,src> pair if the context has to be created (see insert)
+    public boolean ensureExistsAndFetchIDs(Connection c, Supplier<ArrayList<String[]>> allIds) {
         try {
             PreparedStatement s;
             s = c.prepareStatement("SELECT p.* FROM PREDICTION_CONTEXT p WHERE p.name = ?");
@@ -255,7 +249,7 @@ public class PredictionContext implements Serializable {
             if ( resultSet.next() )
                 fetchIDs(c);
             else {
-                insert(c);
+                insert(c, allIds);
             }
 
             return true;
@@ -284,4 +278,23 @@ public class PredictionContext implements Serializable {
         }
         return featureNames;
     }
+
+    // Get the feature IDs of all the features used by this prediction context, in the same order as getFeatureNames.
+    // Features that have never been sampled have no ID yet, and come as 0.
+    public ArrayList<Integer> getFeatureIds(Connection c) {
+        ArrayList<Integer> featureIds = new ArrayList<>();
+        try {
+            PreparedStatement s;
+            s = c.prepareStatement("SELECT COALESCE(f.id, 0) FROM PREDICTION_CONTEXT_IDs p_s LEFT JOIN FEATURE f ON f.src = p_s.sample_src AND f.name = p_s.sample_name WHERE p_s.context_name = ? ORDER BY p_s.sample_src,p_s.sample_name");
+
+            s.setString(1, name);
+            ResultSet resultSet = s.executeQuery();
+            while ( resultSet.next() ) {
+                featureIds.add(resultSet.getInt(1));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return featureIds;
+    }
 }
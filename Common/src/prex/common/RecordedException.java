@@ -7,6 +7,8 @@ import java.sql.SQLException;
 
 // Represents an exception that happened in the past during some prediction context. This is used for training.
 public class RecordedException extends PreXException {
+    private static final long serialVersionUID = 782560953068479422L;
+
 
     private PredictionContext context;
 
@@ -47,6 +49,10 @@ public class RecordedException extends PreXException {
                 new PredictionContext(resultSet.getString("PREDICTION_CONTEXT")));
     }
 
+    public PredictionContext getContext() {
+        return context;
+    }
+
     @Override
     public String toString() {
         return "RecordedException{" +
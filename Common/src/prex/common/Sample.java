@@ -1,31 +1,35 @@
 package prex.common;
 
+import prex.common.protocol.MessageCodec;
+
 import java.io.Serializable;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.List;
 
 // A sample is characterized by its ID, timestamp and value. The ID is the <src,name> pair. The src denotes the
 // originating entity (e.g. "Machine 1"), whereas the name denotes the name of the sample within that entity (e.g.
-// "Free Ram"). In the future, I'd like to join this pair into a SampleID class, since it became a hassle to have to
-// carry both around.
+// "Free Ram"). The coordinator interns every pair into an integer feature ID (see Feature), which is what the SAMPLE
+// table stores. Samples created by clients don't know their feature ID (it is 0) until the coordinator resolves it.
 //
 // Note also that currently all samples are floating point, but this isn't really hardcoded. A change in the database
 // for the generality, coupled with clever generics is enough to move beyond that. However, floats fit our purpose
 // perfectly.
 //
-// Note that although all samples are stored in a SAMPLE table, they are also stored in a a SAMPLE_SNAPSHOT table.
-// Due to the amount of data, the SAMPLE table quickly becomes hard to process, and so a SAMPLE_SNAPSHOT containing
-// the most recent data can be used instead (you should flush/clear this table by calling clearSnapshotTable).
-//
-// PredictionContext methods that look for data "Since" some time usually access the SAMPLE_SNAPSHOT table for these
-// performance reasons.
+// All samples are stored in a SAMPLE table. Due to the amount of data, the SAMPLE table quickly becomes hard to
+// process, so the coordinator also keeps the most recent samples in memory (see RecentSampleStore in the coordinator).
+// That is what is used when predicting.
 public class Sample implements Serializable {
+    // Pinned so that legacy (Java serialization) clients keep working as this class changes
+    private static final long serialVersionUID = 2177731331610160436L;
+
     private PreXTimestamp time;
 
+    // Coordinator-wide ID of the <src,name> pair. 0 if unknown
+    private int featureId;
+
     // <src,name> from the ID of the sample
     private String name;
     private String src;
@@ -34,7 +38,12 @@ public class Sample implements Serializable {
     private float value;
 
     public Sample(PreXTimestamp time, String name, String src, float value) {
+        this(time, 0, name, src, value);
+    }
+
+    public Sample(PreXTimestamp time, int featureId, String name, String src, float value) {
         this.time = time;
+        this.featureId = featureId;
         this.name = name;
         this.src = src;
         this.value = value;
@@ -50,6 +59,7 @@ public class Sample implements Serializable {
     public String toString() {
         return "Sample{" +
                 "time=" + time +
+                ", featureId=" + featureId +
                 ", name='" + name + '\'' +
                 ", src='" + src + '\'' +
                 ", value=" + value +
@@ -57,38 +67,47 @@ public class Sample implements Serializable {
     }
 
     public static void createTables(Connection c) throws SQLException {
-        PreparedStatement s = c.prepareStatement("CREATE TABLE SAMPLE (time TIMESTAMP, name VARCHAR, src VARCHAR, value FLOAT, PRIMARY KEY (name,src,time))");
-        s.executeUpdate();
-        s = c.prepareStatement("CREATE TABLE SAMPLE_SNAPSHOT (time TIMESTAMP, name VARCHAR, src VARCHAR, value FLOAT, PRIMARY KEY (name,src,time))");
+        PreparedStatement s = c.prepareStatement("CREATE TABLE SAMPLE (time TIMESTAMP, feature INT, value FLOAT, PRIMARY KEY (feature,time), FOREIGN KEY (feature) REFERENCES FEATURE(ID))");
         s.executeUpdate();
     }
 
-    public static Void clearSnapshotTable(Connection c) {
-        PreparedStatement s;
-        try {
-            s = c.prepareStatement("TRUNCATE TABLE SAMPLE_SNAPSHOT");
-            s.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    // SAMPLE tables from before the feature IDs, (time, name, src, value), are moved to the current layout. Every
+    // <name,src> pair in there gets its ID from features (the FeatureCatalog), and then the samples are copied over
+    // with a join on FEATURE. The old table is kept as SAMPLE_V1 until the copy is done, so an upgrade that gets
+    // interrupted is finished on the next start. Returns true if there was something to upgrade (the feature stats
+    // need recomputing then, see Feature.recomputeStats).
+    public static boolean upgradeTables(Connection c, MessageCodec.FeatureResolver features) throws SQLException {
+        ResultSet resultSet = c.prepareStatement("SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'SAMPLE' AND COLUMN_NAME = 'SRC'").executeQuery();
+        if (resultSet.next() && resultSet.getInt(1) > 0) {
+            System.out.println("Moving the SAMPLE table to feature IDs. This might take a while...");
+            c.prepareStatement("ALTER TABLE SAMPLE RENAME TO SAMPLE_V1").executeUpdate();
+            createTables(c);
+            c.commit();
+        }
+
+        resultSet = c.prepareStatement("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'SAMPLE_V1'").executeQuery();
+        if (!resultSet.next() || resultSet.getInt(1) == 0)
+            return false;
+
+        resultSet = c.prepareStatement("SELECT DISTINCT name, src FROM SAMPLE_V1").executeQuery();
+        while (resultSet.next()) {
+            String name = resultSet.getString(1), src = resultSet.getString(2);
+            if (features.featureId(name, src) == 0)
+                throw new SQLException("Can't get an ID for feature " + name + "@" + src);
         }
 
-        return null;
+        int n = c.prepareStatement("MERGE INTO SAMPLE (time,feature,value) KEY (feature,time) SELECT s.time, f.id, s.value FROM SAMPLE_V1 s JOIN FEATURE f ON f.name = s.name AND f.src = s.src").executeUpdate();
+        c.prepareStatement("DROP TABLE SAMPLE_V1").executeUpdate();
+        c.prepareStatement("DROP TABLE IF EXISTS SAMPLE_SNAPSHOT").executeUpdate(); // Long gone, see RecentSampleStore
+        c.commit();
+        System.out.println("Moved " + n + " samples");
+        return true;
     }
 
     public boolean insert(Connection c) {
         try {
-            PreparedStatement s = c.prepareStatement("INSERT INTO SAMPLE (time,name,src,value) VALUES (?,?,?,?)");
-            s.setTimestamp(1, time.asTimestamp());
-            s.setString(2, name);
-            s.setString(3, src);
-            s.setFloat(4, value);
-            s.executeUpdate();
-
-            s = c.prepareStatement("INSERT INTO SAMPLE_SNAPSHOT (time,name,src,value) VALUES (?,?,?,?)");
-            s.setTimestamp(1, time.asTimestamp());
-            s.setString(2, name);
-            s.setString(3, src);
-            s.setFloat(4, value);
+            PreparedStatement s = c.prepareStatement("INSERT INTO SAMPLE (time,feature,value) VALUES (?,?,?)");
+            bind(s);
             s.executeUpdate();
 
             c.commit();
@@ -99,36 +118,77 @@ public class Sample implements Serializable {
         }
     }
 
-    public static Sample fromResultSet(ResultSet resultSet) throws SQLException {
-        return new Sample( new PreXTimestamp(resultSet.getTimestamp("time")),
-                resultSet.getString("name"),
-                resultSet.getString("src"),
-                resultSet.getFloat("value"));
+    // Insert many samples at once. The statement is prepared once and reused for the whole array through JDBC
+    // batching, and everything is committed in a single transaction. Null entries are skipped. The feature IDs
+    // must have been resolved already. Two samples of the same feature with the same timestamp (e.g. from two threads
+    // sharing a client) would fail the whole batch, so the later one replaces the earlier one instead. Returns the
+    // number of samples written, or -1 if the batch failed (in which case it is rolled back).
+    public static int insertBatch(Connection c, Sample[] samples) {
+        try {
+            PreparedStatement sample = c.prepareStatement("MERGE INTO SAMPLE (time,feature,value) KEY (feature,time) VALUES (?,?,?)");
+
+            int n = 0;
+            for (Sample smp : samples) {
+                if (smp == null) continue;
+                smp.bind(sample);
+                sample.addBatch();
+                n++;
+            }
+
+            if (n > 0)
+                sample.executeBatch();
+            c.commit();
+            return n;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                c.rollback();
+            } catch (SQLException e2) {
+                e2.printStackTrace();
+            }
+            return -1;
+        }
     }
 
-    // Grab all samples from the same source
-    public static List<Sample> allFromSrc(Connection c, String src) {
-        ArrayList<Sample> samples = new ArrayList<>();
+    // Delete (up to limit) samples older than the given time, in one transaction. Big purges should be done in many
+    // small chunks, so that they don't hold the table for too long. Returns how many were deleted, or -1 on failure.
+    public static int deleteBefore(Connection c, long before, int limit) {
         try {
-            PreparedStatement s = c.prepareStatement("SELECT s.* from SAMPLE s WHERE src = ?");
-            s.setString(1, src);
-            ResultSet resultSet = s.executeQuery();
-            while ( resultSet.next() ) {
-                samples.add(fromResultSet(resultSet));
-            }
+            PreparedStatement s = c.prepareStatement("DELETE FROM SAMPLE WHERE time < ? LIMIT ?");
+            s.setTimestamp(1, new java.sql.Timestamp(before));
+            s.setInt(2, limit);
+            int n = s.executeUpdate();
+            c.commit();
+            return n;
         } catch (SQLException e) {
             e.printStackTrace();
+            return -1;
         }
+    }
 
-        return samples;
+    // Binds this sample to an "INSERT ... (time,feature,value)" statement
+    private void bind(PreparedStatement s) throws SQLException {
+        s.setTimestamp(1, time.asTimestamp());
+        s.setInt(2, featureId);
+        s.setFloat(3, value);
+    }
+
+    // Columns that any query returning samples must select, with s being SAMPLE and f being FEATURE
+    public static final String COLUMNS = "s.time, s.value, f.id AS feature, f.name, f.src";
+
+    public static Sample fromResultSet(ResultSet resultSet) throws SQLException {
+        return new Sample( new PreXTimestamp(resultSet.getTimestamp("time")),
+                resultSet.getInt("feature"),
+                resultSet.getString("name"),
+                resultSet.getString("src"),
+                resultSet.getFloat("value"));
     }
 
-    // Return array of all <name,src> pairs. This is VERY EXPENSIVE if there is no index (and why would you add an
-    // index to this gigantic table anyway? A major FIXME is to remove all usage of this function.
+    // Return array of all <name,src> pairs. These come from the FEATURE table, so this is cheap.
     public static ArrayList<String[]> allSampleIds(Connection c) {
         ArrayList<String[]> samples = new ArrayList<>();
         try {
-            PreparedStatement s = c.prepareStatement("SELECT DISTINCT NAME,SRC FROM SAMPLE ");
+            PreparedStatement s = c.prepareStatement("SELECT NAME,SRC FROM FEATURE");
             ResultSet resultSet = s.executeQuery();
             while ( resultSet.next() )
                 samples.add(new String[] { resultSet.getString("NAME"), resultSet.getString("SRC") });
@@ -145,4 +205,20 @@ public class Sample implements Serializable {
     public float getValue() {
         return value;
     }
+
+    public int getFeatureId() {
+        return featureId;
+    }
+
+    public void setFeatureId(int featureId) {
+        this.featureId = featureId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSrc() {
+        return src;
+    }
 }
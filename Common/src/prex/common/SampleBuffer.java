@@ -11,13 +11,14 @@ import java.util.function.Consumer;
 //
 // The buffer can work synchronously and asynchronously. When used synchronously, the callback is invoked
 // in the thread that called add(), when the buffer is full. This might hinder performance if the callback function
-// delays execution. An alternative is asynchronous mode, where the callback is called in a new thread. Note that
-// even in the asynchronous mode, the buffer is cleared, and that might force future calls to add to block until
-// the callback has finished.
+// delays execution. An alternative is asynchronous mode, where the callback is called in a new thread with a copy of
+// the samples, and the buffer is cleared right away.
 //
-// A proposed solution to the aforementioned blocking is to just create a new buffer and use a dispatch queue for
-// the callbacks. Maybe in a later version.
+// Clients no longer use this to buffer their samples (see SampleRecorder, which doesn't lock and doesn't start a
+// thread per flush). It is still what carries samples inside a BufferedSamplesMessage.
 public class SampleBuffer implements Serializable {
+    private static final long serialVersionUID = 9060187722187639604L;
+
     private Sample[] buffer;
     private int currPos;
     private boolean async;
@@ -35,14 +36,26 @@ public class SampleBuffer implements Serializable {
         this.currPos = 0;
         this.async = async;
 
+        // In async mode, the callback gets its own copy: the samples in this buffer are about to be overwritten
         if ( this.async )
-            this.callback = (s) -> new Thread(() -> {callback.accept(s); clear();} ).start();
+            this.callback = (s) -> {
+                SampleBuffer copy = new SampleBuffer(Arrays.copyOf(buffer, currPos));
+                clear();
+                new Thread(() -> callback.accept(copy)).start();
+            };
         else
             this.callback = (s) -> { synchronized (this) { callback.accept(s); clear(); } };
     }
 
 
 
+    // A buffer that just holds the given samples (e.g. one that was received from the network). It has no callback.
+    public SampleBuffer(Sample[] samples) {
+        this.buffer = samples;
+        this.currPos = samples.length;
+        this.async = false;
+    }
+
     public synchronized void add(Sample s) {
         this.buffer[this.currPos++] = s;
         if (this.buffer.length == this.currPos) {
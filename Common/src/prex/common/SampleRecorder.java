@@ -0,0 +1,252 @@
+package prex.common;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Collects samples from any number of threads and hands them, in batches, to a callback running in a single
+// background flusher thread. It replaces the SampleBuffer as the way clients buffer their samples.
+//
+// Producers never block and never take a lock: record() claims a slot in a bounded ring with a CAS and publishes the
+// sample in it. The ring is made of primitive columns (feature index, epoch-millis time and value, see FeatureTable),
+// so recording a sample through record(feature, time, value) doesn't allocate anything. Samples only become Sample
+// objects in the flusher.
+//
+// The flusher is the only consumer. It sends a batch as soon as batchSize samples are waiting, or when the oldest
+// waiting sample has been waiting for lingerMs, whichever comes first. If the ring is full (the callback can't keep
+// up), new samples are dropped and counted, rather than stalling the application.
+//
+// The ring follows the usual bounded MPMC queue design: each slot has a sequence number that tells producers when the
+// slot is free and tells the consumer when the sample in it has been published.
+public class SampleRecorder {
+    private final int batchSize;
+    private final long lingerNanos;
+    private final Consumer<Sample[]> callback;
+
+    private final FeatureTable features;
+
+    // The ring. A slot's columns are written before its sequence is published, and read after it is seen
+    private final int mask;
+    private final int[] slotFeatures;
+    private final long[] slotTimes;
+    private final float[] slotValues;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(); // Next slot to be claimed by a producer
+    private volatile long head = 0;                   // Next slot to be read by the flusher
+
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    // Metrics, in samples
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    // capacity is rounded up to a power of two, and is never smaller than batchSize
+    public SampleRecorder(String name, FeatureTable features, int batchSize, long lingerMs, int capacity,
+                          Consumer<Sample[]> callback) {
+        this.features = features;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerNanos = lingerMs * 1000000L;
+        this.callback = callback;
+
+        int size = Integer.highestOneBit(Math.max(Math.max(capacity, this.batchSize), 2) - 1) << 1;
+        this.mask = size - 1;
+        this.slotFeatures = new int[size];
+        this.slotTimes = new long[size];
+        this.slotValues = new float[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+
+        this.flusher = new Thread(this::flusherLoop, "prex-sample-flusher-" + name);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public SampleRecorder(String name, int batchSize, long lingerMs, int capacity, Consumer<Sample[]> callback) {
+        this(name, new FeatureTable(), batchSize, lingerMs, capacity, callback);
+    }
+
+    // Good defaults for a client: the ring holds 16 batches (at least 1024 samples) and lingers 100ms
+    public SampleRecorder(String name, FeatureTable features, int batchSize, Consumer<Sample[]> callback) {
+        this(name, features, batchSize, Long.getLong("prex.client.linger", 100), Math.max(batchSize * 16, 1024),
+                callback);
+    }
+
+    public SampleRecorder(String name, int batchSize, Consumer<Sample[]> callback) {
+        this(name, new FeatureTable(), batchSize, callback);
+    }
+
+    public boolean record(Sample s) {
+        return record(features.register(s.getName(), s.getSrc()), s.getTime().asMillis(), s.getValue());
+    }
+
+    // Record a sample of the feature with the given index in the FeatureTable. Returns false if the sample was dropped
+    // because the ring was full (or the recorder is closed).
+    public boolean record(int feature, long time, float value) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        long t;
+        int idx;
+        while (true) {
+            t = tail.get();
+            idx = (int) t & mask;
+            long seq = sequences.get(idx);
+            if (seq == t) {
+                if (tail.compareAndSet(t, t + 1))
+                    break;
+            } else if (seq < t) {
+                // The flusher hasn't freed this slot yet: we're full
+                dropped.incrementAndGet();
+                return false;
+            }
+            // Otherwise another producer got here first. Try again.
+        }
+
+        slotFeatures[idx] = feature;
+        slotTimes[idx] = time;
+        slotValues[idx] = value;
+        sequences.set(idx, t + 1); // Publish
+        recorded.incrementAndGet();
+
+        // Wake up the flusher when a batch is ready, and when the ring stops being empty (so that it starts counting
+        // the linger time). The linger timeout covers any wake-up we may miss.
+        long waiting = t + 1 - head;
+        if (waiting == batchSize || waiting == 1)
+            LockSupport.unpark(flusher);
+        return true;
+    }
+
+    private void flusherLoop() {
+        Sample[] batch = new Sample[batchSize];
+        long oldestWaitingSince = 0; // When did the oldest sample we haven't flushed show up (0 = none)
+
+        while (true) {
+            boolean closing = closed;
+            long now = System.nanoTime();
+
+            int available = (int) Math.min(tail.get() - head, Integer.MAX_VALUE);
+            if (available > 0 && oldestWaitingSince == 0)
+                oldestWaitingSince = now;
+
+            boolean lingerExpired = available > 0 && now - oldestWaitingSince >= lingerNanos;
+            while (available >= batchSize || (available > 0 && (lingerExpired || closing))) {
+                int n = take(batch, Math.min(available, batchSize));
+                if (n == 0)
+                    break; // A producer claimed a slot but hasn't published it yet
+                flush(batch, n);
+                available -= n;
+                oldestWaitingSince = available > 0 ? now : 0;
+            }
+
+            if (closing && tail.get() == head)
+                return;
+
+            // Producers only wake us up when the number of waiting samples hits batchSize exactly, and they may have
+            // missed it while we were flushing (head was behind). Never go to sleep with a full batch waiting.
+            if (tail.get() - head >= batchSize)
+                continue;
+
+            long wait = oldestWaitingSince == 0 ? lingerNanos : lingerNanos - (System.nanoTime() - oldestWaitingSince);
+            if (closing)
+                Thread.yield();
+            else if (wait > 0)
+                LockSupport.parkNanos(this, wait);
+        }
+    }
+
+    // Take up to max published samples out of the ring, in order
+    private int take(Sample[] batch, int max) {
+        long h = head;
+        int n = 0;
+        while (n < max) {
+            int idx = (int) h & mask;
+            if (sequences.get(idx) != h + 1)
+                break;
+            Feature f = features.get(slotFeatures[idx]);
+            batch[n++] = new Sample(new PreXTimestamp(new Date(slotTimes[idx])), f.getName(), f.getSrc(),
+                    slotValues[idx]);
+            sequences.set(idx, h + mask + 1); // Free the slot for the next lap
+            h++;
+        }
+        head = h;
+        return n;
+    }
+
+    private void flush(Sample[] batch, int n) {
+        Sample[] samples = new Sample[n];
+        System.arraycopy(batch, 0, samples, 0, n);
+        try {
+            callback.accept(samples);
+            flushed.addAndGet(n);
+            flushes.incrementAndGet();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            dropped.addAndGet(n);
+        }
+    }
+
+    // Stop accepting samples and wait until everything that was recorded has been flushed
+    public void close() {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public FeatureTable getFeatures() {
+        return features;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // Samples waiting to be flushed
+    public long getPending() {
+        return tail.get() - head;
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFlushed() {
+        return flushed.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SampleRecorder{" +
+                "batchSize=" + batchSize +
+                ", capacity=" + getCapacity() +
+                ", pending=" + getPending() +
+                ", recorded=" + recorded +
+                ", dropped=" + dropped +
+                ", flushed=" + flushed +
+                ", flushes=" + flushes +
+                '}';
+    }
+}
@@ -0,0 +1,195 @@
+package prex.common;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+// Rollups are summaries of the samples of every feature over fixed-size buckets (e.g. 1s, 10s, 1min), computed by the
+// coordinator as samples are written (see RollupManager in the coordinator). Each resolution is a separate series of
+// SampleSummary, so they have the same columns as SAMPLE_SUMMARY, with the bucket column holding the resolution.
+// Features from probes in summary mode are rolled up too, by merging their summaries into the bucket where they start.
+//
+// They are what's left of old samples once the raw ones are purged, and they let training read a few rows per window
+// instead of every sample in it, when the windows are large enough.
+//
+// The ROLLUP_RESOLUTION table remembers since when each resolution has been computed, as rollups are only complete
+// from that point on, and up to when its buckets have been written out. The buckets between that and where the next
+// run of the coordinator starts might be missing samples (it crashed with them still open), so they are recorded as a
+// gap in ROLLUP_GAP. Runs that cross a gap must be read from the raw samples.
+public class SampleRollup {
+
+    public static void createTables(Connection c) throws SQLException {
+        PreparedStatement s = c.prepareStatement("CREATE TABLE SAMPLE_ROLLUP (time TIMESTAMP, feature INT, bucket INT, n INT, mean DOUBLE, m2 DOUBLE, min FLOAT, max FLOAT, first_time TIMESTAMP, first_value FLOAT, last_time TIMESTAMP, last_value FLOAT, PRIMARY KEY (feature,bucket,time), FOREIGN KEY (feature) REFERENCES FEATURE(ID))");
+        s.executeUpdate();
+        s = c.prepareStatement("CREATE TABLE ROLLUP_RESOLUTION (bucket INT, since TIMESTAMP, written TIMESTAMP, PRIMARY KEY (bucket))");
+        s.executeUpdate();
+        s = c.prepareStatement("CREATE TABLE ROLLUP_GAP (bucket INT, start TIMESTAMP, finish TIMESTAMP, PRIMARY KEY (bucket,start))");
+        s.executeUpdate();
+    }
+
+    // Databases from before the gaps were recorded. Their rollups might be missing anything up to now (see
+    // RollupManager), which is what a null in the written column means.
+    public static void upgradeTables(Connection c) throws SQLException {
+        c.prepareStatement("CREATE TABLE IF NOT EXISTS ROLLUP_GAP (bucket INT, start TIMESTAMP, finish TIMESTAMP, PRIMARY KEY (bucket,start))").executeUpdate();
+        ResultSet resultSet = c.prepareStatement("SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'ROLLUP_RESOLUTION' AND COLUMN_NAME = 'WRITTEN'").executeQuery();
+        if (resultSet.next() && resultSet.getInt(1) == 0)
+            c.prepareStatement("ALTER TABLE ROLLUP_RESOLUTION ADD COLUMN WRITTEN TIMESTAMP").executeUpdate();
+        c.commit();
+    }
+
+    // Write many rollups at once, replacing the ones with the same <feature,resolution,start>. Like
+    // SampleSummary.insertBatch, returns the number written or -1 if the batch failed.
+    public static int insertBatch(Connection c, List<SampleSummary> rollups) {
+        try {
+            PreparedStatement s = c.prepareStatement("MERGE INTO SAMPLE_ROLLUP (time,feature,bucket,n,mean,m2,min,max,first_time,first_value,last_time,last_value) KEY (feature,bucket,time) VALUES (?,?,?,?,?,?,?,?,?,?,?,?)");
+            for (SampleSummary rollup : rollups) {
+                rollup.bind(s);
+                s.addBatch();
+            }
+
+            if (!rollups.isEmpty())
+                s.executeBatch();
+            c.commit();
+            return rollups.size();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                c.rollback();
+            } catch (SQLException e2) {
+                e2.printStackTrace();
+            }
+            return -1;
+        }
+    }
+
+    // The rollup of the feature for the bucket of the given resolution that starts at start, or null if there is none
+    public static SampleSummary fetch(Connection c, int featureId, int resolution, long start) {
+        try {
+            PreparedStatement s = c.prepareStatement("SELECT " + SampleSummary.COLUMNS + " FROM SAMPLE_ROLLUP s, FEATURE f WHERE s.feature = f.id AND s.feature = ? AND s.bucket = ? AND s.time = ?");
+            s.setInt(1, featureId);
+            s.setInt(2, resolution);
+            s.setTimestamp(3, new Timestamp(start));
+            ResultSet resultSet = s.executeQuery();
+            if (resultSet.next())
+                return SampleSummary.fromResultSet(resultSet);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // Since when the rollups of the given resolution have been computed. Records now if they are new.
+    public static long since(Connection c, int resolution, long now) {
+        try {
+            PreparedStatement s = c.prepareStatement("SELECT since FROM ROLLUP_RESOLUTION WHERE bucket = ?");
+            s.setInt(1, resolution);
+            ResultSet resultSet = s.executeQuery();
+            if (resultSet.next())
+                return resultSet.getTimestamp(1).getTime();
+
+            s = c.prepareStatement("INSERT INTO ROLLUP_RESOLUTION (bucket,since) VALUES (?,?)");
+            s.setInt(1, resolution);
+            s.setTimestamp(2, new Timestamp(now));
+            s.executeUpdate();
+            c.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return now;
+    }
+
+    // Up to when the buckets of the given resolution were written out, or -1 if that was never recorded
+    public static long written(Connection c, int resolution) {
+        try {
+            PreparedStatement s = c.prepareStatement("SELECT written FROM ROLLUP_RESOLUTION WHERE bucket = ?");
+            s.setInt(1, resolution);
+            ResultSet resultSet = s.executeQuery();
+            if (resultSet.next() && resultSet.getTimestamp(1) != null)
+                return resultSet.getTimestamp(1).getTime();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    public static boolean setWritten(Connection c, int resolution, long written) {
+        try {
+            PreparedStatement s = c.prepareStatement("UPDATE ROLLUP_RESOLUTION SET written = ? WHERE bucket = ?");
+            s.setTimestamp(1, new Timestamp(written));
+            s.setInt(2, resolution);
+            s.executeUpdate();
+            c.commit();
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Record that the rollups of the given resolution over [start, finish) might be incomplete
+    public static boolean insertGap(Connection c, int resolution, long start, long finish) {
+        try {
+            PreparedStatement s = c.prepareStatement("MERGE INTO ROLLUP_GAP (bucket,start,finish) KEY (bucket,start) VALUES (?,?,?)");
+            s.setInt(1, resolution);
+            s.setTimestamp(2, new Timestamp(start));
+            s.setTimestamp(3, new Timestamp(finish));
+            s.executeUpdate();
+            c.commit();
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // The gaps of the given resolution, as {start, finish} pairs, in order
+    public static List<long[]> gaps(Connection c, int resolution) {
+        ArrayList<long[]> gaps = new ArrayList<>();
+        try {
+            PreparedStatement s = c.prepareStatement("SELECT start, finish FROM ROLLUP_GAP WHERE bucket = ? ORDER BY start");
+            s.setInt(1, resolution);
+            ResultSet resultSet = s.executeQuery();
+            while (resultSet.next())
+                gaps.add(new long[] { resultSet.getTimestamp(1).getTime(), resultSet.getTimestamp(2).getTime() });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return gaps;
+    }
+
+    // Forget the gaps of the given resolution that end before the given time (their rollups are being purged)
+    public static int deleteGapsBefore(Connection c, int resolution, long before) {
+        try {
+            PreparedStatement s = c.prepareStatement("DELETE FROM ROLLUP_GAP WHERE bucket = ? AND finish < ?");
+            s.setInt(1, resolution);
+            s.setTimestamp(2, new Timestamp(before));
+            int n = s.executeUpdate();
+            c.commit();
+            return n;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    // Delete (up to limit) rollups of the given resolution that start before the given time. Returns how many
+    // were deleted, or -1 on failure.
+    public static int deleteBefore(Connection c, int resolution, long before, int limit) {
+        try {
+            PreparedStatement s = c.prepareStatement("DELETE FROM SAMPLE_ROLLUP WHERE bucket = ? AND time < ? LIMIT ?");
+            s.setInt(1, resolution);
+            s.setTimestamp(2, new Timestamp(before));
+            s.setInt(3, limit);
+            int n = s.executeUpdate();
+            c.commit();
+            return n;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+}
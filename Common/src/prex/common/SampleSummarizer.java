@@ -0,0 +1,178 @@
+package prex.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// The summary mode of a probe. Instead of sending every sample, the probe keeps one SampleSummary per feature for
+// the current time bucket (buckets are bucketMs long and aligned to the epoch, so every probe cuts time at the same
+// places) and only sends the summary once the bucket is over. A probe sampling every millisecond with 100ms buckets
+// sends one summary instead of 100 samples.
+//
+// Any number of threads can record. Each feature has its own lock, so threads sampling different features never
+// wait for each other. Features are indexes in a FeatureTable, so recording only allocates when a bucket is opened.
+// A background thread closes the buckets that are over (even if their feature hasn't been sampled since) and hands
+// them to the callback, all together.
+//
+// A sample that shows up late (older than the current bucket of its feature, e.g. a thread that was descheduled
+// between timestamping and recording it) is put in the current bucket, or in the next one if its own bucket has
+// already been sent. Buckets are never sent twice.
+//
+// Buckets should be much smaller than the windows (T) of the models that use these features: the coordinator puts
+// each bucket in the window where it starts.
+public class SampleSummarizer {
+    private final int bucketMs;
+    private final Consumer<SampleSummary[]> callback;
+
+    private final FeatureTable features;
+
+    // The open bucket of each feature, by index in the FeatureTable. Replaced when it grows
+    private volatile OpenBucket[] open = new OpenBucket[16];
+
+    // Buckets that are over and haven't been handed to the callback yet
+    private ArrayList<SampleSummary> closed = new ArrayList<>();
+
+    private final Thread flusher;
+    private volatile boolean stop = false;
+
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong summaries = new AtomicLong();
+
+    private static final class OpenBucket {
+        SampleSummary summary;
+        long closedUntil = 0; // End of the last bucket that was closed (0 if none)
+    }
+
+    public SampleSummarizer(String name, int bucketMs, Consumer<SampleSummary[]> callback) {
+        this(name, new FeatureTable(), bucketMs, callback);
+    }
+
+    public SampleSummarizer(String name, FeatureTable features, int bucketMs, Consumer<SampleSummary[]> callback) {
+        this.features = features;
+        this.bucketMs = Math.max(1, bucketMs);
+        this.callback = callback;
+
+        this.flusher = new Thread(this::flusherLoop, "prex-summary-flusher-" + name);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public void record(String name, String src, long time, float value) {
+        record(features.register(name, src), time, value);
+    }
+
+    // Record a sample of the feature with the given index in the FeatureTable
+    public void record(int feature, long time, float value) {
+        OpenBucket[] open = this.open;
+        OpenBucket b = feature < open.length ? open[feature] : null;
+        if (b == null)
+            b = bucket(feature);
+
+        synchronized (b) {
+            if (b.summary == null || time >= b.summary.getStart() + bucketMs) {
+                if (b.summary != null)
+                    close(b);
+                long start = Math.max(SampleSummary.bucketStart(time, bucketMs), b.closedUntil);
+                Feature f = features.get(feature);
+                b.summary = new SampleSummary(0, f.getName(), f.getSrc(), start, bucketMs);
+            }
+            b.summary.add(time, value);
+        }
+        samples.incrementAndGet();
+    }
+
+    public void record(Sample s) {
+        record(s.getName(), s.getSrc(), s.getTime().asMillis(), s.getValue());
+    }
+
+    private synchronized OpenBucket bucket(int feature) {
+        OpenBucket[] o = open;
+        if (feature >= o.length)
+            o = Arrays.copyOf(o, Math.max(o.length * 2, feature + 1));
+        if (o[feature] == null)
+            o[feature] = new OpenBucket();
+        open = o;
+        return o[feature];
+    }
+
+    // Must hold b's lock
+    private void close(OpenBucket b) {
+        b.closedUntil = b.summary.getStart() + bucketMs;
+        synchronized (this) {
+            closed.add(b.summary);
+        }
+        b.summary = null;
+    }
+
+    private void flusherLoop() {
+        while (!stop) {
+            try {
+                Thread.sleep(bucketMs);
+            } catch (InterruptedException e) {
+                // Closing
+            }
+            flush(System.currentTimeMillis());
+        }
+        flush(Long.MAX_VALUE);
+    }
+
+    // Close every bucket that ends at or before now and hand all closed buckets to the callback
+    private void flush(long now) {
+        for (OpenBucket b : open) {
+            if (b == null) continue;
+            synchronized (b) {
+                if (b.summary != null && b.summary.getStart() + bucketMs <= now)
+                    close(b);
+            }
+        }
+
+        ArrayList<SampleSummary> ready;
+        synchronized (this) {
+            if (closed.isEmpty())
+                return;
+            ready = closed;
+            closed = new ArrayList<>();
+        }
+
+        try {
+            callback.accept(ready.toArray(new SampleSummary[0]));
+            summaries.addAndGet(ready.size());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Close all buckets (including the ones that aren't over yet) and send them
+    public void close() {
+        stop = true;
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getBucketMs() {
+        return bucketMs;
+    }
+
+    public long getSamples() {
+        return samples.get();
+    }
+
+    public long getSummaries() {
+        return summaries.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SampleSummarizer{" +
+                "bucketMs=" + bucketMs +
+                ", samples=" + samples +
+                ", summaries=" + summaries +
+                ", features=" + features.size() +
+                '}';
+    }
+}
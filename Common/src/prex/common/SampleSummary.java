@@ -0,0 +1,302 @@
+package prex.common;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// A streaming summary of the samples of one feature (see Sample) within one time bucket [start, start + bucketMs).
+// It holds exactly what the time-window construction needs to compute the six summarized features of a window
+// (N, MEAN, STDDEV, MIN, MAX and DERIV, see SummarizedDataset) without keeping the samples themselves: a count, the
+// running mean and sum of squared differences (Welford's algorithm), the extremes, and the first and last samples.
+//
+// Summaries of the same feature can be merged, so a window made out of many small buckets (or of buckets and raw
+// samples) gives the same features as if all of its samples had been there. Probes in summary mode (see
+// SampleSummarizer) send these instead of raw samples, and the coordinator stores them in the SAMPLE_SUMMARY table.
+//
+// As with raw samples, a NaN value makes the MEAN and STDDEV NaN, but is skipped by MIN and MAX.
+public class SampleSummary implements Serializable {
+    private static final long serialVersionUID = -3861473907218346215L;
+
+    // Coordinator-wide ID of the <src,name> pair. 0 if unknown
+    private int featureId;
+    private String name;
+    private String src;
+
+    // The bucket. start is in epoch ms, and aligned to bucketMs
+    private long start;
+    private int bucketMs;
+
+    private int n = 0;
+    private double mean = 0;
+    private double m2 = 0; // Sum of squared differences from the mean
+    private float min = Float.POSITIVE_INFINITY;
+    private float max = Float.NEGATIVE_INFINITY;
+
+    // Earliest and latest samples (by time), for the derivative
+    private long firstTime, lastTime;
+    private float firstValue, lastValue;
+
+    public SampleSummary(int featureId, String name, String src, long start, int bucketMs) {
+        this.featureId = featureId;
+        this.name = name;
+        this.src = src;
+        this.start = start;
+        this.bucketMs = bucketMs;
+    }
+
+    // Everything, including the accumulated values. Used when decoding and when reading from the database.
+    public SampleSummary(int featureId, String name, String src, long start, int bucketMs, int n, double mean,
+                         double m2, float min, float max, long firstTime, float firstValue, long lastTime, float lastValue) {
+        this(featureId, name, src, start, bucketMs);
+        this.n = n;
+        this.mean = mean;
+        this.m2 = m2;
+        this.min = min;
+        this.max = max;
+        this.firstTime = firstTime;
+        this.firstValue = firstValue;
+        this.lastTime = lastTime;
+        this.lastValue = lastValue;
+    }
+
+    // The start of the bucket of the given size that contains time
+    public static long bucketStart(long time, int bucketMs) {
+        return time - Math.floorMod(time, (long) bucketMs);
+    }
+
+    public void add(long time, float value) {
+        n++;
+        double delta = value - mean;
+        mean += delta / n;
+        m2 += delta * (value - mean);
+
+        if (value < min) min = value;
+        if (value > max) max = value;
+
+        if (n == 1 || time < firstTime) {
+            firstTime = time;
+            firstValue = value;
+        }
+        if (n == 1 || time >= lastTime) {
+            lastTime = time;
+            lastValue = value;
+        }
+    }
+
+    public void add(Sample s) {
+        add(s.getTime().asMillis(), s.getValue());
+    }
+
+    // Fold another summary (of the same feature) into this one. This is Chan et al.'s parallel version of Welford's
+    // algorithm. The bucket of this summary is left as it is.
+    public void merge(SampleSummary o) {
+        if (o.n == 0)
+            return;
+        if (n == 0) {
+            n = o.n; mean = o.mean; m2 = o.m2; min = o.min; max = o.max;
+            firstTime = o.firstTime; firstValue = o.firstValue; lastTime = o.lastTime; lastValue = o.lastValue;
+            return;
+        }
+
+        int total = n + o.n;
+        double delta = o.mean - mean;
+        mean += delta * o.n / total;
+        m2 += o.m2 + delta * delta * ((double) n * o.n / total);
+        n = total;
+
+        if (o.min < min) min = o.min;
+        if (o.max > max) max = o.max;
+        if (o.firstTime < firstTime) {
+            firstTime = o.firstTime;
+            firstValue = o.firstValue;
+        }
+        if (o.lastTime >= lastTime) {
+            lastTime = o.lastTime;
+            lastValue = o.lastValue;
+        }
+    }
+
+    // The six summarized features, with the same conventions the time-window construction always had for raw samples
+
+    public float getMean() {
+        return n == 0 ? Float.NaN : (float) mean;
+    }
+
+    public float getStddev() {
+        return n < 2 ? Float.NaN : (float) Math.sqrt(m2 / (n - 1));
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public float getDeriv() {
+        if (n < 2) return -1; //FIXME: Maybe NaN?? (kept as it was for raw samples)
+        return (lastValue - firstValue) / (lastTime - firstTime);
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public static void createTables(Connection c) throws SQLException {
+        PreparedStatement s = c.prepareStatement("CREATE TABLE SAMPLE_SUMMARY (time TIMESTAMP, feature INT, bucket INT, n INT, mean DOUBLE, m2 DOUBLE, min FLOAT, max FLOAT, first_time TIMESTAMP, first_value FLOAT, last_time TIMESTAMP, last_value FLOAT, PRIMARY KEY (feature,time,bucket), FOREIGN KEY (feature) REFERENCES FEATURE(ID))");
+        s.executeUpdate();
+    }
+
+    // Insert many summaries at once, in one batch and one transaction, like Sample.insertBatch. The feature IDs must
+    // have been resolved already. Returns the number of summaries written, or -1 if the batch failed.
+    public static int insertBatch(Connection c, SampleSummary[] summaries) {
+        try {
+            PreparedStatement s = c.prepareStatement("MERGE INTO SAMPLE_SUMMARY (time,feature,bucket,n,mean,m2,min,max,first_time,first_value,last_time,last_value) KEY (feature,time,bucket) VALUES (?,?,?,?,?,?,?,?,?,?,?,?)");
+
+            int n = 0;
+            for (SampleSummary summary : summaries) {
+                if (summary == null) continue;
+                summary.bind(s);
+                s.addBatch();
+                n++;
+            }
+
+            if (n > 0)
+                s.executeBatch();
+            c.commit();
+            return n;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                c.rollback();
+            } catch (SQLException e2) {
+                e2.printStackTrace();
+            }
+            return -1;
+        }
+    }
+
+    // Binds this summary to a "MERGE ... (time,feature,bucket,...)" statement (see also SampleRollup)
+    void bind(PreparedStatement s) throws SQLException {
+        s.setTimestamp(1, new java.sql.Timestamp(start));
+        s.setInt(2, featureId);
+        s.setInt(3, bucketMs);
+        s.setInt(4, n);
+        s.setDouble(5, mean);
+        s.setDouble(6, m2);
+        s.setFloat(7, min);
+        s.setFloat(8, max);
+        s.setTimestamp(9, new java.sql.Timestamp(firstTime));
+        s.setFloat(10, firstValue);
+        s.setTimestamp(11, new java.sql.Timestamp(lastTime));
+        s.setFloat(12, lastValue);
+    }
+
+    // Delete (up to limit) summaries of buckets that start before the given time. Returns how many were deleted, or -1
+    public static int deleteBefore(Connection c, long before, int limit) {
+        try {
+            PreparedStatement s = c.prepareStatement("DELETE FROM SAMPLE_SUMMARY WHERE time < ? LIMIT ?");
+            s.setTimestamp(1, new java.sql.Timestamp(before));
+            s.setInt(2, limit);
+            int n = s.executeUpdate();
+            c.commit();
+            return n;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    // Columns that any query returning summaries must select, with s being SAMPLE_SUMMARY (or SAMPLE_ROLLUP) and f
+    // being FEATURE
+    public static final String COLUMNS = "s.time, s.bucket, s.n, s.mean, s.m2, s.min, s.max, s.first_time, s.first_value, s.last_time, s.last_value, f.id AS feature, f.name, f.src";
+
+    public static SampleSummary fromResultSet(ResultSet resultSet) throws SQLException {
+        return new SampleSummary(resultSet.getInt("feature"),
+                resultSet.getString("name"),
+                resultSet.getString("src"),
+                resultSet.getTimestamp("time").getTime(),
+                resultSet.getInt("bucket"),
+                resultSet.getInt("n"),
+                resultSet.getDouble("mean"),
+                resultSet.getDouble("m2"),
+                resultSet.getFloat("min"),
+                resultSet.getFloat("max"),
+                resultSet.getTimestamp("first_time").getTime(),
+                resultSet.getFloat("first_value"),
+                resultSet.getTimestamp("last_time").getTime(),
+                resultSet.getFloat("last_value"));
+    }
+
+    public String getId() {
+        return src + "-" + name;
+    }
+
+    public int getFeatureId() {
+        return featureId;
+    }
+
+    public void setFeatureId(int featureId) {
+        this.featureId = featureId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSrc() {
+        return src;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public int getBucketMs() {
+        return bucketMs;
+    }
+
+    public double getRawMean() {
+        return mean;
+    }
+
+    public double getM2() {
+        return m2;
+    }
+
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    public float getFirstValue() {
+        return firstValue;
+    }
+
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    public float getLastValue() {
+        return lastValue;
+    }
+
+    @Override
+    public String toString() {
+        return "SampleSummary{" +
+                "featureId=" + featureId +
+                ", name='" + name + '\'' +
+                ", src='" + src + '\'' +
+                ", start=" + start +
+                ", bucketMs=" + bucketMs +
+                ", n=" + n +
+                ", mean=" + getMean() +
+                ", stddev=" + getStddev() +
+                ", min=" + min +
+                ", max=" + max +
+                ", deriv=" + getDeriv() +
+                '}';
+    }
+}
@@ -0,0 +1,85 @@
+package prex.common.protocol;
+
+import java.io.*;
+import java.net.Socket;
+
+// The compact wire format. Every message is a frame made of a 4-byte length followed by the message encoded by
+// MessageCodec. Frames are encoded into a reusable buffer and written with a single write call.
+//
+// The length comes from the other end, so frames bigger than MAX_FRAME_SIZE (prex.protocol.maxFrame, 16MB by default)
+// are refused instead of being allocated. No real message comes anywhere near that.
+public class BinaryChannel implements MessageChannel {
+    public static final int MAX_FRAME_SIZE = Integer.getInteger("prex.protocol.maxFrame", 16 * 1024 * 1024);
+
+    private final Socket s;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    // Reusable encoding buffer (guarded by this)
+    private final ExposedByteArrayOutputStream frame = new ExposedByteArrayOutputStream(4096);
+    private final DataOutputStream frameOut = new DataOutputStream(frame);
+
+    private byte[] readBuffer = new byte[4096];
+
+    // Per-connection codec state (e.g. the feature dictionary)
+    private final MessageCodec codec;
+
+    public BinaryChannel(Socket s, InputStream in, MessageCodec codec) throws IOException {
+        this.s = s;
+        this.codec = codec;
+        this.in = new DataInputStream(in);
+        this.out = new BufferedOutputStream(s.getOutputStream(), 8192);
+    }
+
+    @Override
+    public Message read() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new IOException("Invalid frame length " + length);
+        if (length > readBuffer.length)
+            readBuffer = new byte[Math.min(Math.max(length, readBuffer.length * 2), MAX_FRAME_SIZE)];
+        in.readFully(readBuffer, 0, length);
+
+        return codec.decode(new DataInputStream(new ByteArrayInputStream(readBuffer, 0, length)));
+    }
+
+    @Override
+    public synchronized void write(Message m) throws IOException {
+        frame.reset();
+        frameOut.writeInt(0); // Length placeholder
+        codec.encode(m, frameOut);
+        frameOut.flush();
+        frame.putInt(0, frame.size() - 4);
+
+        out.write(frame.buffer(), 0, frame.size());
+        out.flush();
+    }
+
+    @Override
+    public boolean hasPending() throws IOException {
+        return in.available() > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        s.close();
+    }
+
+    // A ByteArrayOutputStream that lets us get to its buffer without copying it
+    static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void putInt(int pos, int v) {
+            buf[pos] = (byte) (v >>> 24);
+            buf[pos + 1] = (byte) (v >>> 16);
+            buf[pos + 2] = (byte) (v >>> 8);
+            buf[pos + 3] = (byte) v;
+        }
+    }
+}
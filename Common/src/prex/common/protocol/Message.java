@@ -8,6 +8,10 @@ import java.io.Serializable;
  * Created by jorl17 on 18/04/16.
  */
 public abstract class Message implements Serializable {
+    // Serial versions of everything that travels over legacy (Java serialization) connections are pinned to their
+    // original values, so that old clients keep working as these classes evolve.
+    private static final long serialVersionUID = -3845269810189838831L;
+
     private String src;
     private PreXTimestamp timestamp;
 
@@ -23,4 +27,9 @@ public abstract class Message implements Serializable {
     public PreXTimestamp getTimestamp() {
         return timestamp;
     }
+
+    // Used by MessageCodec to restore the original timestamp of a decoded message
+    void setTimestamp(PreXTimestamp timestamp) {
+        this.timestamp = timestamp;
+    }
 }
@@ -0,0 +1,17 @@
+package prex.common.protocol;
+
+import java.io.IOException;
+
+// A bidirectional, message-oriented connection between a client and the coordinator. There are two wire formats:
+// plain Java serialization (ObjectStreamChannel, what the very first clients spoke) and a compact, length-prefixed
+// binary format (BinaryChannel). Which one is used is negotiated when the connection is opened. See MessageChannels.
+//
+// Writes are thread-safe. Reads are not: only one thread should be reading from a channel at any given time.
+public interface MessageChannel extends MessageSink {
+
+    // Blocks until a whole message is available
+    Message read() throws IOException, ClassNotFoundException;
+
+    // Can read() return without blocking? (This may say false even if there are some bytes waiting)
+    boolean hasPending() throws IOException;
+}
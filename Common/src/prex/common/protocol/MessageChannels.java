@@ -0,0 +1,72 @@
+package prex.common.protocol;
+
+import java.io.*;
+import java.net.Socket;
+
+// Opens MessageChannels on both ends of a connection and negotiates the wire format.
+//
+// A binary client starts by sending MAGIC followed by the highest protocol version it speaks. The coordinator answers
+// with MAGIC and the version that will be used. Legacy clients just start an ObjectOutputStream, whose header always
+// begins with 0xACED, so the coordinator only needs to peek at the first two bytes to know which one it's talking to.
+// This keeps old clients working against new coordinators. New clients can be told to speak the legacy format (e.g.
+// to talk to an old coordinator) by setting the prex.protocol system property to "legacy".
+//
+// Versions:
+//    1: the first binary format
+//    2: sample buffers are compressed (see GorillaCodec), and probes can send sample summaries
+public class MessageChannels {
+    public static final int MAGIC = 0x50524558; // "PREX"
+    public static final byte VERSION = 2;
+
+    private static final int STREAM_MAGIC_HI = 0xAC, STREAM_MAGIC_LO = 0xED;
+
+    public static boolean binaryByDefault() {
+        return !"legacy".equalsIgnoreCase(System.getProperty("prex.protocol", "binary"));
+    }
+
+    // Client side
+    public static MessageChannel connect(Socket s, boolean binary) throws IOException {
+        if (!binary)
+            return new ObjectStreamChannel(s, s.getInputStream(), true);
+
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.flush();
+
+        InputStream in = new BufferedInputStream(s.getInputStream(), 8192);
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != MAGIC)
+            throw new IOException("The coordinator does not speak the binary protocol");
+        byte version = din.readByte();
+        if (version < 1 || version > VERSION)
+            throw new IOException("Unsupported protocol version " + version);
+
+        return new BinaryChannel(s, in, new MessageCodec(null, version));
+    }
+
+    // Coordinator side. The resolver gives coordinator-wide IDs to the features received through binary channels.
+    public static MessageChannel accept(Socket s, MessageCodec.FeatureResolver resolver) throws IOException {
+        InputStream in = new BufferedInputStream(s.getInputStream(), 8192);
+        in.mark(2);
+        int b0 = in.read(), b1 = in.read();
+        in.reset();
+        if (b0 < 0 || b1 < 0)
+            throw new EOFException();
+
+        if (b0 == STREAM_MAGIC_HI && b1 == STREAM_MAGIC_LO)
+            return new ObjectStreamChannel(s, in, false);
+
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != MAGIC)
+            throw new IOException("Unknown protocol");
+        byte version = (byte) Math.min(din.readByte(), VERSION);
+
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        out.writeInt(MAGIC);
+        out.writeByte(version);
+        out.flush();
+
+        return new BinaryChannel(s, in, new MessageCodec(resolver, version));
+    }
+}
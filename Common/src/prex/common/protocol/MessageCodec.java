@@ -0,0 +1,550 @@
+package prex.common.protocol;
+
+import prex.common.*;
+import prex.common.protocol.messages.*;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Hand-written encoders and decoders for every message type, used by the binary wire format (see BinaryChannel).
+//
+// Every message starts with a one byte type tag, followed by the fields common to all messages (src and timestamp)
+// and then by the fields of that particular message. Strings that might be null are prefixed by a boolean.
+//
+// Sample buffers are by far the most common message, so they get special treatment. Each codec instance belongs to
+// one connection and keeps a dictionary of the <name,src> pairs it has already sent (or received). The first time a
+// feature is sent, its definition goes along with the samples and it gets the next connection ID. From then on, its
+// samples only carry that small integer. Each sample is therefore a varint feature ID, a zig-zag varint time delta
+// (relative to the previous sample) and the raw float value: about 6-7 bytes for a probe sampling at a regular
+// interval.
+//
+// From protocol version 2 on, sample buffers are compressed instead (see GorillaCodec): the samples are grouped by
+// feature, and each feature's samples become a series with delta-of-delta timestamps and XORed values. A probe
+// sampling at a regular interval a value that changes slowly needs 2 to 20 bits per sample. Samples of the same
+// feature keep their order, but samples of different features don't (they come out grouped by feature).
+//
+// On the coordinator, the FeatureResolver maps each connection ID to the coordinator-wide feature ID once,
+// so decoded samples arrive with their feature ID already set. Sample summaries (from probes in summary mode) use the
+// same dictionary.
+//
+// Messages about predictions also carry the stream (a Try block of a multiplexed PrexClient) they belong to.
+//
+// Encoding and decoding are independent (a channel writes from many threads but reads from one), but each one must
+// be serialized.
+//
+// If you add a new Message subclass, you MUST add it here too.
+public class MessageCodec {
+    // Maps a <name,src> pair to a coordinator-wide feature ID (see FeatureCatalog)
+    public interface FeatureResolver {
+        int featureId(String name, String src);
+    }
+
+    private static final byte BUFFERED_SAMPLES = 1;
+    private static final byte RECORDED_EXCEPTION = 2;
+    private static final byte START_LISTENING = 3;
+    private static final byte STOP_LISTENING = 4;
+    private static final byte EXCEPTION_PREDICTION_STATE = 5;
+    private static final byte YES_NO = 6;
+    private static final byte SET_RUNNING = 7;
+    private static final byte ADD_REMOVE_IDS = 8;
+    private static final byte TRAIN = 9;
+    private static final byte GOODBYE = 10;
+    private static final byte BACKPRESSURE = 11;
+    private static final byte SUMMARIZED_SAMPLES = 12;
+    private static final byte EXPORT_RUN = 13;
+    private static final byte IMPORT_RUN = 14;
+
+    // Encoding side: <sample-id, connection feature ID>
+    private final HashMap<String, Integer> sentFeatures = new HashMap<>();
+
+    // Decoding side: connection feature ID -> feature (with its coordinator-wide ID, if there is a resolver)
+    private final ArrayList<Feature> receivedFeatures = new ArrayList<>();
+    private final FeatureResolver resolver;
+
+    // Protocol version agreed with the other end (see MessageChannels)
+    private final byte version;
+
+    // Reusable buffer for compressed sample series (encoding side)
+    private final GorillaCodec.BitWriter bits = new GorillaCodec.BitWriter(1024);
+
+    public MessageCodec() {
+        this(null);
+    }
+
+    public MessageCodec(FeatureResolver resolver) {
+        this(resolver, MessageChannels.VERSION);
+    }
+
+    public MessageCodec(FeatureResolver resolver, byte version) {
+        this.resolver = resolver;
+        this.version = version;
+    }
+
+    public void encode(Message m, DataOutput out) throws IOException {
+        if (m instanceof BufferedSamplesMessage) {
+            header(out, BUFFERED_SAMPLES, m);
+            if (version >= 2)
+                writeCompressedSamples(out, ((BufferedSamplesMessage) m).getBuffer().getSamples());
+            else
+                writeSamples(out, ((BufferedSamplesMessage) m).getBuffer().getSamples());
+        } else if (m instanceof RecordedExceptionMessage) {
+            header(out, RECORDED_EXCEPTION, m);
+            RecordedException e = ((RecordedExceptionMessage) m).getException();
+            writeException(out, e);
+            writeContext(out, e.getContext());
+        } else if (m instanceof StartListeningToPredictionsMessage) {
+            header(out, START_LISTENING, m);
+            writeException(out, ((StartListeningToPredictionsMessage) m).getException());
+            writeContext(out, ((StartListeningToPredictionsMessage) m).getContext());
+            writeVarInt(out, ((StartListeningToPredictionsMessage) m).getStream());
+        } else if (m instanceof StopListeningToPredictionsMessage) {
+            header(out, STOP_LISTENING, m);
+            writeException(out, ((StopListeningToPredictionsMessage) m).getException());
+            writeContext(out, ((StopListeningToPredictionsMessage) m).getContext());
+            writeVarInt(out, ((StopListeningToPredictionsMessage) m).getStream());
+        } else if (m instanceof ExceptionPredictionStateMessage) {
+            header(out, EXCEPTION_PREDICTION_STATE, m);
+            writeException(out, ((ExceptionPredictionStateMessage) m).getException());
+            out.writeBoolean(((ExceptionPredictionStateMessage) m).getState());
+            writeVarInt(out, ((ExceptionPredictionStateMessage) m).getStream());
+        } else if (m instanceof YesNoMessage) {
+            header(out, YES_NO, m);
+            out.writeBoolean(((YesNoMessage) m).yes());
+            writeVarInt(out, ((YesNoMessage) m).getStream());
+        } else if (m instanceof SetRunningMessage) {
+            header(out, SET_RUNNING, m);
+            out.writeBoolean(((SetRunningMessage) m).getRunning());
+        } else if (m instanceof AddRemovePredictionContextSampleIDsMessage) {
+            header(out, ADD_REMOVE_IDS, m);
+            AddRemovePredictionContextSampleIDsMessage a = (AddRemovePredictionContextSampleIDsMessage) m;
+            writeContext(out, a.getContext());
+            writeVarInt(out, a.getIds().length);
+            for (String[] id : a.getIds()) {
+                writeString(out, id[0]);
+                writeString(out, id[1]);
+            }
+            out.writeBoolean(a.isAdd());
+        } else if (m instanceof TrainMessage) {
+            header(out, TRAIN, m);
+            TrainMessage t = (TrainMessage) m;
+            writeContext(out, t.getContext());
+            writeException(out, t.getException());
+            writeIntArray(out, t.getT());
+            writeIntArray(out, t.getK());
+        } else if (m instanceof GoodbyeMessage) {
+            header(out, GOODBYE, m);
+        } else if (m instanceof BackpressureMessage) {
+            header(out, BACKPRESSURE, m);
+            writeVarInt(out, ((BackpressureMessage) m).getRejectedSamples());
+        } else if (m instanceof SummarizedSamplesMessage) {
+            header(out, SUMMARIZED_SAMPLES, m);
+            writeSummaries(out, ((SummarizedSamplesMessage) m).getSummaries());
+        } else if (m instanceof ExportRunMessage) {
+            header(out, EXPORT_RUN, m);
+            writeVarInt(out, ((ExportRunMessage) m).getRun());
+            writeString(out, ((ExportRunMessage) m).getPath());
+        } else if (m instanceof ImportRunMessage) {
+            header(out, IMPORT_RUN, m);
+            writeString(out, ((ImportRunMessage) m).getPath());
+        } else
+            throw new IOException("Don't know how to encode " + m.getClass().getName());
+    }
+
+    // The input must hold one whole frame, in memory: counts sent by the peer are checked against available() before
+    // anything gets allocated for them.
+    public Message decode(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String src = readString(in);
+        PreXTimestamp timestamp = readTimestamp(in);
+
+        Message m;
+        switch (type) {
+            case BUFFERED_SAMPLES:
+                m = new BufferedSamplesMessage(src, new SampleBuffer(version >= 2 ? readCompressedSamples(in) : readSamples(in)));
+                break;
+            case RECORDED_EXCEPTION: {
+                PreXException e = readException(in);
+                m = new RecordedExceptionMessage(src, new RecordedException(e.getTime(), e.getExceptionClass(), readContext(in)));
+                break;
+            }
+            case START_LISTENING:
+                m = new StartListeningToPredictionsMessage(src, readException(in), readContext(in), readVarInt(in));
+                break;
+            case STOP_LISTENING:
+                m = new StopListeningToPredictionsMessage(src, readException(in), readContext(in), readVarInt(in));
+                break;
+            case EXCEPTION_PREDICTION_STATE:
+                m = new ExceptionPredictionStateMessage(src, readException(in), in.readBoolean(), readVarInt(in));
+                break;
+            case YES_NO:
+                m = new YesNoMessage(src, in.readBoolean(), readVarInt(in));
+                break;
+            case SET_RUNNING:
+                m = new SetRunningMessage(src, in.readBoolean());
+                break;
+            case ADD_REMOVE_IDS: {
+                PredictionContext ctx = readContext(in);
+                String[][] ids = new String[readCount(in, 2)][];
+                for (int i = 0; i < ids.length; i++)
+                    ids[i] = new String[]{readString(in), readString(in)};
+                m = new AddRemovePredictionContextSampleIDsMessage(src, ctx, ids, in.readBoolean());
+                break;
+            }
+            case TRAIN: {
+                PredictionContext ctx = readContext(in);
+                PreXException e = readException(in);
+                int[] T = readIntArray(in);
+                int[] k = readIntArray(in);
+                m = new TrainMessage(src, T, k, ctx, e);
+                break;
+            }
+            case GOODBYE:
+                m = new GoodbyeMessage(src);
+                break;
+            case BACKPRESSURE:
+                m = new BackpressureMessage(src, readVarInt(in));
+                break;
+            case SUMMARIZED_SAMPLES:
+                m = new SummarizedSamplesMessage(src, readSummaries(in));
+                break;
+            case EXPORT_RUN:
+                m = new ExportRunMessage(src, readVarInt(in), readString(in));
+                break;
+            case IMPORT_RUN:
+                m = new ImportRunMessage(src, readString(in));
+                break;
+            default:
+                throw new IOException("Unknown message type " + type);
+        }
+
+        m.setTimestamp(timestamp);
+        return m;
+    }
+
+    private static void header(DataOutput out, byte type, Message m) throws IOException {
+        out.writeByte(type);
+        writeString(out, m.getSrc());
+        writeTimestamp(out, m.getTimestamp());
+    }
+
+    private void writeSamples(DataOutput out, Sample[] samples) throws IOException {
+        // Features never sent on this connection get defined first
+        ArrayList<String[]> newFeatures = new ArrayList<>();
+        int n = 0;
+        for (Sample s : samples) {
+            if (s == null) continue;
+            n++;
+            define(s.getId(), s.getName(), s.getSrc(), newFeatures);
+        }
+        writeDefinitions(out, newFeatures);
+
+        writeVarInt(out, n);
+        long previous = 0;
+        for (Sample s : samples) {
+            if (s == null) continue;
+            long time = s.getTime().asMillis();
+            writeVarInt(out, sentFeatures.get(s.getId()));
+            writeVarLong(out, zigZag(time - previous));
+            out.writeFloat(s.getValue());
+            previous = time;
+        }
+    }
+
+    private Sample[] readSamples(DataInputStream in) throws IOException {
+        readDefinitions(in);
+
+        Sample[] samples = new Sample[readCount(in, 6)];
+        long previous = 0;
+        for (int i = 0; i < samples.length; i++) {
+            Feature f = receivedFeature(readVarInt(in));
+            long time = previous + unZigZag(readVarLong(in));
+            samples[i] = new Sample(new PreXTimestamp(new Date(time)), f.getId(), f.getName(), f.getSrc(), in.readFloat());
+            previous = time;
+        }
+        return samples;
+    }
+
+    // The samples of each feature form a series. Every series is its feature, its number of samples and its first
+    // timestamp (a delta from the previous series' first timestamp). Then come the bits of all series, one after the
+    // other.
+    private void writeCompressedSamples(DataOutput out, Sample[] samples) throws IOException {
+        ArrayList<String[]> newFeatures = new ArrayList<>();
+        LinkedHashMap<Integer, ArrayList<Sample>> series = new LinkedHashMap<>();
+        for (Sample s : samples) {
+            if (s == null) continue;
+            define(s.getId(), s.getName(), s.getSrc(), newFeatures);
+            series.computeIfAbsent(sentFeatures.get(s.getId()), (k) -> new ArrayList<>()).add(s);
+        }
+        writeDefinitions(out, newFeatures);
+
+        writeVarInt(out, series.size());
+        bits.reset();
+        long previous = 0;
+        for (Map.Entry<Integer, ArrayList<Sample>> e : series.entrySet()) {
+            ArrayList<Sample> l = e.getValue();
+            long first = l.get(0).getTime().asMillis();
+            writeVarInt(out, e.getKey());
+            writeVarInt(out, l.size());
+            writeVarLong(out, zigZag(first - previous));
+            previous = first;
+
+            GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(bits, first);
+            for (Sample s : l)
+                encoder.add(s.getTime().asMillis(), s.getValue());
+        }
+        bits.flush();
+
+        writeVarInt(out, bits.size());
+        out.write(bits.buffer(), 0, bits.size());
+    }
+
+    private Sample[] readCompressedSamples(DataInputStream in) throws IOException {
+        readDefinitions(in);
+
+        int numSeries = readCount(in, 3);
+        Feature[] features = new Feature[numSeries];
+        int[] counts = new int[numSeries];
+        long[] firsts = new long[numSeries];
+        long total = 0;
+        long previous = 0;
+        for (int i = 0; i < numSeries; i++) {
+            features[i] = receivedFeature(readVarInt(in));
+            counts[i] = readVarInt(in);
+            if (counts[i] < 0)
+                throw new IOException("Invalid series length " + counts[i]);
+            firsts[i] = previous + unZigZag(readVarLong(in));
+            previous = firsts[i];
+            total += counts[i];
+        }
+
+        // Every sample takes at least 2 bits, so the counts can't add up to more than 4 samples per byte. This also
+        // keeps a peer from making us allocate more than the frame it sent could possibly describe.
+        byte[] buffer = new byte[readCount(in, 1)];
+        if (total > 4L * buffer.length)
+            throw new IOException(total + " samples can't fit in " + buffer.length + " bytes");
+        in.readFully(buffer);
+        GorillaCodec.BitReader reader = new GorillaCodec.BitReader(buffer, 0, buffer.length);
+
+        Sample[] samples = new Sample[(int) total];
+        int n = 0;
+        try {
+            for (int i = 0; i < numSeries; i++) {
+                GorillaCodec.Decoder decoder = new GorillaCodec.Decoder(reader, firsts[i]);
+                for (int j = 0; j < counts[i]; j++) {
+                    decoder.next();
+                    samples[n++] = new Sample(new PreXTimestamp(new Date(decoder.getTime())), features[i].getId(),
+                            features[i].getName(), features[i].getSrc(), decoder.getValue());
+                }
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Truncated sample series", e);
+        }
+        return samples;
+    }
+
+    // Each summary is its feature, its bucket (start as a delta, like sample times) and the accumulated values.
+    // The times of the first and last samples are relative to the start of the bucket.
+    private void writeSummaries(DataOutput out, SampleSummary[] summaries) throws IOException {
+        ArrayList<String[]> newFeatures = new ArrayList<>();
+        int n = 0;
+        for (SampleSummary s : summaries) {
+            if (s == null) continue;
+            n++;
+            define(s.getId(), s.getName(), s.getSrc(), newFeatures);
+        }
+        writeDefinitions(out, newFeatures);
+
+        writeVarInt(out, n);
+        long previous = 0;
+        for (SampleSummary s : summaries) {
+            if (s == null) continue;
+            writeVarInt(out, sentFeatures.get(s.getId()));
+            writeVarLong(out, zigZag(s.getStart() - previous));
+            writeVarInt(out, s.getBucketMs());
+            writeVarInt(out, s.getN());
+            out.writeDouble(s.getRawMean());
+            out.writeDouble(s.getM2());
+            out.writeFloat(s.getMin());
+            out.writeFloat(s.getMax());
+            writeVarLong(out, zigZag(s.getFirstTime() - s.getStart()));
+            out.writeFloat(s.getFirstValue());
+            writeVarLong(out, zigZag(s.getLastTime() - s.getStart()));
+            out.writeFloat(s.getLastValue());
+            previous = s.getStart();
+        }
+    }
+
+    private SampleSummary[] readSummaries(DataInputStream in) throws IOException {
+        readDefinitions(in);
+
+        SampleSummary[] summaries = new SampleSummary[readCount(in, 38)];
+        long previous = 0;
+        for (int i = 0; i < summaries.length; i++) {
+            Feature f = receivedFeature(readVarInt(in));
+            long start = previous + unZigZag(readVarLong(in));
+            int bucketMs = readVarInt(in);
+            int n = readVarInt(in);
+            double mean = in.readDouble(), m2 = in.readDouble();
+            float min = in.readFloat(), max = in.readFloat();
+            long firstTime = start + unZigZag(readVarLong(in));
+            float firstValue = in.readFloat();
+            long lastTime = start + unZigZag(readVarLong(in));
+            float lastValue = in.readFloat();
+            summaries[i] = new SampleSummary(f.getId(), f.getName(), f.getSrc(), start, bucketMs, n, mean, m2, min, max,
+                    firstTime, firstValue, lastTime, lastValue);
+            previous = start;
+        }
+        return summaries;
+    }
+
+    // Give the feature the next connection ID if it has never been sent on this connection
+    private void define(String id, String name, String src, ArrayList<String[]> newFeatures) {
+        if (!sentFeatures.containsKey(id)) {
+            sentFeatures.put(id, sentFeatures.size());
+            newFeatures.add(new String[] { name, src });
+        }
+    }
+
+    private static void writeDefinitions(DataOutput out, ArrayList<String[]> newFeatures) throws IOException {
+        writeVarInt(out, newFeatures.size());
+        for (String[] f : newFeatures) {
+            writeString(out, f[0]);
+            writeString(out, f[1]);
+        }
+    }
+
+    private void readDefinitions(DataInputStream in) throws IOException {
+        int newFeatures = readCount(in, 2);
+        for (int i = 0; i < newFeatures; i++) {
+            String name = readString(in), src = readString(in);
+            receivedFeatures.add(new Feature(resolver != null ? resolver.featureId(name, src) : 0, name, src));
+        }
+    }
+
+    private Feature receivedFeature(int connectionId) throws IOException {
+        if (connectionId >= receivedFeatures.size())
+            throw new IOException("Unknown feature " + connectionId);
+        return receivedFeatures.get(connectionId);
+    }
+
+    private static void writeException(DataOutput out, PreXException e) throws IOException {
+        out.writeBoolean(e != null);
+        if (e == null) return;
+        writeString(out, e.getExceptionClass());
+        writeTimestamp(out, e.getTime());
+    }
+
+    private static PreXException readException(DataInput in) throws IOException {
+        if (!in.readBoolean()) return null;
+        String exceptionClass = readString(in);
+        return new PreXException(readTimestamp(in), exceptionClass);
+    }
+
+    private static void writeContext(DataOutput out, PredictionContext ctx) throws IOException {
+        out.writeBoolean(ctx != null);
+        if (ctx == null) return;
+        writeString(out, ctx.getName());
+        ArrayList<String[]> ids = ctx.getIDs();
+        writeVarInt(out, ids == null ? 0 : ids.size());
+        if (ids != null)
+            for (String[] id : ids) {
+                writeString(out, id[0]);
+                writeString(out, id[1]);
+            }
+    }
+
+    private static PredictionContext readContext(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        String name = readString(in);
+        int n = readCount(in, 2);
+        ArrayList<String[]> ids = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            ids.add(new String[]{readString(in), readString(in)});
+        return new PredictionContext(name, ids);
+    }
+
+    private static void writeTimestamp(DataOutput out, PreXTimestamp t) throws IOException {
+        out.writeBoolean(t != null);
+        if (t != null)
+            out.writeLong(t.asMillis());
+    }
+
+    private static PreXTimestamp readTimestamp(DataInput in) throws IOException {
+        return in.readBoolean() ? new PreXTimestamp(new Date(in.readLong())) : null;
+    }
+
+    private static void writeIntArray(DataOutput out, int[] a) throws IOException {
+        writeVarInt(out, a.length);
+        for (int v : a)
+            out.writeInt(v);
+    }
+
+    private static int[] readIntArray(DataInputStream in) throws IOException {
+        int[] a = new int[readCount(in, 4)];
+        for (int i = 0; i < a.length; i++)
+            a[i] = in.readInt();
+        return a;
+    }
+
+    // How many of something the peer is sending, when each one takes at least minBytes on the wire. A count that
+    // can't possibly fit in what's left of the frame is garbage (or malice), and must not get as far as new T[n].
+    private static int readCount(DataInputStream in, int minBytes) throws IOException {
+        int n = readVarInt(in);
+        if (n < 0 || (long) n * minBytes > in.available())
+            throw new IOException("Invalid count " + n);
+        return n;
+    }
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // Unsigned LEB128 varints
+    public static void writeVarInt(DataOutput out, int v) throws IOException {
+        writeVarLong(out, v & 0xFFFFFFFFL);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    public static void writeVarLong(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    public static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,14 @@
+package prex.common.protocol;
+
+import java.io.IOException;
+
+// The sending half of a connection. This is all a coordinator session needs to talk back to its client: how the
+// client's messages get read depends on the front-end (a thread blocking on a MessageChannel, or an event loop).
+//
+// Writes are thread-safe.
+public interface MessageSink {
+
+    void write(Message m) throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,52 @@
+package prex.common.protocol;
+
+import java.io.*;
+import java.net.Socket;
+
+// The original wire format: every message is written with an ObjectOutputStream. We reset the stream before every
+// write, otherwise it wouldn't pick up changes to objects that were already written (e.g. the same SampleBuffer).
+// Writes are buffered and flushed once per message: the ObjectOutputStream on its own sends each message in several
+// small writes, and Nagle's algorithm then delays every request/reply round trip by tens of milliseconds.
+public class ObjectStreamChannel implements MessageChannel {
+    private final Socket s;
+    private final InputStream rawIn;
+    private final ObjectOutputStream outStream;
+    private final ObjectInputStream inStream;
+
+    // Note that the input stream is given separately, since the coordinator may already have peeked at its first bytes
+    public ObjectStreamChannel(Socket s, InputStream in, boolean writeHeaderFirst) throws IOException {
+        this.s = s;
+        this.rawIn = in;
+        if (writeHeaderFirst) {
+            outStream = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream(), 8192));
+            outStream.flush();
+            inStream = new ObjectInputStream(in);
+        } else {
+            inStream = new ObjectInputStream(in);
+            outStream = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream(), 8192));
+            outStream.flush();
+        }
+    }
+
+    @Override
+    public Message read() throws IOException, ClassNotFoundException {
+        return (Message) inStream.readObject();
+    }
+
+    @Override
+    public synchronized void write(Message m) throws IOException {
+        outStream.reset(); // Just in case...
+        outStream.writeObject(m);
+        outStream.flush();
+    }
+
+    @Override
+    public boolean hasPending() throws IOException {
+        return inStream.available() > 0 || rawIn.available() > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        s.close();
+    }
+}
@@ -0,0 +1,25 @@
+package prex.common.protocol.messages;
+
+import prex.common.protocol.Message;
+
+// Sent by the coordinator when it had to throw away samples because it can't write them fast enough. Clients should
+// take this as a hint to sample less often or buffer more samples per message.
+public class BackpressureMessage extends Message {
+    private int rejectedSamples;
+
+    public BackpressureMessage(String src, int rejectedSamples) {
+        super(src);
+        this.rejectedSamples = rejectedSamples;
+    }
+
+    public int getRejectedSamples() {
+        return rejectedSamples;
+    }
+
+    @Override
+    public String toString() {
+        return "BackpressureMessage{" +
+                "rejectedSamples=" + rejectedSamples +
+                '}';
+    }
+}
@@ -4,8 +4,11 @@ import prex.common.PreXException;
 import prex.common.protocol.Message;
 
 public class ExceptionPredictionStateMessage extends Message {
+    private static final long serialVersionUID = 2626729312511473113L; // Pinned, see Message
+
     private PreXException exception;
     private boolean state;
+    private int stream; // The client-side stream whose prediction this is
 
     public ExceptionPredictionStateMessage(String src, PreXException exception, boolean state) {
         super(src);
@@ -13,6 +16,11 @@ public class ExceptionPredictionStateMessage extends Message {
         this.state = state;
     }
 
+    public ExceptionPredictionStateMessage(String src, PreXException exception, boolean state, int stream) {
+        this(src, exception, state);
+        this.stream = stream;
+    }
+
     public boolean getState() {
         return state;
     }
@@ -21,11 +29,16 @@ public class ExceptionPredictionStateMessage extends Message {
         return exception;
     }
 
+    public int getStream() {
+        return stream;
+    }
+
     @Override
     public String toString() {
         return "ExceptionPredictionStateMessage{" +
                 "exception=" + exception +
                 ", state=" + state +
+                ", stream=" + stream +
                 '}';
     }
 }
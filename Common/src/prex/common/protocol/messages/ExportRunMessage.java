@@ -0,0 +1,23 @@
+package prex.common.protocol.messages;
+
+import prex.common.protocol.Message;
+
+// Asks the coordinator to export a run to a file in the coordinator's archive directory, see RunArchive
+public class ExportRunMessage extends Message {
+    private int run;
+    private String path;
+
+    public ExportRunMessage(String src, int run, String path) {
+        super(src);
+        this.run = run;
+        this.path = path;
+    }
+
+    public int getRun() {
+        return run;
+    }
+
+    public String getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,17 @@
+package prex.common.protocol.messages;
+
+import prex.common.protocol.Message;
+
+// Asks the coordinator to import a run from a file in the coordinator's archive directory exported by ExportRunMessage
+public class ImportRunMessage extends Message {
+    private String path;
+
+    public ImportRunMessage(String src, String path) {
+        super(src);
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+}
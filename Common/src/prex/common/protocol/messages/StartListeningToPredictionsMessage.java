@@ -8,8 +8,11 @@ import prex.common.protocol.Message;
  * Created by jorl17 on 02/06/16.
  */
 public class StartListeningToPredictionsMessage extends Message {
+    private static final long serialVersionUID = -7412119247742302458L; // Pinned, see Message
+
     private PreXException exception; // The exception we want to predict
     private PredictionContext context; // The prediction context of the exception we want to predict
+    private int stream; // The client-side stream (Try block) this is about. 0 is the connection's default stream
 
     public StartListeningToPredictionsMessage(String src, PreXException exception, PredictionContext context) {
         super(src);
@@ -17,6 +20,11 @@ public class StartListeningToPredictionsMessage extends Message {
         this.context = context;
     }
 
+    public StartListeningToPredictionsMessage(String src, PreXException exception, PredictionContext context, int stream) {
+        this(src, exception, context);
+        this.stream = stream;
+    }
+
     public PreXException getException() {
         return exception;
     }
@@ -32,4 +40,8 @@ public class StartListeningToPredictionsMessage extends Message {
     public void setContext(PredictionContext context) {
         this.context = context;
     }
+
+    public int getStream() {
+        return stream;
+    }
 }
@@ -0,0 +1,28 @@
+package prex.common.protocol.messages;
+
+import prex.common.SampleSummary;
+import prex.common.protocol.Message;
+
+import java.util.Arrays;
+
+// Sent by probes in summary mode (see SampleSummarizer) instead of BufferedSamplesMessages: one summary per feature
+// and time bucket.
+public class SummarizedSamplesMessage extends Message {
+    private SampleSummary[] summaries;
+
+    public SummarizedSamplesMessage(String src, SampleSummary[] summaries) {
+        super(src);
+        this.summaries = summaries;
+    }
+
+    public SampleSummary[] getSummaries() {
+        return summaries;
+    }
+
+    @Override
+    public String toString() {
+        return "SummarizedSamplesMessage{" +
+                "summaries=" + Arrays.toString(summaries) +
+                '}';
+    }
+}
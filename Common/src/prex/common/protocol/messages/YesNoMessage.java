@@ -6,13 +6,21 @@ import prex.common.protocol.Message;
  * Created by jorl17 on 15/06/16.
  */
 public class YesNoMessage extends Message {
+    private static final long serialVersionUID = -3264923742198124142L; // Pinned, see Message
+
     private boolean yes;
+    private int stream; // When this is a reply to a stream's request, the stream it is meant for
 
     public YesNoMessage(String src, boolean yes) {
         super(src);
         this.yes = yes;
     }
 
+    public YesNoMessage(String src, boolean yes, int stream) {
+        this(src, yes);
+        this.stream = stream;
+    }
+
     public boolean yes() {
         return yes;
     }
@@ -20,4 +28,8 @@ public class YesNoMessage extends Message {
     public boolean no() {
         return !yes();
     }
+
+    public int getStream() {
+        return stream;
+    }
 }
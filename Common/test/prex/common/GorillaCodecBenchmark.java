@@ -0,0 +1,94 @@
+package prex.common;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// How well, and how fast, series of samples compress. The compression ratio (against 12 bytes per sample: a long
+// timestamp and a float) is printed when the trial starts. Each operation is one byte of uncompressed samples, so the
+// scores, in operations per microsecond, are MB/s.
+//
+// The shapes of data:
+//    regular: a probe sampling at a fixed interval, values moving in small steps (the common case)
+//    jitter:  the interval wobbles by a few milliseconds and the values are noise
+//    random:  random intervals and random bits, about the worst that can happen
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GorillaCodecBenchmark {
+    private static final int SAMPLES = 10000;
+    private static final int RAW_BYTES = SAMPLES * 12;
+
+    @Param({"regular", "jitter", "random"})
+    String data;
+
+    private final long[] times = new long[SAMPLES];
+    private final float[] values = new float[SAMPLES];
+    private final GorillaCodec.BitWriter bits = new GorillaCodec.BitWriter(RAW_BYTES);
+    private byte[] encoded;
+    private int encodedLength;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        long time = System.currentTimeMillis();
+        float value = 100;
+        for (int i = 0; i < SAMPLES; i++) {
+            switch (data) {
+                case "regular":
+                    time += 10;
+                    if (random.nextInt(10) == 0)
+                        value += 1;
+                    break;
+                case "jitter":
+                    time += 10 + random.nextInt(5);
+                    value = (float) random.nextGaussian();
+                    break;
+                default:
+                    time += random.nextInt(100000);
+                    value = Float.intBitsToFloat(random.nextInt());
+            }
+            times[i] = time;
+            values[i] = value;
+        }
+
+        encodedLength = encode();
+        encoded = bits.buffer().clone();
+        System.out.println("\n" + data + ": " + String.format("%.2f", (double) encodedLength / SAMPLES) + " bytes/sample, "
+                + String.format("%.1f", (double) RAW_BYTES / encodedLength) + "x compression");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAW_BYTES)
+    public int encode() {
+        bits.reset();
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(bits, times[0]);
+        for (int i = 0; i < SAMPLES; i++)
+            encoder.add(times[i], values[i]);
+        bits.flush();
+        return bits.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAW_BYTES)
+    public float decode() {
+        GorillaCodec.Decoder decoder = new GorillaCodec.Decoder(new GorillaCodec.BitReader(encoded, 0, encodedLength), times[0]);
+        float sum = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            decoder.next();
+            sum += decoder.getValue();
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(GorillaCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
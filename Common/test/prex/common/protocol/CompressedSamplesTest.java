@@ -0,0 +1,206 @@
+package prex.common.protocol;
+
+import org.junit.Test;
+import prex.common.PreXTimestamp;
+import prex.common.Sample;
+import prex.common.SampleBuffer;
+import prex.common.protocol.messages.BufferedSamplesMessage;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// Sample buffers through the compressed (version 2) binary format. The round trips are property tests: a few hundred
+// random buffers mixing the shapes of data that the compression treats differently (regular intervals, jitter, huge
+// jumps, timestamps out of order, repeated values, noise, NaNs and infinities), each of which must come back exactly.
+//
+// The rest feed the decoder frames a peer could send on purpose or by accident, which must be refused with an
+// IOException before anything gets allocated for them.
+public class CompressedSamplesTest {
+    private static final int ROUNDS = 300;
+
+    @Test
+    public void randomBuffersRoundTrip() throws IOException {
+        Random random = new Random(1610);
+        MessageCodec encoder = new MessageCodec(null, (byte) 2);
+        MessageCodec decoder = new MessageCodec(null, (byte) 2);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            Sample[] samples = randomSamples(random);
+            Sample[] decoded = roundTrip(encoder, decoder, samples);
+
+            // Samples come back grouped by feature (in order of first appearance), in their order within each feature
+            ArrayList<Sample> expected = groupByFeature(samples);
+            assertEquals("round " + round, expected.size(), decoded.length);
+            for (int i = 0; i < decoded.length; i++) {
+                Sample e = expected.get(i), d = decoded[i];
+                String where = "round " + round + ", sample " + i;
+                assertEquals(where, e.getName(), d.getName());
+                assertEquals(where, e.getSrc(), d.getSrc());
+                assertEquals(where, e.getTime().asMillis(), d.getTime().asMillis());
+                assertEquals(where, Float.floatToRawIntBits(e.getValue()), Float.floatToRawIntBits(d.getValue()));
+            }
+        }
+    }
+
+    // Random bytes flipped in valid frames either decode to something or are refused. Nothing else.
+    @Test
+    public void corruptFramesAreRefusedCleanly() throws IOException {
+        Random random = new Random(42);
+        for (int round = 0; round < ROUNDS; round++) {
+            MessageCodec encoder = new MessageCodec(null, (byte) 2);
+            byte[] frame = encode(encoder, randomSamples(random));
+            for (int flips = 1 + random.nextInt(4); flips > 0; flips--)
+                frame[random.nextInt(frame.length)] = (byte) random.nextInt(256);
+
+            try {
+                new MessageCodec(null, (byte) 2).decode(new DataInputStream(new ByteArrayInputStream(frame)));
+            } catch (IOException e) {
+                // Refused, fine
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void tooManySeries() throws IOException {
+        decodeSeries(Integer.MAX_VALUE);
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeSeriesLength() throws IOException {
+        decodeSeries(1, -1);
+    }
+
+    // Two series of 2^31 - 1 samples each used to overflow the total into a negative array size
+    @Test(expected = IOException.class)
+    public void seriesLengthsOverflow() throws IOException {
+        decodeSeries(2, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    @Test(expected = IOException.class)
+    public void moreSamplesThanBits() throws IOException {
+        decodeSeries(1, 1000);
+    }
+
+    @Test(expected = IOException.class)
+    public void bitsBeyondTheFrame() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = header(bytes, 1);
+        series(out, 0, 1);
+        MessageCodec.writeVarInt(out, 64 * 1024 * 1024); // Bits that never come
+        out.writeInt(0);
+        decode(bytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedBits() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = header(bytes, 1);
+        series(out, 0, 3);
+        MessageCodec.writeVarInt(out, 1); // The first value alone takes 33 bits
+        out.writeByte(0);
+        decode(bytes);
+    }
+
+    private static Sample[] randomSamples(Random random) {
+        int numFeatures = 1 + random.nextInt(8);
+        long[] times = new long[numFeatures];
+        float[] values = new float[numFeatures];
+        for (int f = 0; f < numFeatures; f++) {
+            times[f] = random.nextInt(2) == 0 ? System.currentTimeMillis() : (random.nextLong() >>> 24);
+            values[f] = random.nextFloat() * 1000;
+        }
+
+        Sample[] samples = new Sample[random.nextInt(600)];
+        int interval = 1 + random.nextInt(1000);
+        for (int i = 0; i < samples.length; i++) {
+            if (random.nextInt(50) == 0)
+                continue; // Buffers can have holes
+            int f = random.nextInt(numFeatures);
+
+            switch (random.nextInt(10)) {
+                case 0:  times[f] += random.nextInt(2000) - 1000; break;                // Out of order
+                case 1:  times[f] += (random.nextLong() >>> 40) * (random.nextBoolean() ? 1 : -1); break; // Jump
+                case 2:  times[f] += interval + random.nextInt(300); break;             // Jitter
+                default: times[f] += interval;                                          // Like clockwork
+            }
+
+            switch (random.nextInt(12)) {
+                case 0:  values[f] = Float.NaN; break;
+                case 1:  values[f] = random.nextBoolean() ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY; break;
+                case 2:  values[f] = random.nextBoolean() ? -0.0f : 0.0f; break;
+                case 3:  values[f] = Float.intBitsToFloat(random.nextInt()); break;
+                case 4:  values[f] = (float) random.nextGaussian(); break;
+                case 5:  values[f] += 1; break;
+                default: break;                                                          // Same as before
+            }
+
+            samples[i] = new Sample(new PreXTimestamp(new Date(times[f])), "feature" + f, "probe" + (f % 3), values[f]);
+        }
+        return samples;
+    }
+
+    private static ArrayList<Sample> groupByFeature(Sample[] samples) {
+        LinkedHashMap<String, ArrayList<Sample>> series = new LinkedHashMap<>();
+        for (Sample s : samples)
+            if (s != null)
+                series.computeIfAbsent(s.getId(), (k) -> new ArrayList<>()).add(s);
+
+        ArrayList<Sample> grouped = new ArrayList<>();
+        for (ArrayList<Sample> l : series.values())
+            grouped.addAll(l);
+        return grouped;
+    }
+
+    private static byte[] encode(MessageCodec encoder, Sample[] samples) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        encoder.encode(new BufferedSamplesMessage("probe", new SampleBuffer(samples)), out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Sample[] roundTrip(MessageCodec encoder, MessageCodec decoder, Sample[] samples) throws IOException {
+        byte[] frame = encode(encoder, samples);
+        Message m = decoder.decode(new DataInputStream(new ByteArrayInputStream(frame)));
+        return ((BufferedSamplesMessage) m).getBuffer().getSamples();
+    }
+
+    // A BUFFERED_SAMPLES frame up to (and including) the number of series, with one feature defined
+    private static DataOutputStream header(ByteArrayOutputStream bytes, int numSeries) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        MessageCodec.writeString(out, "probe");
+        out.writeBoolean(false);
+        MessageCodec.writeVarInt(out, 1);
+        MessageCodec.writeString(out, "feature");
+        MessageCodec.writeString(out, "probe");
+        MessageCodec.writeVarInt(out, numSeries);
+        return out;
+    }
+
+    private static void series(DataOutputStream out, int feature, int count) throws IOException {
+        MessageCodec.writeVarInt(out, feature);
+        MessageCodec.writeVarInt(out, count);
+        MessageCodec.writeVarLong(out, 0);
+    }
+
+    // numSeries series of the given lengths, and 8 bytes of bits
+    private static void decodeSeries(int numSeries, int... counts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = header(bytes, numSeries);
+        for (int count : counts)
+            series(out, 0, count);
+        MessageCodec.writeVarInt(out, 8);
+        out.writeLong(0);
+        decode(bytes);
+    }
+
+    private static void decode(ByteArrayOutputStream bytes) throws IOException {
+        new MessageCodec(null, (byte) 2).decode(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+}
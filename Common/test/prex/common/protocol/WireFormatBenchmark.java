@@ -0,0 +1,114 @@
+package prex.common.protocol;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import prex.common.PreXTimestamp;
+import prex.common.Sample;
+import prex.common.SampleBuffer;
+import prex.common.protocol.messages.BufferedSamplesMessage;
+
+import java.io.*;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Java serialization (what ObjectStreamChannel writes, resetting the stream before every message) against the binary
+// format (MessageCodec, uncompressed as in protocol version 1 and compressed as in version 2), for one sample buffer
+// of a probe sampling a handful of features at a regular interval. The bytes per sample of each format are printed
+// when the trial starts.
+//
+// The binary codecs are measured in steady state: the features were already defined by an earlier message, like on a
+// connection that has been up for a while.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+    @Param({"30", "1000"})
+    int samples;
+
+    @Param({"serialization", "binary-v1", "binary-v2"})
+    String format;
+
+    private BufferedSamplesMessage message;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+    private DataOutputStream out;
+    private ObjectOutputStream objects;
+    private MessageCodec encoder, decoder;
+
+    // One encoded message, for the decode benchmarks (with the object stream header, for serialization)
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        Sample[] buffer = new Sample[samples];
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < samples; i++) {
+            int feature = i % 6;
+            buffer[i] = new Sample(new PreXTimestamp(new Date(t0 + (i / 6) * 10 + random.nextInt(2))), "feature" + feature,
+                    "probe", feature < 3 ? 100 + (i / 60) : (float) random.nextGaussian());
+        }
+        message = new BufferedSamplesMessage("probe", new SampleBuffer(buffer));
+
+        if (format.equals("serialization")) {
+            objects = new ObjectOutputStream(bytes);
+            encodeSerialized();
+            encoded = bytes.toByteArray();
+            bytes.reset();
+            encodeSerialized();
+            System.out.println("\n" + format + ": " + String.format("%.1f", (double) bytes.size() / samples) + " bytes/sample");
+        } else {
+            byte version = (byte) (format.equals("binary-v1") ? 1 : 2);
+            encoder = new MessageCodec(null, version);
+            decoder = new MessageCodec(null, version);
+            out = new DataOutputStream(bytes);
+
+            // The first message defines the features
+            encodeBinary();
+            decoder.decode(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            encodeBinary();
+            encoded = bytes.toByteArray();
+            System.out.println("\n" + format + ": " + String.format("%.1f", (double) encoded.length / samples) + " bytes/sample");
+        }
+    }
+
+    private void encodeSerialized() throws IOException {
+        objects.reset();
+        objects.writeObject(message);
+        objects.flush();
+    }
+
+    private void encodeBinary() throws IOException {
+        bytes.reset();
+        encoder.encode(message, out);
+        out.flush();
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        if (objects != null) {
+            bytes.reset();
+            encodeSerialized();
+        } else
+            encodeBinary();
+        return bytes.size();
+    }
+
+    @Benchmark
+    public Message decode() throws IOException, ClassNotFoundException {
+        if (objects != null)
+            return (Message) new ObjectInputStream(new ByteArrayInputStream(encoded)).readObject();
+        return decoder.decode(new DataInputStream(new ByteArrayInputStream(encoded)));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(WireFormatBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,414 @@
+package prex.coordinator.db;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.ObjectName;
+
+// The coordinator's connections to H2. It replaces H2's JdbcConnectionPool, which we used to let grow to 2000
+// connections, and which handed out a fresh connection (and made every model method parse its SQL again) every time.
+//
+//    - It is bounded. Threads wait for a connection when all of them are taken, and give up (with an SQLException)
+//      after the borrow timeout.
+//    - Borrowing again while the thread's connection is in use (a withConnection inside another, e.g. the
+//      FeatureCatalog inserting a new feature in the middle of Sample.upgradeTables) hands out a second connection,
+//      with a transaction of its own, like H2's pool did: the inner commit or rollback must not commit or roll back
+//      the outer work. These nested borrows never wait, though. If no connection is idle they open one even past the
+//      maximum (and close it when it's given back), so that threads each holding one and asking for another can't
+//      deadlock the pool.
+//    - Long-lived threads (the IngestionPipeline writers) pin a connection: they keep it until they unpin it, and
+//      closing it does nothing in the meantime.
+//    - Each connection caches its prepared statements, by SQL (least recently used ones are closed first). Model
+//      methods can keep calling prepareStatement as they always did. The catch is that a cached statement is handed
+//      out again as soon as the same SQL is prepared again, so the same query can't be prepared while one of its
+//      results is still being read on the same thread.
+//
+// The connections handed out are proxies of the real ones. The pool registers itself with JMX, see
+// ConnectionPoolMXBean. It is configured with system properties:
+//    prex.db.maxConnections: how many connections at most (default 32)
+//    prex.db.borrowTimeout:  how long to wait for one, in ms (default 30s)
+//    prex.db.statementCache: prepared statements cached per connection (default 64, 0 turns the cache off)
+public class ConnectionPool implements ConnectionPoolMXBean {
+    private final String url;
+    private final int maxConnections;
+    private final long borrowTimeoutMs;
+    private final int statementCacheSize;
+
+    // The connections nobody holds, and how many are open. Guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private int total = 0;
+    private int active = 0;
+    private int pinned = 0;
+
+    // The connection held by each thread
+    private final ThreadLocal<Lease> leases = new ThreadLocal<>();
+
+    // Metrics
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong borrowWaitNanos = new AtomicLong();
+    private volatile long maxBorrowWaitNanos = 0;
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    // A real connection and its statements
+    private final class PooledConnection {
+        final Connection connection;
+
+        // <sql, statement>, in access order. Only used by the thread holding the connection
+        final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= statementCacheSize)
+                    return false;
+                try {
+                    eldest.getValue().close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                return true;
+            }
+        };
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            if (statementCacheSize <= 0)
+                return connection.prepareStatement(sql, autoGeneratedKeys);
+
+            String key = autoGeneratedKeys + ":" + sql;
+            PreparedStatement s = statements.get(key);
+            if (s != null && !s.isClosed()) {
+                statementHits.incrementAndGet();
+                s.clearParameters();
+                s.clearBatch();
+                return s;
+            }
+            statementMisses.incrementAndGet();
+            s = connection.prepareStatement(sql, autoGeneratedKeys);
+            statements.put(key, s);
+            return s;
+        }
+    }
+
+    // A thread's hold on a connection: if it's borrowed (and not closed yet), and if it's pinned. Nested leases (see
+    // getConnection) are never pinned, and aren't the thread's lease: closing them gives them back right away.
+    private final class Lease implements InvocationHandler {
+        final PooledConnection pooled;
+        final Connection handle;
+        final boolean nested;
+        boolean borrowed = false;
+        boolean pinned = false;
+        boolean closed = false;
+
+        Lease(PooledConnection pooled, boolean nested) {
+            this.pooled = pooled;
+            this.nested = nested;
+            this.handle = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed)
+                        close(this);
+                    return null;
+                case "isClosed":
+                    return closed || pooled.connection.isClosed();
+                case "prepareStatement":
+                    if (args.length == 1)
+                        return pooled.prepare((String) args[0], java.sql.Statement.NO_GENERATED_KEYS);
+                    if (args.length == 2 && args[1] instanceof Integer)
+                        return pooled.prepare((String) args[0], (Integer) args[1]);
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooled.connection;
+            }
+            if (closed)
+                throw new SQLException("The connection was given back to the pool");
+            try {
+                return method.invoke(pooled.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    public ConnectionPool(String url, int maxConnections, long borrowTimeoutMs, int statementCacheSize) {
+        this.url = url;
+        this.maxConnections = maxConnections;
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    public static ConnectionPool fromSystemProperties(String url) {
+        ConnectionPool pool = new ConnectionPool(url,
+                Integer.getInteger("prex.db.maxConnections", 32),
+                Long.getLong("prex.db.borrowTimeout", 30000),
+                Integer.getInteger("prex.db.statementCache", 64));
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(pool, new ObjectName("prex.coordinator:type=ConnectionPool"));
+        } catch (Exception e) {
+            System.err.println("WARN: Can't register the connection pool with JMX: " + e);
+        }
+        return pool;
+    }
+
+    // The calling thread's connection, borrowing one if it doesn't have one (or another one, if it's in use). Close it
+    // when done.
+    public Connection getConnection() throws SQLException {
+        Lease lease = leases.get();
+        if (lease != null && lease.borrowed) {
+            Lease nested = new Lease(borrow(true), true);
+            nested.borrowed = true;
+            return nested.handle;
+        }
+        if (lease == null) {
+            lease = new Lease(borrow(false), false);
+            leases.set(lease);
+        }
+        lease.borrowed = true;
+        return lease.handle;
+    }
+
+    // Keep the calling thread's connection (borrowing one if needed) until unpin, whatever its users do with it
+    public void pin() throws SQLException {
+        Lease lease = leases.get();
+        if (lease == null) {
+            lease = new Lease(borrow(false), false);
+            leases.set(lease);
+        }
+        if (!lease.pinned) {
+            lease.pinned = true;
+            lock.lock();
+            try {
+                pinned++;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public void unpin() {
+        Lease lease = leases.get();
+        if (lease == null || !lease.pinned)
+            return;
+        lease.pinned = false;
+        lock.lock();
+        try {
+            pinned--;
+        } finally {
+            lock.unlock();
+        }
+        if (!lease.borrowed)
+            release(lease);
+    }
+
+    private void close(Lease lease) {
+        lease.borrowed = false;
+        if (!lease.pinned)
+            release(lease);
+    }
+
+    // A connection from the pool. Nested borrows open a new one rather than wait (see the top)
+    private PooledConnection borrow(boolean nested) throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMs);
+        PooledConnection pooled = null;
+        boolean create = false;
+
+        lock.lock();
+        try {
+            while (pooled == null && !create) {
+                if (!idle.isEmpty())
+                    pooled = idle.pop();
+                else if (total < maxConnections || nested) {
+                    total++;
+                    create = true;
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        borrowTimeouts.incrementAndGet();
+                        throw new SQLException("No connection available after " + borrowTimeoutMs + "ms (" + total + " connections)");
+                    }
+                    try {
+                        released.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection");
+                    }
+                }
+            }
+            active++;
+        } finally {
+            lock.unlock();
+        }
+
+        // Connect outside the lock
+        if (create) {
+            try {
+                pooled = new PooledConnection(DriverManager.getConnection(url, "", ""));
+            } catch (SQLException e) {
+                lock.lock();
+                try {
+                    total--;
+                    active--;
+                    released.signal();
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+        }
+
+        long waited = System.nanoTime() - start;
+        borrows.incrementAndGet();
+        borrowWaitNanos.addAndGet(waited);
+        if (waited > maxBorrowWaitNanos)
+            maxBorrowWaitNanos = waited;
+        return pooled;
+    }
+
+    // Back to the pool, like H2's pool did: whatever wasn't committed is rolled back. Connections opened past the
+    // maximum (by nested borrows) are closed instead.
+    private void release(Lease lease) {
+        lease.closed = true;
+        if (!lease.nested)
+            leases.remove();
+
+        PooledConnection pooled = lease.pooled;
+        boolean broken = false;
+        try {
+            if (pooled.connection.isClosed())
+                broken = true;
+            else if (!pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            broken = true;
+        }
+
+        boolean extra;
+        lock.lock();
+        try {
+            active--;
+            extra = !broken && total > maxConnections;
+            if (broken || extra)
+                total--;
+            else
+                idle.push(pooled);
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (extra) {
+            try {
+                pooled.connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @Override
+    public int getTotalConnections() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getPinnedConnections() {
+        lock.lock();
+        try {
+            return pinned;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    @Override
+    public double getAverageBorrowWaitMillis() {
+        long n = borrows.get();
+        return n == 0 ? 0 : borrowWaitNanos.get() / 1e6 / n;
+    }
+
+    @Override
+    public double getMaxBorrowWaitMillis() {
+        return maxBorrowWaitNanos / 1e6;
+    }
+
+    @Override
+    public long getBorrowTimeouts() {
+        return borrowTimeouts.get();
+    }
+
+    @Override
+    public long getStatementCacheHits() {
+        return statementHits.get();
+    }
+
+    @Override
+    public long getStatementCacheMisses() {
+        return statementMisses.get();
+    }
+
+    @Override
+    public double getStatementCacheHitRate() {
+        long hits = statementHits.get(), n = hits + statementMisses.get();
+        return n == 0 ? 0 : (double) hits / n;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool{max=" + maxConnections + ", borrowTimeout=" + borrowTimeoutMs + "ms, statementCache=" + statementCacheSize + "}";
+    }
+}
@@ -0,0 +1,23 @@
+package prex.coordinator.db;
+
+// What the ConnectionPool shows through JMX (e.g. in jconsole, under prex.coordinator:type=ConnectionPool). Times are
+// in milliseconds.
+public interface ConnectionPoolMXBean {
+    int getMaxConnections();
+
+    // Open connections, borrowed ones (including the ones pinned to a thread) and the ones pinned to a thread
+    int getTotalConnections();
+    int getActiveConnections();
+    int getPinnedConnections();
+
+    // How long threads had to wait to get a connection, and how many gave up
+    long getBorrows();
+    double getAverageBorrowWaitMillis();
+    double getMaxBorrowWaitMillis();
+    long getBorrowTimeouts();
+
+    // The prepared statement caches of all connections
+    long getStatementCacheHits();
+    long getStatementCacheMisses();
+    double getStatementCacheHitRate();
+}
@@ -1,24 +1,49 @@
 package prex.coordinator.db;
 
-import org.h2.jdbcx.JdbcConnectionPool;
 import prex.common.*;
 import prex.coordinator.preprocess.Dataset;
 import prex.coordinator.server.SharedServerState;
+import prex.coordinator.store.*;
 
 import java.sql.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 // This is a database using the singleton pattern. It provides connections and some auxiliary wrapper methods.
 // To be honest I don't really like its overall design but it works.
+//
+// The samples, summaries, runs and exceptions don't have to live in H2, though. Where they go is up to the
+// SampleStore and EventStore, picked with the prex.store system property:
+//    h2:       everything in the database, like it always was (the default)
+//    memory:   everything on the heap (see MemoryStore), gone on a restart
+//    segments: samples and summaries in the SegmentStore, runs and exceptions in the database
+// Features, prediction contexts and rollups stay in the database no matter what.
+//
+// The database itself is the prex-db file in the working directory, unless prex.db.path says otherwise.
 public class DB {
 
-    private JdbcConnectionPool pool;
+    private ConnectionPool pool;
+
+    // Ingestion counters (see writeSamples)
+    private final AtomicLong samplesWritten = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong summariesWritten = new AtomicLong();
+
+    // <name,src> -> feature ID. Created on first use (it needs the DB to exist)
+    private FeatureCatalog featureCatalog;
+
+    private SampleStore sampleStore;
+    private EventStore eventStore;
 
     private static DB db;
-    public static DB getInstance() {
-        if (db == null) db = new DB();
+    public static synchronized DB getInstance() {
+        if (db == null) {
+            db = new DB();
+            db.init(); // Upgrading old tables goes through the FeatureCatalog, which needs getInstance() to work
+        }
         return db;
     }
 
+    // The calling thread's connection (see ConnectionPool). Close it when done.
     public  Connection getConnection(boolean autoCommit) throws SQLException {
         Connection c = pool.getConnection();
         c.setAutoCommit(autoCommit);
@@ -33,85 +58,205 @@ public class DB {
         }
     }
 
-    public DB() {
+    // Keep the calling thread's connection until unpinConnection (for long-lived threads that write all the time)
+    public void pinConnection() {
+        try {
+            pool.pin();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void unpinConnection() {
+        pool.unpin();
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    private DB() {
         open();
+    }
+
+    private void init() {
         createDB();
+        createStores(System.getProperty("prex.store", "h2"));
+    }
+
+    private void createStores(String type) {
+        H2Store h2 = new H2Store();
+        sampleStore = h2;
+        eventStore = h2;
+        switch (type) {
+            case "memory":
+                MemoryStore memory = new MemoryStore();
+                sampleStore = memory;
+                eventStore = memory;
+                break;
+            case "segments":
+                SegmentStore segments = SegmentStore.getInstance();
+                if (segments != null)
+                    sampleStore = segments;
+                else
+                    System.err.println("WARN: The segment store is off (prex.segments). Samples will go to the database.");
+                break;
+            case "h2":
+                break;
+            default:
+                System.err.println("WARN: Unknown store " + type + ". Using the database.");
+        }
+    }
+
+    public SampleStore getSampleStore() {
+        return sampleStore;
+    }
 
-        // This resets the SAMPLE_SNAPSHOT table every 60 seconds.
-        if ( pool != null && db != null )
-            new Thread( () -> {
-                while(true) {
-                    try {
-                        DBUtils.withConnection(Sample::clearSnapshotTable);
-                        Thread.sleep(1 * 60 * 1000);
-                    } catch (InterruptedException e) {
+    public EventStore getEventStore() {
+        return eventStore;
+    }
+
+    private interface TableCreator {
+        void createTables(Connection c) throws SQLException;
+    }
+
+    // Try to create the tables. Detects if they already exist. Each model is tried on its own, so that tables added
+    // in newer versions get created in older databases too. Order matters (foreign keys)!
+    private boolean createDB() {
+        boolean created = DBUtils.withConnection(true, (c) -> {
+            boolean ok = true;
+            for (TableCreator creator : new TableCreator[] { Feature::createTables, Sample::createTables, SampleSummary::createTables, SampleRollup::createTables,
+                    PredictionContext::createTables, RecordedException::createTables, ExecutionRun::createTables }) {
+                try {
+                    creator.createTables(c);
+                } catch (SQLException e) {
+                    if (e.getMessage().contains("exists")) {
+                        System.out.println("Tables already created...");
+                    }
+                    else {
                         e.printStackTrace();
-                        return;
+                        ok = false;
                     }
                 }
-            }).start();
-    }
+            }
 
-    // Try to create the tables. Detects if they already exist.
-    private boolean createDB() {
-        return DBUtils.withConnection(getConnection(), (c) -> {
             try {
-                Sample.createTables(c);
-                PredictionContext.createTables(c);
-                RecordedException.createTables(c);
-                ExecutionRun.createTables(c);
+                Feature.upgradeTables(c);
+                SampleRollup.upgradeTables(c);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                ok = false;
+            }
+            return ok;
+        });
+        return upgradeSamples() && created;
+    }
 
+    // SAMPLE tables from before the feature IDs get them from the FeatureCatalog (see Sample.upgradeTables)
+    private boolean upgradeSamples() {
+        return DBUtils.withConnection((c) -> {
+            try {
+                if (Sample.upgradeTables(c, getFeatureCatalog())) {
+                    Feature.recomputeStats(c);
+                    synchronized (this) {
+                        featureCatalog = new FeatureCatalog(); // It was loaded before the samples were moved
+                    }
+                }
                 return true;
             } catch (SQLException e) {
-                if (e.getMessage().contains("exists")) {
-                    System.out.println("Tables already created...");
-                    return true;
-                }
-                else {
-                    e.printStackTrace();
-                    return false;
-                }
+                e.printStackTrace();
+                System.err.println("WARN: Can't upgrade the SAMPLE table. Samples won't be stored until it is.");
+                return false;
             }
         });
+    }
 
+    public synchronized FeatureCatalog getFeatureCatalog() {
+        if (featureCatalog == null) featureCatalog = new FeatureCatalog();
+        return featureCatalog;
     }
 
-    // Logs an execution run
-    public synchronized boolean logRun(PreXTimestamp start, PreXTimestamp end) {
-        return DBUtils.withConnection((c) -> new ExecutionRun(start,end).insert(c));
+    // Logs an execution run. Returns its ID, or 0 if it couldn't be logged.
+    public synchronized int logRun(PreXTimestamp start, PreXTimestamp end) {
+        return eventStore.logRun(start, end);
     }
 
     // Stores a sample
     public boolean writeSample(Sample s) {
-        return DBUtils.withConnection(s::insert);
+        return writeSamples(new Sample[] { s });
     }
 
-    // Stores several samples. This could be FAR more efficient.
+    // Makes sure the context exists (see PredictionContext.ensureExistsAndFetchIDs). New contexts get all the features
+    // in the catalog.
+    public boolean ensureContext(PredictionContext context) {
+        return DBUtils.withConnection((c) -> context.ensureExistsAndFetchIDs(c, getFeatureCatalog()::sampleIds));
+    }
+
+    // Stores several samples. The whole array goes to the sample store at once (with H2, that's one connection, one
+    // batch and a single commit), which is what lets the coordinator keep up with many probes flushing their buffers
+    // at the same time. The feature stats (see FeatureCatalog) are updated right after, with one statement per feature.
     public boolean writeSamples(Sample[] samples) {
+        FeatureCatalog catalog = getFeatureCatalog();
+        catalog.resolve(samples);
+        if (!sampleStore.write(samples))
+            return false;
+
+        int written = 0;
         for (Sample s : samples)
-            if (!writeSample(s))
-                return false;
+            if (s != null && s.getFeatureId() != 0)
+                written++;
+        if (written > 0)
+            DBUtils.withConnection((c) -> catalog.addStats(c, samples));
+
+        RollupManager rollups = RollupManager.getInstance();
+        if (rollups != null)
+            rollups.add(samples);
+        samplesWritten.addAndGet(written);
+        batchesWritten.incrementAndGet();
         return true;
     }
 
-    // Writes a recorded exception
-    public boolean writeRecordedException(RecordedException e) {
-        return DBUtils.withConnection(e::insert);
+    // Stores the summaries sent by probes in summary mode (see SampleSummarizer), in one batch
+    public boolean writeSummaries(SampleSummary[] summaries) {
+        FeatureCatalog catalog = getFeatureCatalog();
+        catalog.resolve(summaries);
+        if (!sampleStore.write(summaries))
+            return false;
+
+        int written = 0;
+        for (SampleSummary s : summaries)
+            if (s != null && s.getFeatureId() != 0)
+                written++;
+        if (written > 0)
+            DBUtils.withConnection((c) -> catalog.addStats(c, summaries));
+
+        RollupManager rollups = RollupManager.getInstance();
+        if (rollups != null)
+            rollups.add(summaries);
+        summariesWritten.addAndGet(written);
+        return true;
     }
 
-    // Further below are just useless wrapper methods...
-    /*public List<Sample> getSamplesFromSrc(String src) {
-        return DBUtils.withConnection((c) -> Sample.allFromSrc(c,src) );
+    public long getSummariesWritten() {
+        return summariesWritten.get();
     }
 
-    public List<Sample> getSamplesFromId(String name, String src) {
-        return DBUtils.withConnection((c) -> Sample.allFromId(c, name, src) );
+    // Total number of samples (and sample batches) written since the coordinator started. Sample the counter twice
+    // to get the ingestion throughput.
+    public long getSamplesWritten() {
+        return samplesWritten.get();
     }
 
-    private List<Sample> getSamplesFromPredictionContext(PredictionContext p) {
-        return DBUtils.withConnection(p::getSamples);
-    }*/
+    public long getBatchesWritten() {
+        return batchesWritten.get();
+    }
 
+    // Writes a recorded exception
+    public boolean writeRecordedException(RecordedException e) {
+        return eventStore.write(e);
+    }
+
+    // Further below are just useless wrapper methods...
     /*private List<RecordedException> getExceptionsFromPredictionContext(PredictionContext p) {
         return DBUtils.withConnection(p::getExceptions);
     }*/
@@ -126,9 +271,8 @@ public class DB {
             e.printStackTrace();
         }
 
-        pool = JdbcConnectionPool.create("jdbc:h2:./prex-db", "", "");
-        //pool = JdbcConnectionPool.create("jdbc:h2:./prex-db;AUTO_SERVER=true;CACHE_SIZE=1048576;EARLY_FILTER=true", "", "");
-        pool.setMaxConnections(2000);
+        pool = ConnectionPool.fromSystemProperties("jdbc:h2:" + System.getProperty("prex.db.path", "./prex-db"));
+        //pool = ConnectionPool.fromSystemProperties("jdbc:h2:./prex-db;AUTO_SERVER=true;CACHE_SIZE=1048576;EARLY_FILTER=true");
 
     }
 }
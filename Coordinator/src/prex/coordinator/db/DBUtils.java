@@ -81,6 +81,10 @@ public class DBUtils {
         throw new SQLException("Unexpected null ID");
     }
 
+    // How many rows the queries that read whole runs (H2Store.scan, one feature at a time) fetch at a time. Set with
+    // the prex.db.fetchSize system property.
+    public static final int FETCH_SIZE = Integer.getInteger("prex.db.fetchSize", 1000);
+
     public static Timestamp timestamp() {
         return new java.sql.Timestamp(new java.util.Date().getTime());
     }
@@ -0,0 +1,126 @@
+package prex.coordinator.db;
+
+import prex.common.Feature;
+import prex.common.Sample;
+import prex.common.SampleSummary;
+import prex.common.protocol.MessageCodec;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-memory view of the FEATURE table, which maps every <name,src> pair to an integer ID. Lookups never touch the
+// database, except for the first time a feature is seen, when it is inserted.
+//
+// It is also the catalog of everything that has been sampled, with the time range and number of samples of each
+// feature. The DB updates those as it writes samples (see addStats), once per feature and batch, so anything that
+// wants to know what features exist (e.g. a new PredictionContext) should ask here rather than query the database.
+public class FeatureCatalog implements MessageCodec.FeatureResolver {
+
+    // <sample-id (src-name), feature>
+    private final ConcurrentHashMap<String, Feature> byKey = new ConcurrentHashMap<>();
+
+    // <feature id, feature>
+    private final ConcurrentHashMap<Integer, Feature> byId = new ConcurrentHashMap<>();
+
+    public FeatureCatalog() {
+        for (Feature f : DBUtils.withConnection(Feature::all))
+            add(f);
+    }
+
+    private void add(Feature f) {
+        byKey.put(f.getSrc() + "-" + f.getName(), f);
+        byId.put(f.getId(), f);
+    }
+
+    @Override
+    public int featureId(String name, String src) {
+        Feature f = byKey.get(src + "-" + name);
+        if (f != null)
+            return f.getId();
+
+        // First time we see it. Only one thread inserts at a time, so that we don't try to insert it twice.
+        synchronized (this) {
+            f = byKey.get(src + "-" + name);
+            if (f != null)
+                return f.getId();
+
+            int id = DBUtils.withConnection((c) -> Feature.insert(c, name, src));
+            if (id == 0) // Maybe it was there after all
+                id = DBUtils.withConnection((c) -> Feature.fetchId(c, name, src));
+            if (id == 0)
+                return 0;
+
+            add(new Feature(id, name, src));
+            return id;
+        }
+    }
+
+    // Make sure that all samples have their feature ID set
+    public void resolve(Sample[] samples) {
+        for (Sample s : samples)
+            if (s != null && s.getFeatureId() == 0)
+                s.setFeatureId(featureId(s.getName(), s.getSrc()));
+    }
+
+    public void resolve(SampleSummary[] summaries) {
+        for (SampleSummary s : summaries)
+            if (s != null && s.getFeatureId() == 0)
+                s.setFeatureId(featureId(s.getName(), s.getSrc()));
+    }
+
+    // Account for samples that were just written, both here and in the FEATURE table (with c)
+    public boolean addStats(Connection c, Sample[] samples) {
+        TreeMap<Integer, Feature> stats = new TreeMap<>(); // By ID, see Feature.addStats
+        for (Sample s : samples) {
+            if (s == null || s.getFeatureId() == 0)
+                continue;
+            long time = s.getTime().asMillis();
+            stats.computeIfAbsent(s.getFeatureId(), (id) -> new Feature(id, null, null)).addStats(time, time, 1);
+        }
+        return addStats(c, stats.values());
+    }
+
+    public boolean addStats(Connection c, SampleSummary[] summaries) {
+        TreeMap<Integer, Feature> stats = new TreeMap<>();
+        for (SampleSummary s : summaries) {
+            if (s == null || s.getFeatureId() == 0 || s.getN() == 0)
+                continue;
+            stats.computeIfAbsent(s.getFeatureId(), (id) -> new Feature(id, null, null)).addStats(s.getFirstTime(), s.getLastTime(), s.getN());
+        }
+        return addStats(c, stats.values());
+    }
+
+    private boolean addStats(Connection c, Collection<Feature> stats) {
+        if (stats.isEmpty())
+            return true;
+        for (Feature delta : stats) {
+            Feature f = byId.get(delta.getId());
+            if (f != null)
+                f.addStats(delta.getFirstSeen(), delta.getLastSeen(), delta.getSamples());
+        }
+        return Feature.addStats(c, stats);
+    }
+
+    public Feature get(int id) {
+        return byId.get(id);
+    }
+
+    public Collection<Feature> all() {
+        return byId.values();
+    }
+
+    // All <name,src> pairs, like Sample.allSampleIds
+    public ArrayList<String[]> sampleIds() {
+        ArrayList<String[]> ids = new ArrayList<>();
+        for (Feature f : byId.values())
+            ids.add(new String[] { f.getName(), f.getSrc() });
+        return ids;
+    }
+
+    public int size() {
+        return byId.size();
+    }
+}
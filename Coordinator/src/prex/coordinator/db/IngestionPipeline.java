@@ -0,0 +1,624 @@
+package prex.coordinator.db;
+
+import prex.common.*;
+import prex.coordinator.store.RecentSampleStore;
+import prex.coordinator.store.SegmentStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The ingestion pipeline decouples the threads that read samples from the network from the threads that write them
+// to the database. Client threads submit() whole sample batches (one per BufferedSamplesMessage) onto a bounded
+// queue, and a configurable number of writer threads drain it. Each writer grabs as many queued batches as it can
+// (up to maxGroupSize samples) and writes them with a single commit (group commit), so a burst of small batches costs
+// about as much as one big batch. Summaries (one batch per SummarizedSamplesMessage, from probes in summary mode) go
+// through the same queue, and count as one sample each. A group's summaries are written together too, right after
+// its samples.
+//
+// When the queue is full, the overflow policy decides what happens:
+//    BLOCK:       the submitting client thread waits for space (the client eventually feels this as TCP backpressure)
+//    DROP_OLDEST: the oldest queued batch is thrown away to make room for the new one. With a WriteAheadLog it was
+//                 already accepted, so it is moved aside (see WriteAheadLog.setAside) rather than just forgotten
+//    REJECT:      the new batch is thrown away and submit() returns false, so the caller can tell the client to
+//                 slow down
+//
+// Accepted samples (and summaries) are also put in the RecentSampleStore right away, so predictions don't have to wait for the
+// database to catch up, and appended to the SegmentStore (if there is one, and unless it is the DB's SampleStore,
+// which the writers already write to). That happens here rather than in the writers so that each feature's samples
+// reach the segments in the order the client sent them.
+//
+// With a WriteAheadLog, every batch is appended to the log (as a SAMPLES or a SUMMARIES record) before it is queued, and submit() only returns once the log
+// is on disk, so an accepted batch survives a crash even if the writers never got to it. Recorded exceptions go
+// through the log too, and are then written by a thread of their own (there are few of them, and they must never be
+// dropped). Whatever the writers haven't applied when the coordinator dies is replayed when the pipeline is created.
+//
+// Batches the writers fail to write are retried on their own (so that one bad batch doesn't take the rest of its
+// group down with it), after 1s, 2s, 4s... up to a minute between tries. A batch that still fails after
+// prex.ingest.retries tries is moved aside (see WriteAheadLog.setAside), or thrown away without a log, so that it
+// doesn't keep its log segment around forever. Exceptions the exception writer fails to write get the same treatment.
+//
+// The pipeline can be configured through system properties (see fromSystemProperties):
+//    prex.ingest.writers, prex.ingest.capacity, prex.ingest.group, prex.ingest.overflow and prex.ingest.retries
+//    prex.wal.* (see WriteAheadLog)
+public class IngestionPipeline {
+    public enum OverflowPolicy { BLOCK, DROP_OLDEST, REJECT }
+
+    private static final long RETRY_DELAY = 1000, MAX_RETRY_DELAY = 60000;
+
+    private static final Sample[] NO_SAMPLES = new Sample[0];
+    private static final SampleSummary[] NO_SUMMARIES = new SampleSummary[0];
+
+    // A queued batch of samples or of summaries (the other one is empty), and the log segment it was appended to
+    // (null without a log). Failed batches wait in the retry queue until retryAt.
+    private static final class Batch implements Delayed {
+        final Sample[] samples;
+        final SampleSummary[] summaries;
+        final WriteAheadLog.Segment segment;
+        int failures = 0;
+        long retryAt;
+
+        Batch(Sample[] samples, WriteAheadLog.Segment segment) {
+            this(samples, NO_SUMMARIES, segment);
+        }
+
+        Batch(SampleSummary[] summaries, WriteAheadLog.Segment segment) {
+            this(NO_SAMPLES, summaries, segment);
+        }
+
+        private Batch(Sample[] samples, SampleSummary[] summaries, WriteAheadLog.Segment segment) {
+            this.samples = samples;
+            this.summaries = summaries;
+            this.segment = segment;
+        }
+
+        int size() {
+            return samples.length + summaries.length;
+        }
+
+        // What it was logged as, for moving it aside
+        int type() {
+            return summaries.length > 0 ? WriteAheadLog.SUMMARIES : WriteAheadLog.SAMPLES;
+        }
+
+        byte[] encode() {
+            return summaries.length > 0 ? encodeSummaries(summaries) : encodeSamples(samples);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(retryAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(retryAt, ((Batch) o).retryAt);
+        }
+    }
+
+    private final DB db;
+    private final BlockingQueue<Batch> queue;
+    private final OverflowPolicy policy;
+    private final int maxGroupSize;
+    private final int maxRetries;
+    private final DelayQueue<Batch> retries = new DelayQueue<>();
+    private final Thread[] writers;
+    private final SegmentStore segments;
+    private final WriteAheadLog wal;
+    private final ScheduledThreadPoolExecutor exceptionWriter = new ScheduledThreadPoolExecutor(1, (r) -> new Thread(r, "prex-exception-writer"));
+
+    private final AtomicBoolean stop = new AtomicBoolean(false);
+
+    // Metrics. Everything is counted in samples (or summaries), except for the queue depth, which is counted in batches
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong setAside = new AtomicLong();
+    private final AtomicLong groupCommits = new AtomicLong();
+    private volatile int maxQueueDepth = 0;
+
+    public IngestionPipeline(DB db, int numWriters, int capacity, int maxGroupSize, OverflowPolicy policy) {
+        this(db, numWriters, capacity, maxGroupSize, policy, null, 10);
+    }
+
+    public IngestionPipeline(DB db, int numWriters, int capacity, int maxGroupSize, OverflowPolicy policy, WriteAheadLog wal, int maxRetries) {
+        this.db = db;
+        this.wal = wal;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.maxGroupSize = maxGroupSize;
+        this.maxRetries = maxRetries;
+        this.writers = new Thread[numWriters];
+        SegmentStore segments = SegmentStore.getInstance();
+        this.segments = segments != db.getSampleStore() ? segments : null;
+        exceptionWriter.setExecuteExistingDelayedTasksAfterShutdownPolicy(false); // Retries left at stop stay in the log
+
+        for (int i = 0; i < numWriters; i++) {
+            writers[i] = new Thread(this::writerLoop, "prex-ingest-writer-" + i);
+            writers[i].start();
+        }
+
+        if (wal != null)
+            replay();
+    }
+
+    public static IngestionPipeline fromSystemProperties(DB db) {
+        return new IngestionPipeline(db,
+                Integer.getInteger("prex.ingest.writers", 2),
+                Integer.getInteger("prex.ingest.capacity", 1024),
+                Integer.getInteger("prex.ingest.group", 5000),
+                OverflowPolicy.valueOf(System.getProperty("prex.ingest.overflow", OverflowPolicy.BLOCK.name())),
+                WriteAheadLog.fromSystemProperties(),
+                Integer.getInteger("prex.ingest.retries", 10));
+    }
+
+    // Queue whatever a previous run of the coordinator logged but didn't get to apply. The samples also go to the
+    // RecentSampleStore and SegmentStore again: if the crash came between syncing the log and appending them there
+    // (see submit), they never made it. Those that did are just written twice, and the last one wins.
+    private void replay() {
+        FeatureCatalog catalog = db.getFeatureCatalog();
+        long[] counts = new long[3];
+        int n = wal.replay((segment, type, payload) -> {
+            if (type == WriteAheadLog.SAMPLES) {
+                Sample[] samples = decodeSamples(payload, catalog);
+                counts[0] += samples.length;
+                RecentSampleStore.getInstance().add(samples);
+                if (segments != null)
+                    segments.append(samples);
+                try {
+                    queue.put(new Batch(samples, segment));
+                    enqueued.addAndGet(samples.length);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (type == WriteAheadLog.SUMMARIES) {
+                SampleSummary[] summaries = decodeSummaries(payload, catalog);
+                counts[2] += summaries.length;
+                RecentSampleStore.getInstance().add(summaries);
+                try {
+                    queue.put(new Batch(summaries, segment));
+                    enqueued.addAndGet(summaries.length);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (type == WriteAheadLog.EXCEPTION) {
+                RecordedException e = decodeException(payload);
+                counts[1]++;
+                exceptionWriter.execute(() -> {
+                    // It may have made it to the store before the crash
+                    long time = e.getTime().asMillis();
+                    if (db.getEventStore().getExceptions(e.getContext().getName(), e.getExceptionClass(), time, time + 1).isEmpty())
+                        writeException(e, segment, 0);
+                    else
+                        wal.applied(segment);
+                });
+            } else
+                wal.applied(segment);
+        });
+        if (n > 0)
+            System.out.println("Replayed " + counts[0] + " samples, " + counts[2] + " summaries and " + counts[1] + " exceptions from the write-ahead log");
+    }
+
+    // SAMPLES records: the number of samples, and then the feature ID, time and value of each one
+    private static byte[] encodeSamples(Sample[] batch) {
+        ByteBuffer b = ByteBuffer.allocate(4 + batch.length * 16);
+        int n = 0;
+        for (Sample s : batch)
+            if (s != null && s.getFeatureId() != 0)
+                n++;
+        b.putInt(n);
+        for (Sample s : batch)
+            if (s != null && s.getFeatureId() != 0)
+                b.putInt(s.getFeatureId()).putLong(s.getTime().asMillis()).putFloat(s.getValue());
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    private static Sample[] decodeSamples(ByteBuffer b, FeatureCatalog catalog) {
+        Sample[] samples = new Sample[b.getInt()];
+        for (int i = 0; i < samples.length; i++) {
+            int featureId = b.getInt();
+            long time = b.getLong();
+            float value = b.getFloat();
+            Feature f = catalog.get(featureId);
+            samples[i] = new Sample(new PreXTimestamp(new Date(time)), featureId, f != null ? f.getName() : null, f != null ? f.getSrc() : null, value);
+        }
+        return samples;
+    }
+
+    // SUMMARIES records: the number of summaries, and then the feature ID, bucket and accumulated values of each one
+    private static byte[] encodeSummaries(SampleSummary[] batch) {
+        ByteBuffer b = ByteBuffer.allocate(4 + batch.length * 68);
+        int n = 0;
+        for (SampleSummary s : batch)
+            if (s != null && s.getFeatureId() != 0)
+                n++;
+        b.putInt(n);
+        for (SampleSummary s : batch)
+            if (s != null && s.getFeatureId() != 0)
+                b.putInt(s.getFeatureId()).putLong(s.getStart()).putInt(s.getBucketMs()).putInt(s.getN())
+                        .putDouble(s.getRawMean()).putDouble(s.getM2()).putFloat(s.getMin()).putFloat(s.getMax())
+                        .putLong(s.getFirstTime()).putFloat(s.getFirstValue()).putLong(s.getLastTime()).putFloat(s.getLastValue());
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    private static SampleSummary[] decodeSummaries(ByteBuffer b, FeatureCatalog catalog) {
+        SampleSummary[] summaries = new SampleSummary[b.getInt()];
+        for (int i = 0; i < summaries.length; i++) {
+            int featureId = b.getInt();
+            Feature f = catalog.get(featureId);
+            summaries[i] = new SampleSummary(featureId, f != null ? f.getName() : null, f != null ? f.getSrc() : null,
+                    b.getLong(), b.getInt(), b.getInt(), b.getDouble(), b.getDouble(), b.getFloat(), b.getFloat(),
+                    b.getLong(), b.getFloat(), b.getLong(), b.getFloat());
+        }
+        return summaries;
+    }
+
+    // EXCEPTION records: time, exception class and prediction context
+    private static byte[] encodeException(RecordedException e) {
+        byte[] exceptionClass = e.getExceptionClass().getBytes(StandardCharsets.UTF_8);
+        byte[] context = e.getContext().getName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(16 + exceptionClass.length + context.length);
+        b.putLong(e.getTime().asMillis()).putInt(exceptionClass.length).put(exceptionClass).putInt(context.length).put(context);
+        return b.array();
+    }
+
+    private static RecordedException decodeException(ByteBuffer b) {
+        long time = b.getLong();
+        byte[] exceptionClass = new byte[b.getInt()];
+        b.get(exceptionClass);
+        byte[] context = new byte[b.getInt()];
+        b.get(context);
+        return new RecordedException(new PreXTimestamp(new Date(time)), new String(exceptionClass, StandardCharsets.UTF_8),
+                new PredictionContext(new String(context, StandardCharsets.UTF_8)));
+    }
+
+    // Log the record, if there is a log. Null if there isn't, or if it couldn't be logged (and then it's up to the
+    // store alone, like without a log)
+    private WriteAheadLog.Segment log(int type, byte[] payload) {
+        if (wal == null)
+            return null;
+        try {
+            return wal.append(type, payload);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void applied(WriteAheadLog.Segment segment) {
+        if (segment != null)
+            wal.applied(segment);
+    }
+
+    // Give up on a logged record: move it aside and mark it applied, so that it doesn't keep its segment around.
+    // False if it can't be moved, and then it stays in the log until the next start.
+    private boolean setAside(int type, byte[] payload, WriteAheadLog.Segment segment) {
+        try {
+            wal.setAside(type, payload);
+            wal.applied(segment);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("WARN: Can't move a record aside. It stays in the log until the next start.");
+            return false;
+        }
+    }
+
+    // How long to wait before trying again after the given number of failures
+    private static long retryDelay(int failures) {
+        return Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(failures - 1, 16));
+    }
+
+    // Record an exception. It's logged (if there is a log) and written in the background.
+    public void submit(RecordedException e) {
+        WriteAheadLog.Segment segment = log(WriteAheadLog.EXCEPTION, encodeException(e));
+        if (segment != null)
+            wal.sync();
+        exceptionWriter.execute(() -> writeException(e, segment, 0));
+    }
+
+    // Runs in the exception writer. Failures are tried again later, like sample batches (see write)
+    private void writeException(RecordedException e, WriteAheadLog.Segment segment, int failures) {
+        if (db.writeRecordedException(e)) {
+            applied(segment);
+            return;
+        }
+
+        if (++failures < maxRetries) {
+            int tries = failures;
+            try {
+                exceptionWriter.schedule(() -> writeException(e, segment, tries), retryDelay(tries), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException stopped) {
+                // Stopping. It stays in the log until the next start
+            }
+            return;
+        }
+
+        if (segment == null)
+            System.err.println("WARN: Lost a " + e.getExceptionClass() + " after " + failures + " tries");
+        else if (setAside(WriteAheadLog.EXCEPTION, encodeException(e), segment))
+            System.err.println("WARN: Moved a " + e.getExceptionClass() + " aside after " + failures + " tries");
+    }
+
+    // Hand a batch of samples to the writers. Returns false only if the batch was rejected (REJECT policy with a
+    // full queue, or the pipeline is stopped).
+    public boolean submit(Sample[] samples) {
+        if (stop.get()) {
+            rejected.addAndGet(samples.length);
+            return false;
+        }
+
+        db.getFeatureCatalog().resolve(samples); // Usually a no-op: binary channels resolve IDs when decoding
+        Batch batch = new Batch(samples, log(WriteAheadLog.SAMPLES, encodeSamples(samples)));
+        if (!enqueue(batch))
+            return false;
+
+        RecentSampleStore.getInstance().add(samples);
+        if (segments != null)
+            segments.append(samples);
+        return true;
+    }
+
+    // Same for a batch of summaries
+    public boolean submit(SampleSummary[] summaries) {
+        if (stop.get()) {
+            rejected.addAndGet(summaries.length);
+            return false;
+        }
+
+        db.getFeatureCatalog().resolve(summaries);
+        Batch batch = new Batch(summaries, log(WriteAheadLog.SUMMARIES, encodeSummaries(summaries)));
+        if (!enqueue(batch))
+            return false;
+
+        RecentSampleStore.getInstance().add(summaries);
+        return true;
+    }
+
+    // Queue a logged batch according to the overflow policy. Returns false if it was rejected, and true once it is
+    // queued and (with a log) on disk.
+    private boolean enqueue(Batch batch) {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.put(batch);
+                } catch (InterruptedException e) {
+                    applied(batch.segment);
+                    rejected.addAndGet(batch.size());
+                    return false;
+                }
+                break;
+            case DROP_OLDEST:
+                // The oldest was acked already, so it's moved aside rather than just marked applied. Leaving it in the
+                // log would keep its segment (under sustained overload, every segment) until the next start.
+                while (!queue.offer(batch)) {
+                    Batch oldest = queue.poll();
+                    if (oldest != null) {
+                        dropped.addAndGet(oldest.size());
+                        if (oldest.segment != null)
+                            setAside(oldest.type(), oldest.encode(), oldest.segment);
+                    }
+                }
+                break;
+            case REJECT:
+                if (!queue.offer(batch)) {
+                    applied(batch.segment);
+                    rejected.addAndGet(batch.size());
+                    return false;
+                }
+                break;
+        }
+
+        // Only accepted once it's on disk (the flusher syncs everyone waiting at once)
+        if (batch.segment != null)
+            wal.sync();
+
+        enqueued.addAndGet(batch.size());
+        int depth = queue.size();
+        if (depth > maxQueueDepth)
+            maxQueueDepth = depth;
+        return true;
+    }
+
+    private void writerLoop() {
+        // Writers write all the time, so they keep a connection (and its prepared statements) to themselves
+        db.pinConnection();
+        try {
+            writeUntilStopped();
+        } finally {
+            db.unpinConnection();
+        }
+    }
+
+    private void writeUntilStopped() {
+        ArrayList<Batch> group = new ArrayList<>();
+        while (!stop.get() || !queue.isEmpty()) {
+            try {
+                // Batches that failed before, and are due for another try, go one by one
+                Batch retry;
+                while (!stop.get() && (retry = retries.poll()) != null) {
+                    group.add(retry);
+                    write(group);
+                    group.clear();
+                }
+
+                Batch first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+
+                // Grab whatever else is already waiting, up to maxGroupSize samples
+                group.add(first);
+                int n = first.size();
+                Batch next;
+                while (n < maxGroupSize && (next = queue.poll()) != null) {
+                    group.add(next);
+                    n += next.size();
+                }
+
+                write(group);
+                group.clear();
+            } catch (InterruptedException e) {
+                // Re-check the stop flag
+            }
+        }
+    }
+
+    // Write the samples of the group with one commit, and then its summaries with another
+    private void write(ArrayList<Batch> group) {
+        ArrayList<Batch> withSamples = new ArrayList<>(group.size()), withSummaries = new ArrayList<>();
+        int n = 0, m = 0;
+        for (Batch b : group) {
+            if (b.summaries.length > 0) {
+                withSummaries.add(b);
+                m += b.summaries.length;
+            } else {
+                withSamples.add(b);
+                n += b.samples.length;
+            }
+        }
+
+        if (!withSamples.isEmpty()) {
+            Sample[] all;
+            if (withSamples.size() == 1)
+                all = withSamples.get(0).samples;
+            else {
+                all = new Sample[n];
+                int pos = 0;
+                for (Batch b : withSamples) {
+                    System.arraycopy(b.samples, 0, all, pos, b.samples.length);
+                    pos += b.samples.length;
+                }
+            }
+            groupCommits.incrementAndGet();
+            written(withSamples, n, db.writeSamples(all));
+        }
+
+        if (!withSummaries.isEmpty()) {
+            SampleSummary[] all = new SampleSummary[m];
+            int pos = 0;
+            for (Batch b : withSummaries) {
+                System.arraycopy(b.summaries, 0, all, pos, b.summaries.length);
+                pos += b.summaries.length;
+            }
+            groupCommits.incrementAndGet();
+            written(withSummaries, m, db.writeSummaries(all));
+        }
+    }
+
+    // Mark the batches applied, or retry them on their own
+    private void written(ArrayList<Batch> group, int n, boolean ok) {
+        if (ok) {
+            written.addAndGet(n);
+            for (Batch b : group)
+                applied(b.segment);
+            return;
+        }
+
+        failed.addAndGet(n);
+        for (Batch b : group) {
+            if (++b.failures < maxRetries) {
+                b.retryAt = System.currentTimeMillis() + retryDelay(b.failures);
+                retries.add(b);
+                continue;
+            }
+
+            // Give up on it. With a log, it's moved aside for someone to look at, and only then marked applied.
+            String what = b.summaries.length > 0 ? b.summaries.length + " summaries" : b.samples.length + " samples";
+            setAside.addAndGet(b.size());
+            if (b.segment == null)
+                System.err.println("WARN: Lost a batch of " + what + " after " + b.failures + " tries");
+            else if (setAside(b.type(), b.encode(), b.segment))
+                System.err.println("WARN: Moved a batch of " + what + " aside after " + b.failures + " tries");
+        }
+    }
+
+    // Stop accepting samples. Writers finish draining whatever is already queued, and this returns once they are done.
+    public void stop() {
+        stop.set(true);
+        exceptionWriter.shutdown();
+        try {
+            for (Thread writer : writers)
+                writer.join();
+            exceptionWriter.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!retries.isEmpty())
+            System.err.println("WARN: " + retries.size() + " batches still failing. " + (wal != null ? "They stay in the log until the next start." : "They are lost."));
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getSetAside() {
+        return setAside.get();
+    }
+
+    public long getGroupCommits() {
+        return groupCommits.get();
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public String toString() {
+        return "IngestionPipeline{" +
+                "policy=" + policy +
+                ", queueDepth=" + getQueueDepth() + "/" + getQueueCapacity() +
+                ", maxQueueDepth=" + maxQueueDepth +
+                ", enqueued=" + enqueued +
+                ", written=" + written +
+                ", dropped=" + dropped +
+                ", rejected=" + rejected +
+                ", failed=" + failed +
+                ", setAside=" + setAside +
+                ", groupCommits=" + groupCommits +
+                ", wal=" + wal +
+                '}';
+    }
+}
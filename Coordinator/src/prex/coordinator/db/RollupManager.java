@@ -0,0 +1,353 @@
+package prex.coordinator.db;
+
+import prex.common.Sample;
+import prex.common.SampleRollup;
+import prex.common.SampleSummary;
+import prex.coordinator.store.SampleStore;
+import prex.coordinator.store.SegmentStore;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+// Keeps the rollups (see SampleRollup) and enforces the retention policies, so that the SAMPLE table doesn't grow
+// forever.
+//
+// The DB hands every batch it writes to add(), which folds the samples into an in-memory summary per feature, resolution
+// and bucket. A background thread writes out the buckets that are over (plus a grace period for late samples) every
+// few seconds, so the rollups never require reading samples back from the database. Samples that arrive after their
+// bucket was written are merged into the row that is already there.
+//
+// The same thread purges what is older than its time to live: raw samples and summaries (the DB's SampleStore, and
+// the SegmentStore) and each resolution of rollups, in small chunks.
+//
+// The open buckets only live in memory. stop() writes them out (the Server calls it from a shutdown hook), but after
+// a crash they are gone, so every start records the buckets between what the last run wrote out and where this one
+// begins as a gap (see SampleRollup), and so does a batch of rollups that can't be written. Training doesn't read the
+// rollups of runs that cross a gap.
+//
+// Like the DB, it is a singleton configured with system properties:
+//    prex.rollup.resolutions: bucket sizes in ms, comma-separated (default 1000,10000,60000). Empty turns rollups and
+//                             retention off (getInstance() returns null)
+//    prex.rollup.ttl:         how long to keep the rollups of each resolution, in ms, comma-separated and in the same
+//                             order (default: forever, which is also what 0 means)
+//    prex.retention.raw:      how long to keep raw samples, in ms (default 0, forever)
+//    prex.rollup.grace:       how long to wait for late samples before writing out a bucket, in ms (default 10s)
+//    prex.rollup.interval:    how often to write out buckets, in ms (default 5s)
+//    prex.retention.interval: how often to purge, in ms (default 1 minute)
+//    prex.rollup.minBuckets:  training reads rollups only if each window has at least this many buckets (default 10)
+public class RollupManager {
+    private static final int PURGE_CHUNK = 10000;
+
+    private static RollupManager rollups;
+    private static boolean initialized = false;
+    public static synchronized RollupManager getInstance() {
+        if (!initialized) {
+            initialized = true;
+            String resolutions = System.getProperty("prex.rollup.resolutions", "1000,10000,60000").trim();
+            if (!resolutions.isEmpty())
+                rollups = new RollupManager(parse(resolutions), parse(System.getProperty("prex.rollup.ttl", "")),
+                        Long.getLong("prex.retention.raw", 0),
+                        Long.getLong("prex.rollup.grace", 10000),
+                        Long.getLong("prex.rollup.interval", 5000),
+                        Long.getLong("prex.retention.interval", 60000),
+                        Integer.getInteger("prex.rollup.minBuckets", 10));
+        }
+        return rollups;
+    }
+
+    private static long[] parse(String list) {
+        if (list.trim().isEmpty())
+            return new long[0];
+        String[] parts = list.split(",");
+        long[] values = new long[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Long.parseLong(parts[i].trim());
+        return values;
+    }
+
+    private final int[] resolutions;
+    private final long[] ttls;
+    private final long[] since;
+    private final long rawTtl, grace, interval, purgeInterval;
+    private final int minBuckets;
+
+    // Per resolution: <feature id, <bucket start, summary>>, for the buckets that haven't been written out yet. All of
+    // this is guarded by this.
+    private final ArrayList<HashMap<Integer, TreeMap<Long, SampleSummary>>> open = new ArrayList<>();
+
+    // Per resolution: every bucket that starts before this has been written out (or was written out before a restart)
+    private final long[] written;
+    private final long[] persisted; // What the ROLLUP_RESOLUTION table says about written. Guarded by flushing.
+
+    // Per resolution: the {start, finish} of the gaps, where the rollups might be missing samples. Guarded by this.
+    private final ArrayList<ArrayList<long[]>> gaps = new ArrayList<>();
+
+    // Held while writing out buckets, so that two flushes don't race on the rows of late samples
+    private final Object flushing = new Object();
+
+    private final Thread thread;
+    private volatile boolean stop = false;
+
+    public RollupManager(long[] resolutions, long[] ttls, long rawTtl, long grace, long interval, long purgeInterval, int minBuckets) {
+        long now = System.currentTimeMillis();
+        this.resolutions = new int[resolutions.length];
+        this.ttls = new long[resolutions.length];
+        this.since = new long[resolutions.length];
+        this.written = new long[resolutions.length];
+        this.persisted = new long[resolutions.length];
+        for (int i = 0; i < resolutions.length; i++) {
+            int resolution = (int) resolutions[i];
+            this.resolutions[i] = resolution;
+            this.ttls[i] = i < ttls.length ? ttls[i] : 0;
+            this.since[i] = DBUtils.withConnection((c) -> SampleRollup.since(c, resolution, now));
+            this.written[i] = SampleSummary.bucketStart(now, resolution) + resolution;
+            open.add(new HashMap<>());
+
+            // Whatever the last run hadn't written out when it died (all of it, if it never said) is a gap. A clean
+            // stop leaves just the time the coordinator was down, when there were no samples anyway.
+            long lastWritten = DBUtils.withConnection((c) -> SampleRollup.written(c, resolution));
+            long gapStart = lastWritten >= 0 ? lastWritten : since[i];
+            long gapFinish = written[i];
+            if (gapStart < gapFinish)
+                DBUtils.withConnection((c) -> SampleRollup.insertGap(c, resolution, gapStart, gapFinish));
+            gaps.add(new ArrayList<>(DBUtils.withConnection((c) -> SampleRollup.gaps(c, resolution))));
+            persist(i, written[i]);
+        }
+        this.rawTtl = rawTtl;
+        this.grace = grace;
+        this.interval = interval;
+        this.purgeInterval = purgeInterval;
+        this.minBuckets = minBuckets;
+
+        thread = new Thread(this::loop, "prex-rollup");
+        thread.start();
+    }
+
+    // Fold samples that were just written into the rollups
+    public synchronized void add(Sample[] samples) {
+        for (int i = 0; i < resolutions.length; i++) {
+            HashMap<Integer, TreeMap<Long, SampleSummary>> buckets = open.get(i);
+            for (Sample s : samples) {
+                if (s == null || s.getFeatureId() == 0)
+                    continue;
+                long time = s.getTime().asMillis();
+                bucket(buckets, s.getFeatureId(), SampleSummary.bucketStart(time, resolutions[i]), resolutions[i]).add(time, s.getValue());
+            }
+        }
+    }
+
+    // Same, for the summaries of probes in summary mode. Each goes in the bucket where it starts, as in the time-window
+    // construction (see SummarizedDataset), even if it is longer than the bucket.
+    public synchronized void add(SampleSummary[] summaries) {
+        for (int i = 0; i < resolutions.length; i++) {
+            HashMap<Integer, TreeMap<Long, SampleSummary>> buckets = open.get(i);
+            for (SampleSummary s : summaries) {
+                if (s == null || s.getFeatureId() == 0 || s.getN() == 0)
+                    continue;
+                bucket(buckets, s.getFeatureId(), SampleSummary.bucketStart(s.getStart(), resolutions[i]), resolutions[i]).merge(s);
+            }
+        }
+    }
+
+    private static SampleSummary bucket(HashMap<Integer, TreeMap<Long, SampleSummary>> buckets, int featureId, long start, int resolution) {
+        TreeMap<Long, SampleSummary> feature = buckets.computeIfAbsent(featureId, (k) -> new TreeMap<>());
+        SampleSummary summary = feature.get(start);
+        if (summary == null) {
+            summary = new SampleSummary(featureId, null, null, start, resolution);
+            feature.put(start, summary);
+        }
+        return summary;
+    }
+
+    private void loop() {
+        long lastPurge = 0;
+        while (!stop) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                // Re-check the stop flag
+            }
+
+            long now = System.currentTimeMillis();
+            flush(now - grace);
+            if (now - lastPurge >= purgeInterval) {
+                purge(now);
+                lastPurge = now;
+            }
+        }
+
+        // Nothing is open anymore, so the rollups are complete up to now
+        flush(Long.MAX_VALUE);
+        long now = System.currentTimeMillis();
+        synchronized (flushing) {
+            for (int i = 0; i < resolutions.length; i++) {
+                long upTo;
+                synchronized (this) {
+                    upTo = written[i] = Math.max(written[i], SampleSummary.bucketStart(now, resolutions[i]) + resolutions[i]);
+                }
+                persist(i, upTo);
+            }
+        }
+    }
+
+    // Record up to when the buckets of resolution i have been written out, if that moved
+    private void persist(int i, long upTo) {
+        if (upTo > persisted[i] && DBUtils.withConnection((c) -> SampleRollup.setWritten(c, resolutions[i], upTo)))
+            persisted[i] = upTo;
+    }
+
+    // Write out every bucket that ends before the given time
+    public void flush(long before) {
+        synchronized (flushing) {
+            flushBuckets(before);
+        }
+    }
+
+    private void flushBuckets(long before) {
+        for (int i = 0; i < resolutions.length; i++) {
+            ArrayList<SampleSummary> done = new ArrayList<>();
+            long writtenBefore, writtenAfter;
+            synchronized (this) {
+                for (Iterator<TreeMap<Long, SampleSummary>> it = open.get(i).values().iterator(); it.hasNext(); ) {
+                    TreeMap<Long, SampleSummary> feature = it.next();
+                    while (!feature.isEmpty() && feature.firstKey() + resolutions[i] <= before)
+                        done.add(feature.pollFirstEntry().getValue());
+                    if (feature.isEmpty())
+                        it.remove();
+                }
+                writtenBefore = written[i];
+                if (before != Long.MAX_VALUE)
+                    written[i] = Math.max(written[i], SampleSummary.bucketStart(before, resolutions[i]));
+                writtenAfter = written[i];
+            }
+            if (done.isEmpty()) {
+                persist(i, writtenAfter);
+                continue;
+            }
+
+            // Late samples: their bucket might have a row already
+            int resolution = resolutions[i];
+            List<SampleSummary> rows = DBUtils.withConnection((c) -> {
+                ArrayList<SampleSummary> merged = new ArrayList<>(done.size());
+                for (SampleSummary s : done) {
+                    SampleSummary row = s.getStart() < writtenBefore ? SampleRollup.fetch(c, s.getFeatureId(), resolution, s.getStart()) : null;
+                    if (row != null) {
+                        row.merge(s);
+                        merged.add(row);
+                    } else
+                        merged.add(s);
+                }
+                return merged;
+            });
+            if (DBUtils.withConnection((c) -> SampleRollup.insertBatch(c, rows)) < 0) {
+                System.err.println("WARN: Lost " + rows.size() + " rollups of " + resolution + "ms");
+                long start = Long.MAX_VALUE, finish = Long.MIN_VALUE;
+                for (SampleSummary s : done) {
+                    start = Math.min(start, s.getStart());
+                    finish = Math.max(finish, s.getStart() + resolution);
+                }
+                gap(i, start, finish);
+            }
+            persist(i, writtenAfter);
+        }
+    }
+
+    private void gap(int i, long start, long finish) {
+        DBUtils.withConnection((c) -> SampleRollup.insertGap(c, resolutions[i], start, finish));
+        synchronized (this) {
+            gaps.get(i).add(new long[] { start, finish });
+        }
+    }
+
+    // Delete everything that is past its time to live
+    public void purge(long now) {
+        if (rawTtl > 0) {
+            long before = now - rawTtl;
+            SampleStore store = DB.getInstance().getSampleStore();
+            int purged = store.purgeBefore(before);
+            SegmentStore segments = SegmentStore.getInstance();
+            int files = segments != null && segments != store ? segments.purge(before) : 0;
+            if (purged + files > 0)
+                System.out.println("Purged " + purged + " samples and summaries from " + store + " and " + files + " segments");
+        }
+
+        for (int i = 0; i < resolutions.length; i++) {
+            if (ttls[i] <= 0)
+                continue;
+            int resolution = resolutions[i];
+            long before = now - ttls[i];
+            int n = purge((c) -> SampleRollup.deleteBefore(c, resolution, before, PURGE_CHUNK));
+            if (n > 0)
+                System.out.println("Purged " + n + " rollups of " + resolution + "ms");
+            DBUtils.withConnection((c) -> SampleRollup.deleteGapsBefore(c, resolution, before));
+            synchronized (this) {
+                gaps.get(i).removeIf((g) -> g[1] < before);
+            }
+        }
+    }
+
+    // Keep deleting chunks until there is nothing left to delete
+    private static int purge(Function<Connection, Integer> deleteChunk) {
+        int total = 0, n;
+        while ((n = DBUtils.withConnection(deleteChunk)) > 0)
+            total += n;
+        return total;
+    }
+
+    // The resolution training should read for windows of T ms, for a run over [start, finish], or 0 to read the raw
+    // samples. That's the coarsest resolution that divides T into at least minBuckets buckets, whose rollups cover the
+    // whole run (they were being computed when it started, haven't been purged, its end has been written out, and
+    // none of it falls in a gap).
+    public int resolutionFor(int T, long start, long finish) {
+        long now = System.currentTimeMillis();
+        for (int i = resolutions.length - 1; i >= 0; i--) {
+            int resolution = resolutions[i];
+            if (T % resolution != 0 || T / resolution < minBuckets)
+                continue;
+            if (start < since[i] || (ttls[i] > 0 && start < now - ttls[i]))
+                continue;
+            synchronized (this) {
+                if (finish >= written[i] || crossesGap(i, start, finish))
+                    continue;
+            }
+            return resolution;
+        }
+        return 0;
+    }
+
+    private boolean crossesGap(int i, long start, long finish) {
+        for (long[] gap : gaps.get(i))
+            if (start < gap[1] && finish >= gap[0])
+                return true;
+        return false;
+    }
+
+    // Have the raw samples of anything that started at the given time been purged?
+    public boolean isRawPurged(long start) {
+        return rawTtl > 0 && start < System.currentTimeMillis() - rawTtl;
+    }
+
+    // Stop the thread, writing out every bucket that is still open. Returns once they are written.
+    public void stop() {
+        stop = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder("RollupManager{resolutions=");
+        for (int i = 0; i < resolutions.length; i++)
+            b.append(i == 0 ? "" : ",").append(resolutions[i]).append("ms").append(ttls[i] > 0 ? " (ttl " + ttls[i] + "ms)" : "");
+        return b.append(", raw ttl=").append(rawTtl > 0 ? rawTtl + "ms" : "forever").append('}').toString();
+    }
+}
@@ -0,0 +1,411 @@
+package prex.coordinator.db;
+
+import prex.common.*;
+import prex.coordinator.store.EventStore;
+import prex.coordinator.store.FeatureSamples;
+import prex.coordinator.store.SampleStore;
+import prex.coordinator.store.SegmentStore;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static prex.common.protocol.MessageCodec.*;
+
+// Run archives: everything about one execution run (the run itself, the samples and summaries of every feature within
+// it and the exceptions recorded during it) in one file, so that a run can be moved from one coordinator to another
+// (e.g. from production to a training box) without copying the whole prex-db or the .dataset caches, which are
+// serialized Java objects and break whenever the classes change.
+//
+// An archive is the magic bytes "PREXRUN", a version byte and then a gzipped stream of
+//
+//    varint  the run's ID where it was exported (informative, imports get a new ID)
+//    long    start and finish of the run, epoch ms
+//    blocks, each starting with a type byte:
+//       FEATURE:    name and src, then the samples as a GorillaCodec series (count, first time, length of the bits, the
+//                   bits) and the summaries (count, then the fields of each one, with times as deltas)
+//       EXCEPTIONS: count, then the class, the context and the time (as a delta) of each exception
+//       END:        number of features and samples, to make sure nothing was lost on the way
+//
+// Features are identified by <name,src> rather than by ID, since IDs differ between coordinators. Files are written
+// and read as streams: at most a few features are held in memory at any time. Exports read and encode several
+// features at once (one per encoder thread), and write them out in order as they come. Imports write each feature in
+// chunks, through the DB (so the feature stats and the rollups are updated as if the samples had just arrived), and
+// append the samples to the SegmentStore too, like the IngestionPipeline does: training reads runs from the segments
+// when they go back far enough (see SegmentStore.covers), and an imported run can fall in there.
+//
+// An import always logs a new run, so importing the same archive twice gets two runs with the same samples (and the
+// exceptions are only written once, since they are unique per time, class and context). Samples of the run that are
+// already there (same feature and time) are replaced.
+//
+// Archives are exported and imported by the coordinator, on its own filesystem, when the admin console asks it to
+// (see ExportRunMessage and ImportRunMessage), one at a time. Anyone who can connect can ask, so the paths they give
+// are taken relative to the archive directory, and anything that ends up outside of it is refused. It is configured
+// with system properties:
+//    prex.archive.threads: encoder threads (default: the number of cores)
+//    prex.archive.dir:     the archive directory (default prex-archives)
+public class RunArchive {
+    private static final byte[] MAGIC = { 'P', 'R', 'E', 'X', 'R', 'U', 'N' };
+    private static final byte VERSION = 1;
+    private static final byte END = 0, FEATURE = 1, EXCEPTIONS = 2;
+
+    // Samples (and summaries) written to the DB at once when importing
+    private static final int IMPORT_CHUNK = 10000;
+
+    private static RunArchive archive;
+    public static synchronized RunArchive getInstance() {
+        if (archive == null)
+            archive = new RunArchive(DB.getInstance(), Integer.getInteger("prex.archive.threads", Runtime.getRuntime().availableProcessors()),
+                    Paths.get(System.getProperty("prex.archive.dir", "prex-archives")));
+        return archive;
+    }
+
+    private final DB db;
+    private final int threads;
+    private final Path dir;
+    private final ExecutorService encoders;
+
+    // Exports and imports asked for by the admin console, one at a time
+    private final ExecutorService jobs = Executors.newSingleThreadExecutor((r) -> {
+        Thread t = new Thread(r, "prex-run-archive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public RunArchive(DB db, int threads, Path dir) {
+        this.db = db;
+        this.dir = dir;
+        this.threads = Math.max(1, threads);
+        AtomicInteger n = new AtomicInteger();
+        this.encoders = Executors.newFixedThreadPool(this.threads, (r) -> {
+            Thread t = new Thread(r, "prex-archive-encoder-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // What went in or out of an archive
+    public static class Stats {
+        public int run;
+        public int features;
+        public long samples;
+        public long summaries;
+        public int exceptions;
+        public long bytes;
+
+        @Override
+        public String toString() {
+            return "run " + run + ": " + features + " features, " + samples + " samples, " + summaries + " summaries, " +
+                    exceptions + " exceptions, " + bytes + " bytes";
+        }
+    }
+
+    // Export or import in the background, printing how it went. The name is a path within the archive directory.
+    public void exportInBackground(int runNo, String name) {
+        jobs.submit(() -> {
+            try {
+                Path file = resolve(name);
+                System.out.println("Exported " + exportRun(runNo, file) + " to " + file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("WARN: Can't export run " + runNo + " to " + name);
+            }
+        });
+    }
+
+    public void importInBackground(String name) {
+        jobs.submit(() -> {
+            try {
+                Path file = resolve(name);
+                System.out.println("Imported " + importRun(file) + " from " + file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("WARN: Can't import a run from " + name);
+            }
+        });
+    }
+
+    // The file with the given name in the archive directory. Names that lead anywhere else (absolute paths, "..",
+    // symbolic links pointing out of it) are refused.
+    public Path resolve(String name) throws IOException {
+        Path base = Files.createDirectories(dir).toRealPath();
+        Path file = base.resolve(name).normalize();
+        if (!file.startsWith(base) || file.equals(base) || !file.getParent().toRealPath().startsWith(base) ||
+                (Files.exists(file) && !file.toRealPath().startsWith(base)))
+            throw new IOException(name + " is not in the archive directory " + base);
+        return file;
+    }
+
+    // Write the run to the file. It is written to a temporary file first, so a failed export never leaves a
+    // truncated archive behind.
+    public Stats exportRun(int runNo, Path file) throws IOException {
+        EventStore events = db.getEventStore();
+        ExecutionRun run = events.getRun(runNo);
+        if (run.getStart() == null)
+            throw new IOException("There is no run " + runNo);
+        long from = run.getStart().asMillis(), to = run.getFinish().asMillis() + 1; // The run's finish is inclusive
+
+        Stats stats = new Stats();
+        stats.run = runNo;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream raw = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            raw.write(MAGIC);
+            raw.write(VERSION);
+            DataOutputStream out = new DataOutputStream(new GZIPOutputStream(raw, 1 << 16));
+            writeVarInt(out, runNo);
+            out.writeLong(from);
+            out.writeLong(to - 1);
+
+            // Keep the encoders busy, but don't let them get too far ahead of the file
+            SampleStore store = db.getSampleStore();
+            ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+            ArrayList<Feature> features = new ArrayList<>(db.getFeatureCatalog().all());
+            features.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+            for (Feature f : features) {
+                if (f.getSamples() > 0 && (f.getLastSeen() < from || f.getFirstSeen() >= to))
+                    continue; // Nothing in the run, according to the catalog
+                pending.add(encoders.submit(() -> encode(store, f, from, to)));
+                if (pending.size() >= threads * 2)
+                    writeBlock(out, pending.poll(), stats);
+            }
+            while (!pending.isEmpty())
+                writeBlock(out, pending.poll(), stats);
+
+            List<RecordedException> exceptions = events.getExceptions(from, to);
+            out.writeByte(EXCEPTIONS);
+            writeVarInt(out, exceptions.size());
+            long previous = from;
+            for (RecordedException e : exceptions) {
+                writeString(out, e.getExceptionClass());
+                writeString(out, e.getContext().getName());
+                writeVarLong(out, zigZag(e.getTime().asMillis() - previous));
+                previous = e.getTime().asMillis();
+            }
+            stats.exceptions = exceptions.size();
+
+            out.writeByte(END);
+            writeVarInt(out, stats.features);
+            writeVarLong(out, stats.samples);
+            out.close();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        stats.bytes = Files.size(file);
+        return stats;
+    }
+
+    // An encoded FEATURE block (null data if the feature has nothing in the run)
+    private static final class Block {
+        byte[] data;
+        int samples;
+        int summaries;
+    }
+
+    private static Block encode(SampleStore store, Feature f, long from, long to) throws IOException {
+        FeatureSamples samples = new FeatureSamples();
+        store.scan(f.getId(), from, to, samples);
+        samples.sortAndDedup();
+        List<SampleSummary> summaries = store.getSummaries(f.getId(), from, to);
+
+        Block block = new Block();
+        block.samples = samples.n;
+        block.summaries = summaries.size();
+        if (samples.n == 0 && summaries.isEmpty())
+            return block;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + samples.n * 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FEATURE);
+        writeString(out, f.getName());
+        writeString(out, f.getSrc());
+
+        writeVarInt(out, samples.n);
+        if (samples.n > 0) {
+            GorillaCodec.BitWriter bits = new GorillaCodec.BitWriter(samples.n * 2 + 16);
+            GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(bits, samples.times[0]);
+            for (int i = 0; i < samples.n; i++)
+                encoder.add(samples.times[i], samples.values[i]);
+            bits.flush();
+            writeVarLong(out, zigZag(samples.times[0] - from));
+            writeVarInt(out, bits.size());
+            out.write(bits.buffer(), 0, bits.size());
+        }
+
+        writeVarInt(out, summaries.size());
+        long previous = from;
+        for (SampleSummary s : summaries) {
+            writeVarLong(out, zigZag(s.getStart() - previous));
+            writeVarInt(out, s.getBucketMs());
+            writeVarInt(out, s.getN());
+            out.writeDouble(s.getRawMean());
+            out.writeDouble(s.getM2());
+            out.writeFloat(s.getMin());
+            out.writeFloat(s.getMax());
+            writeVarLong(out, zigZag(s.getFirstTime() - s.getStart()));
+            out.writeFloat(s.getFirstValue());
+            writeVarLong(out, zigZag(s.getLastTime() - s.getStart()));
+            out.writeFloat(s.getLastValue());
+            previous = s.getStart();
+        }
+        out.flush();
+        block.data = bytes.toByteArray();
+        return block;
+    }
+
+    private static void writeBlock(DataOutputStream out, Future<Block> future, Stats stats) throws IOException {
+        Block block;
+        try {
+            block = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding");
+        } catch (ExecutionException e) {
+            throw new IOException("Can't encode a feature", e.getCause());
+        }
+        if (block.data == null)
+            return;
+        out.write(block.data);
+        stats.features++;
+        stats.samples += block.samples;
+        stats.summaries += block.summaries;
+    }
+
+    // Read the run from the file into this coordinator, as a new run
+    public Stats importRun(Path file) throws IOException {
+        Stats stats = new Stats();
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file))) {
+            byte[] magic = new byte[MAGIC.length];
+            if (raw.read(magic) != magic.length || !Arrays.equals(magic, MAGIC))
+                throw new IOException(file + " is not a run archive");
+            int version = raw.read();
+            if (version != VERSION)
+                throw new IOException(file + " is a version " + version + " run archive, and we only know version " + VERSION);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(raw, 1 << 16)));
+            int exportedRun = readVarInt(in);
+            long from = in.readLong(), finish = in.readLong();
+
+            FeatureCatalog catalog = db.getFeatureCatalog();
+            byte type;
+            while ((type = in.readByte()) != END) {
+                if (type == FEATURE)
+                    readFeature(in, catalog, from, stats);
+                else if (type == EXCEPTIONS)
+                    readExceptions(in, from, stats);
+                else
+                    throw new IOException("Unknown block " + type + " in " + file);
+            }
+            int features = readVarInt(in);
+            long samples = readVarLong(in);
+            if (features != stats.features || samples != stats.samples)
+                throw new IOException(file + " should have " + features + " features and " + samples + " samples, but it has " +
+                        stats.features + " and " + stats.samples);
+
+            // The run goes last, so that a run with half its samples never shows up
+            stats.run = db.logRun(new PreXTimestamp(new Date(from)), new PreXTimestamp(new Date(finish)));
+            if (stats.run <= 0)
+                throw new IOException("Can't log the run");
+            System.out.println("Run " + exportedRun + " of " + file + " is now run " + stats.run);
+        }
+        stats.bytes = Files.size(file);
+        return stats;
+    }
+
+    private void readFeature(DataInputStream in, FeatureCatalog catalog, long from, Stats stats) throws IOException {
+        String name = readString(in), src = readString(in);
+        int featureId = catalog.featureId(name, src);
+        if (featureId == 0)
+            throw new IOException("Can't create feature " + name + "@" + src);
+
+        int n = readVarInt(in);
+        if (n > 0) {
+            long first = from + unZigZag(readVarLong(in));
+            byte[] buffer = new byte[readVarInt(in)];
+            in.readFully(buffer);
+            GorillaCodec.Decoder decoder = new GorillaCodec.Decoder(new GorillaCodec.BitReader(buffer, 0, buffer.length), first);
+            SegmentStore segments = SegmentStore.getInstance();
+            if (segments == db.getSampleStore())
+                segments = null; // The DB writes to it already
+            try {
+                for (int i = 0; i < n; i += IMPORT_CHUNK) {
+                    Sample[] chunk = new Sample[Math.min(n - i, IMPORT_CHUNK)];
+                    for (int j = 0; j < chunk.length; j++) {
+                        decoder.next();
+                        chunk[j] = new Sample(new PreXTimestamp(new Date(decoder.getTime())), featureId, name, src, decoder.getValue());
+                    }
+                    if (!db.writeSamples(chunk))
+                        throw new IOException("Can't write the samples of " + name + "@" + src);
+                    if (segments != null && !segments.append(chunk))
+                        throw new IOException("Can't append the samples of " + name + "@" + src + " to " + segments);
+                }
+            } catch (IllegalStateException e) {
+                throw new IOException("Truncated sample series of " + name + "@" + src, e);
+            }
+        }
+
+        int numSummaries = readVarInt(in);
+        ArrayList<SampleSummary> summaries = new ArrayList<>(Math.min(numSummaries, IMPORT_CHUNK));
+        long previous = from;
+        for (int i = 0; i < numSummaries; i++) {
+            long start = previous + unZigZag(readVarLong(in));
+            int bucketMs = readVarInt(in);
+            int count = readVarInt(in);
+            double mean = in.readDouble(), m2 = in.readDouble();
+            float min = in.readFloat(), max = in.readFloat();
+            long firstTime = start + unZigZag(readVarLong(in));
+            float firstValue = in.readFloat();
+            long lastTime = start + unZigZag(readVarLong(in));
+            float lastValue = in.readFloat();
+            summaries.add(new SampleSummary(featureId, name, src, start, bucketMs, count, mean, m2, min, max,
+                    firstTime, firstValue, lastTime, lastValue));
+            previous = start;
+            if (summaries.size() == IMPORT_CHUNK || i == numSummaries - 1) {
+                if (!db.writeSummaries(summaries.toArray(new SampleSummary[0])))
+                    throw new IOException("Can't write the summaries of " + name + "@" + src);
+                summaries.clear();
+            }
+        }
+
+        stats.features++;
+        stats.samples += n;
+        stats.summaries += numSummaries;
+    }
+
+    private void readExceptions(DataInputStream in, long from, Stats stats) throws IOException {
+        int n = readVarInt(in);
+        long previous = from;
+        for (int i = 0; i < n; i++) {
+            String exceptionClass = readString(in), context = readString(in);
+            long time = previous + unZigZag(readVarLong(in));
+            previous = time;
+            // Already there if the archive was imported before (see the top), like when the IngestionPipeline replays
+            if (!db.getEventStore().getExceptions(context, exceptionClass, time, time + 1).isEmpty())
+                continue;
+            if (!db.writeRecordedException(new RecordedException(new PreXTimestamp(new Date(time)), exceptionClass, new PredictionContext(context))))
+                System.err.println("WARN: Can't import " + exceptionClass + " of " + context + " at " + time);
+            else
+                stats.exceptions++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RunArchive{threads=" + threads + "}";
+    }
+}
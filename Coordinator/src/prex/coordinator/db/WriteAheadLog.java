@@ -0,0 +1,338 @@
+package prex.coordinator.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+// The ingest write-ahead log. The IngestionPipeline appends every sample or summary batch and recorded exception it
+// accepts to the log before handing it to the writers, and considers it accepted once the log is on disk. The writers
+// then apply it to the store whenever they get to it. If the coordinator dies before that, whatever wasn't applied is replayed
+// when it starts again (see replay).
+//
+// The log is a sequence of segment files, <dir>/<sequence number>.wal, each preallocated (filled with zeros) when it
+// is created, so that appends never grow the file and syncing it doesn't have to write any metadata. Records are
+//
+//    int   payload length (0 marks the end of the records, it's the preallocated zeros)
+//    int   CRC32 of the type and the payload
+//    byte  type (SAMPLES, EXCEPTION or SUMMARIES)
+//    ...   payload
+//
+// A record with a bad CRC is a write that was torn by the crash, and replay stops there.
+//
+// Appends only write to the file. A flusher thread syncs it (group commit): whenever a thread is waiting for its
+// records to be on disk (see sync), or every syncInterval otherwise, it syncs everything written so far with a single
+// force(). A segment is deleted once the log has moved on to the next one and every record in it has been applied.
+//
+// Records that can't be applied no matter how many times they're tried would keep their segment forever (and be
+// replayed on every start), so they are moved aside instead: copied, in the same format, to <dir>/set-aside.rec, for
+// someone to look at. So are batches the IngestionPipeline drops on purpose (DROP_OLDEST).
+//
+// It is configured with system properties (see IngestionPipeline.fromSystemProperties):
+//    prex.wal:              "false" turns it off (fromSystemProperties() returns null)
+//    prex.wal.dir:          where to put it (default prex-wal)
+//    prex.wal.segmentSize:  size of each segment, in bytes (default 64MB)
+//    prex.wal.syncInterval: how often to sync when nobody is waiting, in ms (default 10)
+public class WriteAheadLog {
+    public static final int SAMPLES = 1, EXCEPTION = 2, SUMMARIES = 3;
+    private static final int HEADER = 9;
+
+    // One file of the log, and how many of its records are still waiting to be applied
+    public final class Segment {
+        final long sequence;
+        final Path path;
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean sealed = false;
+        private final AtomicBoolean deleted = new AtomicBoolean(false);
+
+        Segment(long sequence, Path path) {
+            this.sequence = sequence;
+            this.path = path;
+        }
+
+        // No more records will go to it
+        void seal() {
+            sealed = true;
+            deleteIfDone();
+        }
+
+        void deleteIfDone() {
+            if (sealed && pending.get() == 0 && deleted.compareAndSet(false, true)) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.err.println("WARN: Can't delete log segment " + path + ": " + e);
+                }
+            }
+        }
+    }
+
+    public interface RecordVisitor {
+        void visit(Segment segment, int type, ByteBuffer payload);
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    private final long syncIntervalMs;
+
+    // The segments left over by a previous run, waiting to be replayed
+    private final ArrayList<Segment> leftover = new ArrayList<>();
+
+    // The segment being written. Guarded by this
+    private Segment current;
+    private FileChannel channel;
+    private long position;
+    private long size;
+
+    // Bytes appended, and bytes known to be on disk (guarded by synced)
+    private volatile long written = 0;
+    private long durable = 0;
+    private final Object synced = new Object();
+
+    private final Object setAsideLock = new Object();
+
+    // Metrics
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+
+    public WriteAheadLog(Path dir, int segmentSize, long syncIntervalMs) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncIntervalMs = syncIntervalMs;
+        Files.createDirectories(dir);
+
+        long last = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.wal")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long sequence = Long.parseLong(name.substring(0, name.length() - ".wal".length()));
+                    leftover.add(new Segment(sequence, file));
+                    last = Math.max(last, sequence);
+                } catch (NumberFormatException e) {
+                    System.err.println("WARN: Skipping " + file);
+                }
+            }
+        }
+        leftover.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+
+        synchronized (this) {
+            roll(last + 1, 0);
+        }
+
+        Thread flusher = new Thread(this::flushLoop, "prex-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public static WriteAheadLog fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("prex.wal", "true")))
+            return null;
+        try {
+            return new WriteAheadLog(Paths.get(System.getProperty("prex.wal.dir", "prex-wal")),
+                    Integer.getInteger("prex.wal.segmentSize", 64 * 1024 * 1024),
+                    Long.getLong("prex.wal.syncInterval", 10));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("WARN: Can't open the write-ahead log. Samples will only be written to the store.");
+            return null;
+        }
+    }
+
+    // Start a new segment, big enough for at least one record of the given length
+    private void roll(long sequence, int recordLength) throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            current.seal();
+        }
+
+        current = new Segment(sequence, dir.resolve(String.format("%020d.wal", sequence)));
+        size = Math.max(segmentSize, recordLength);
+        channel = FileChannel.open(current.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer zeros = ByteBuffer.allocateDirect(1024 * 1024);
+        for (long p = 0; p < size; p += zeros.capacity()) {
+            zeros.clear();
+            if (size - p < zeros.capacity())
+                zeros.limit((int) (size - p));
+            while (zeros.hasRemaining())
+                channel.write(zeros, p + zeros.position());
+        }
+        channel.force(true);
+        position = 0;
+    }
+
+    // Append a record. Returns the segment it went to: tell the log when it has been applied (see applied). It isn't
+    // necessarily on disk yet, see sync.
+    public synchronized Segment append(int type, byte[] payload) throws IOException {
+        int length = HEADER + payload.length;
+        if (position + length > size)
+            roll(current.sequence + 1, length);
+
+        ByteBuffer b = record(type, payload);
+        while (b.hasRemaining())
+            position += channel.write(b, position);
+
+        current.pending.incrementAndGet();
+        records.incrementAndGet();
+        written += length;
+        return current;
+    }
+
+    private static ByteBuffer record(int type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer b = ByteBuffer.allocate(HEADER + payload.length);
+        b.putInt(payload.length).putInt((int) crc.getValue()).put((byte) type).put(payload);
+        b.flip();
+        return b;
+    }
+
+    // Wait until everything appended so far is on disk
+    public void sync() {
+        long target = written;
+        synchronized (synced) {
+            if (durable >= target)
+                return;
+            synced.notifyAll(); // Wake up the flusher
+            while (durable < target) {
+                try {
+                    synced.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Copy a record that can't be applied to the set-aside file, and wait until it's on disk. Mark it applied after
+    // this, so that its segment can go.
+    public void setAside(int type, byte[] payload) throws IOException {
+        ByteBuffer b = record(type, payload);
+        synchronized (setAsideLock) {
+            try (FileChannel ch = FileChannel.open(dir.resolve("set-aside.rec"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (b.hasRemaining())
+                    ch.write(b);
+                ch.force(false);
+            }
+        }
+    }
+
+    // A record of the segment was applied to the store (or thrown away on purpose)
+    public void applied(Segment segment) {
+        segment.pending.decrementAndGet();
+        segment.deleteIfDone();
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (synced) {
+                try {
+                    if (durable == written)
+                        synced.wait(syncIntervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            long target;
+            FileChannel ch;
+            synchronized (this) {
+                target = written;
+                ch = channel;
+            }
+            if (target == durable)
+                continue;
+
+            try {
+                ch.force(false);
+            } catch (ClosedChannelException e) {
+                // The log moved on to another segment, which syncs the old one
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            syncs.incrementAndGet();
+            synchronized (synced) {
+                durable = target;
+                synced.notifyAll();
+            }
+        }
+    }
+
+    // Hand every record left over by a previous run to the visitor, segment by segment. Each record counts as pending
+    // until it is applied, like the ones appended now. Returns the number of records replayed.
+    public int replay(RecordVisitor visitor) {
+        int n = 0;
+        for (Segment segment : leftover) {
+            try (FileChannel ch = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                ByteBuffer b = ByteBuffer.allocate((int) ch.size());
+                while (b.hasRemaining() && ch.read(b) >= 0) ;
+                b.flip();
+
+                while (b.remaining() >= HEADER) {
+                    int length = b.getInt();
+                    int crc = b.getInt();
+                    int type = b.get();
+                    if (length == 0)
+                        break;
+                    if (length < 0 || length > b.remaining()) {
+                        System.err.println("WARN: Torn record in " + segment.path + ". Stopping there.");
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    b.get(payload);
+                    CRC32 check = new CRC32();
+                    check.update(type);
+                    check.update(payload);
+                    if ((int) check.getValue() != crc) {
+                        System.err.println("WARN: Torn record in " + segment.path + ". Stopping there.");
+                        break;
+                    }
+
+                    segment.pending.incrementAndGet();
+                    visitor.visit(segment, type, ByteBuffer.wrap(payload));
+                    n++;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("WARN: Can't replay " + segment.path + ". Leaving it there.");
+                continue;
+            }
+            segment.seal();
+        }
+        leftover.clear();
+        return n;
+    }
+
+    public long getBytesWritten() {
+        return written;
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    @Override
+    public String toString() {
+        return "WriteAheadLog{dir=" + dir + ", segmentSize=" + segmentSize + ", syncInterval=" + syncIntervalMs + "ms" +
+                ", records=" + records + ", syncs=" + syncs + "}";
+    }
+}
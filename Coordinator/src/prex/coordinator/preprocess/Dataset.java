@@ -3,17 +3,25 @@ package prex.coordinator.preprocess;
 import prex.common.*;
 import prex.coordinator.db.DB;
 import prex.coordinator.db.DBUtils;
+import prex.coordinator.db.RollupManager;
+import prex.coordinator.store.FeatureSamples;
+import prex.coordinator.store.RecentSampleStore;
+import prex.coordinator.store.SampleStore;
+import prex.coordinator.store.SegmentStore;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 // A Dataset encapsulates samples and exceptions for a given execution run. It is often passed to a SummarizedDataset.
 // Note that datasets are always relative to some exception within some prediction context. They then possess
 // appropriate estructures for quickly building the summarized dataset (e.g., all samples are acessible through
-// their sample ids (name-src pairs).
-// This should get a major overhaul if we implement the SampleID class. Right now it'd be too much of a hassle.
+// their feature ids, see Feature).
 //
 // Note that a dataset can be saved to and read from disk. Dataset files are serialized versions of this class with
 // the .dataset suffix. This is extremely useful when the SAMPLE table grows very large and it compensates to just
@@ -23,12 +31,19 @@ public class Dataset implements Serializable {
     private PreXException exception;
     private ArrayList<String> featureNames;
 
+    // The feature ID of each of the features above (same order). 0 if the feature has never been sampled.
+    private ArrayList<Integer> featureIds;
+
     // All samples, ordered by first to last
     private ArrayList<Sample> samples;
 
-    // <sample-id, [sample1, sample2, sample3 ... (ordered by first to last) ]>
+    // <feature-id, [sample1, sample2, sample3 ... (ordered by first to last) ]>
     // Use to quickly get all samples with the same ID in ascending order of timestamp
-    private Map<String,ArrayList<Sample>> samplesMap;
+    private Map<Integer,ArrayList<Sample>> samplesMap;
+
+    // <feature-id, [summary1, summary2 ... (ordered by bucket) ]>, for features sampled by probes in summary mode.
+    // Null in dataset files saved before summaries existed.
+    private Map<Integer,ArrayList<SampleSummary>> summariesMap;
 
     // All recorded exception, ordered by first to last
     private ArrayList<RecordedException> exceptions;
@@ -36,26 +51,47 @@ public class Dataset implements Serializable {
     // Might be -1 if, e.g., this is being used at run-time to make predictions
     private int runNo;
 
+    // The size of the windows this dataset is for, in ms (0 if unknown). Large enough windows are built from rollups
+    private int T;
+
+    // The resolution of the rollups the samples were read from instead (see RollupManager), or 0 if they are raw. In
+    // that case, there are no samples, and the rollups are in the summaries map.
+    private int resolution;
+
+    // True if the samples were summarized as they were read, one summary per feature and window of T ms (starting at
+    // the start of the run). Then there are no samples either, only those summaries. This is how runs are read for
+    // training whenever T is known, so that a long run never has to be held in memory sample by sample.
+    private boolean windowed;
+
     private transient DB db;
 
     public Dataset(PredictionContext context, PreXException exception, int runNo) {
+        this(context, exception, runNo, 0);
+    }
+
+    public Dataset(PredictionContext context, PreXException exception, int runNo, int T) {
         this.db = DB.getInstance();
+        this.T = T;
         this.context = context;
         this.exception = exception;
         this.runNo = runNo;
         this.samples = new ArrayList<>();
         this.exceptions= new ArrayList<>();
         this.samplesMap = new HashMap<>();
+        this.summariesMap = new HashMap<>();
 
         // Ensure the context exists! Might create it
-        DBUtils.withConnection(context::ensureExistsAndFetchIDs);
+        db.ensureContext(context);
         this.featureNames = DBUtils.withConnection(context::getFeatureNames);
+        this.featureIds = DBUtils.withConnection(context::getFeatureIds);
     }
 
     // Each dataset can be uniquely identified by a triplet: <context, exception, runNo>. This is used to load
     // and save datasets based on these three identifiers. See load() and save()
+    // Datasets read from rollups also carry the resolution, and the ones summarized per window, the size of the windows.
     private String getDatasetName() {
-        return context.getName() + "_" + exception.getExceptionClass() + "_" + runNo;
+        return context.getName() + "_" + exception.getExceptionClass() + "_" + runNo + (resolution > 0 ? "_r" + resolution : "")
+                + (windowed ? "_w" + T : "");
     }
 
     public void saveToFile() {
@@ -84,9 +120,11 @@ public class Dataset implements Serializable {
         //this.exception = d.exception;  //Should be the same
         this.exceptions = d.exceptions;
         this.featureNames = d.featureNames; //probably the same
+        this.featureIds = d.featureIds;
         this.samples = d.samples;
         //this.runNo = d.runNo; //Should be the same
         this.samplesMap = d.samplesMap;
+        this.summariesMap = d.summariesMap != null ? d.summariesMap : new HashMap<>();
         return true;
 
     }
@@ -106,31 +144,44 @@ public class Dataset implements Serializable {
 
 
     // This fetches all samples since te given timestamp and adds it to this dataset. This is presumably done at
-    // run-time for predicting.
+    // run-time for predicting, so the samples come from the in-memory RecentSampleStore rather than the database.
     public void gatherSamplesSince(PreXTimestamp t) {
         samples = new ArrayList<>();
-        samples.addAll(DBUtils.withConnection((c) -> context.getSamplesSince(c, t)));
+        samples.addAll(RecentSampleStore.getInstance().getSamplesSince(featureIds, t.asMillis()));
 
         buildSamplesMap();
+        buildSummariesMap(RecentSampleStore.getInstance().getSummariesSince(featureIds, t.asMillis()));
         System.err.println("SamplesMap size:" + samplesMap.size());
     }
 
-    // Builds the map of <sample-id, [sample1, sample2, sample3 ... (ordered by first to last) ]>
+    // Builds the map of <feature-id, [sample1, sample2, sample3 ... (ordered by first to last) ]>
     // from the samples arraylist
     private void buildSamplesMap() {
         System.out.println("Building sample maps");
-        for ( Sample s : samples ) {
-            if ( samplesMap.containsKey(s.getId()) )
-                samplesMap.get(s.getId()).add(s);
-            else
-                samplesMap.put(s.getId(), new ArrayList<>());
-        }
+        for ( Sample s : samples )
+            samplesMap.computeIfAbsent(s.getFeatureId(), (k) -> new ArrayList<>()).add(s);
+    }
+
+    private void buildSummariesMap(List<SampleSummary> summaries) {
+        summariesMap = new HashMap<>();
+        for ( SampleSummary s : summaries )
+            summariesMap.computeIfAbsent(s.getFeatureId(), (k) -> new ArrayList<>()).add(s);
+        for ( ArrayList<SampleSummary> l : summariesMap.values() )
+            l.sort((a, b) -> Long.compare(a.getStart(), b.getStart()));
     }
 
     // Grabs the current context, exception name and run number and builds the corresponding dataset.
-    // It first checks to see if we have a cached version of the dataset. If we don't, then it queries the database
-    // for the right data, which might be very slow for very large datasets.
+    // It first checks to see if we have a cached version of the dataset. If we don't, then it reads the rollups (if
+    // the windows are large enough, see RollupManager.resolutionFor), the samples from the SegmentStore (if the run is
+    // recent enough to be in there) or from the DB's SampleStore, which might be very slow for very large datasets.
     public void gatherSamplesAndExceptions() {
+        ExecutionRun run = db.getEventStore().getRun(runNo);
+        RollupManager rollups = RollupManager.getInstance();
+        resolution = 0;
+        if (rollups != null && run.getStart() != null && T > 0)
+            resolution = rollups.resolutionFor(T, run.getStart().asMillis(), run.getFinish().asMillis());
+        windowed = resolution == 0 && T > 0;
+
         if ( loadFromExistingFile() ) {
             System.out.println("Loaded dataset from existing dataset!");
             return;
@@ -139,9 +190,26 @@ public class Dataset implements Serializable {
 
 
             samples = new ArrayList<>();
-            samples.addAll(DBUtils.withConnection((c) -> context.getSamplesFromRun(c, runNo)));
+            if (run.getStart() == null) {
+                System.err.println("WARN: There is no run " + runNo);
+            } else if (resolution > 0) {
+                // The rollups include the summaries of probes in summary mode
+                System.out.println("Reading the " + resolution + "ms rollups");
+                buildSummariesMap(DBUtils.withConnection((c) -> context.getRollupsFromRun(c, runNo, resolution)));
+            } else {
+                long from = run.getStart().asMillis(), to = run.getFinish().asMillis() + 1; // The run's finish is inclusive
+                if (rollups != null && rollups.isRawPurged(from))
+                    System.err.println("WARN: The samples of run " + runNo + " have been purged, and there are no rollups for windows of " + T + "ms");
+
+                // The segments are faster to read than most stores, if they go back far enough
+                SampleStore store = db.getSampleStore();
+                SegmentStore segments = SegmentStore.getInstance();
+                gatherFromStore(segments != null && segments.covers(from) ? segments : store, store, from, to);
+            }
             System.out.println("Samples gathered");
-            exceptions.addAll(DBUtils.withConnection((c) -> context.getExceptionsOfTypeFromRun(c, runNo, exception)));
+            if (run.getStart() != null)
+                exceptions.addAll(db.getEventStore().getExceptions(context.getName(), exception.getExceptionClass(),
+                        run.getStart().asMillis(), run.getFinish().asMillis() + 1));
             System.out.println("Exceptions gathered");
 
             buildSamplesMap();
@@ -150,6 +218,45 @@ public class Dataset implements Serializable {
 
     }
 
+    // The samples (and summaries) of the context's features in [from, to): a range scan per feature (see SampleStore)
+    // instead of a join over the whole SAMPLE table. Only one feature is held in memory at a time, as primitive
+    // columns. When the dataset is windowed, each feature is summarized per window right away, and that's all that's
+    // kept of it.
+    private void gatherFromStore(SampleStore sampleStore, SampleStore summaryStore, long from, long to) {
+        for (int featureId : featureIds) {
+            Feature f = featureId == 0 ? null : db.getFeatureCatalog().get(featureId);
+            if (f == null)
+                continue;
+            FeatureSamples featureSamples = new FeatureSamples();
+            sampleStore.scan(featureId, from, to, featureSamples);
+            featureSamples.sortAndDedup();
+            List<SampleSummary> summaries = summaryStore.getSummaries(featureId, from, to);
+
+            if (windowed) {
+                // <window start, summary>
+                TreeMap<Long, SampleSummary> windows = new TreeMap<>();
+                for (int i = 0; i < featureSamples.n; i++)
+                    window(windows, f, from, featureSamples.times[i]).add(featureSamples.times[i], featureSamples.values[i]);
+                for (SampleSummary s : summaries)
+                    window(windows, f, from, s.getStart()).merge(s);
+                if (!windows.isEmpty())
+                    summariesMap.put(featureId, new ArrayList<>(windows.values()));
+            } else {
+                for (int i = 0; i < featureSamples.n; i++)
+                    samples.add(new Sample(new PreXTimestamp(new Date(featureSamples.times[i])), featureId, f.getName(), f.getSrc(), featureSamples.values[i]));
+                if (!summaries.isEmpty())
+                    summariesMap.put(featureId, new ArrayList<>(summaries));
+            }
+        }
+        samples.sort((a, b) -> Long.compare(a.getTime().asMillis(), b.getTime().asMillis()));
+    }
+
+    // The summary of the window of T ms that contains time, for windows starting at from
+    private SampleSummary window(TreeMap<Long, SampleSummary> windows, Feature f, long from, long time) {
+        long start = from + Math.floorDiv(time - from, (long) T) * T;
+        return windows.computeIfAbsent(start, (k) -> new SampleSummary(f.getId(), f.getName(), f.getSrc(), k, T));
+    }
+
     public int getRunNo() {
         return runNo;
     }
@@ -158,10 +265,24 @@ public class Dataset implements Serializable {
         return samples;
     }
 
-    // Get a copy of the samples map. The SummarizedDataset uses this to apply the training algorithm
-    public Map<String, ArrayList<Sample>> getSamplesMapCopy() {
-        Map<String,ArrayList<Sample>> samplesMapCopy = new HashMap<>();
-        for (String key : samplesMap.keySet()) {
+    // Read-only views of the samples map, the summaries map and the exceptions. The SummarizedDataset walks these to
+    // apply the training algorithm (the lists must not be modified)
+    public Map<Integer, ArrayList<Sample>> getSamplesMap() {
+        return Collections.unmodifiableMap(samplesMap);
+    }
+
+    public Map<Integer, ArrayList<SampleSummary>> getSummariesMap() {
+        return Collections.unmodifiableMap(summariesMap);
+    }
+
+    public List<RecordedException> getExceptions() {
+        return Collections.unmodifiableList(exceptions);
+    }
+
+    // Get a copy of the samples map
+    public Map<Integer, ArrayList<Sample>> getSamplesMapCopy() {
+        Map<Integer,ArrayList<Sample>> samplesMapCopy = new HashMap<>();
+        for (Integer key : samplesMap.keySet()) {
             ArrayList<Sample> newList = new ArrayList<>();
             newList.addAll(samplesMap.get(key));
             samplesMapCopy.put(key, newList);
@@ -169,6 +290,14 @@ public class Dataset implements Serializable {
         return samplesMapCopy;
     }
 
+    // Same as getSamplesMapCopy, for the summaries
+    public Map<Integer, ArrayList<SampleSummary>> getSummariesMapCopy() {
+        Map<Integer,ArrayList<SampleSummary>> copy = new HashMap<>();
+        for (Integer key : summariesMap.keySet())
+            copy.put(key, new ArrayList<>(summariesMap.get(key)));
+        return copy;
+    }
+
     // Get a copy of the samples map. The SummarizedDataset uses this to apply the training algorithm
     public ArrayList<RecordedException> getExceptionsCopy() {
         ArrayList<RecordedException> array = new ArrayList<>();
@@ -180,6 +309,10 @@ public class Dataset implements Serializable {
         return featureNames;
     }
 
+    public ArrayList<Integer> getFeatureIds() {
+        return featureIds;
+    }
+
     public PredictionContext getContext() {
         return context;
     }
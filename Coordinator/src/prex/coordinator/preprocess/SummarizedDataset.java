@@ -1,7 +1,7 @@
 package prex.coordinator.preprocess;
 
 import prex.common.*;
-import prex.coordinator.db.DBUtils;
+import prex.coordinator.db.DB;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.converters.ConverterUtils;
@@ -10,11 +10,14 @@ import weka.filters.supervised.instance.Resample;
 import java.io.*;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.function.ToLongFunction;
 
 // This class grabs a Dataset and processes it according to the PreX pre-processing algorithm. This involves:
 //    1. Time-Window construction: for each individual run, build windows of size T and summarize the features within
 //       them with a set of summarized features (mean, max, min, etc). A window is labeled as "containing" exceptions
-//       or not.
+//       or not. Features from probes in summary mode have no raw samples, just per-bucket summaries: those are merged
+//       into the window where their bucket starts (see SampleSummary). Large windows are built out of rollups instead
+//       of raw samples, which works the same way (see Dataset and RollupManager).
 //    2. Window-Merging: Merge k windows with a sliding window algorithm. The features are named pre-fixed with
 //       W<n> label where n is the number of the window. For k=2 there can be W1 and W2. The classification label
 //       of the window is the one of the first window right after the merged-windows. This is the same as using l=1
@@ -62,7 +65,7 @@ public class SummarizedDataset implements Serializable {
 
     // Auxiliary method to determine the top run currently in the database
     private int getCurrentDBTopRun() {
-        return DBUtils.withConnection(ExecutionRun::numRuns);
+        return DB.getInstance().getEventStore().getNumRuns();
     }
 
     // Load a SummarizedDataset from disk. It modifies the current instance.
@@ -97,7 +100,7 @@ public class SummarizedDataset implements Serializable {
         for (int runNo = lastRunRecorded; runNo <= getCurrentDBTopRun(); runNo++) {
             //FIXME: I have a strong suspicion that this may go haywire with different prediction contexts at the same time.
             System.out.println("Gathering data for run " + runNo);
-            Dataset dataset = new Dataset(context, exception, runNo);
+            Dataset dataset = new Dataset(context, exception, runNo, T);
             dataset.gatherSamplesAndExceptions();
             System.out.println("Processing run " + runNo);
             addRun(dataset);
@@ -264,17 +267,22 @@ public class SummarizedDataset implements Serializable {
     private ArrayList<ArrayList<Float>> timeWindowConstruction(Timestamp startT, Timestamp endT, Dataset dataset) {
         ArrayList<ArrayList<Float>> runData = new ArrayList<>();
 
-        // Grab copies because we'll be removing samples and exceptions as we go. Remember that the data
-        // in each of these is ALWAYS ordered from first to last sample/exception, making the overall algorithm
-        // easier to implement.
-        Map<String, ArrayList<Sample>> samplesMap = dataset.getSamplesMapCopy();
-        ArrayList<RecordedException> exceptions = dataset.getExceptionsCopy();
+        // Walk the samples, summaries and exceptions window by window, with a cursor over each list (nothing is
+        // copied). Remember that the data in each of these is ALWAYS ordered from first to last sample/exception,
+        // making the overall algorithm easier to implement.
+        Map<Integer, Cursor<Sample>> samplesMap = new HashMap<>();
+        for (Map.Entry<Integer, ArrayList<Sample>> e : dataset.getSamplesMap().entrySet())
+            samplesMap.put(e.getKey(), new Cursor<>(e.getValue(), (s) -> s.getTime().asMillis()));
+        Map<Integer, Cursor<SampleSummary>> summariesMap = new HashMap<>();
+        for (Map.Entry<Integer, ArrayList<SampleSummary>> e : dataset.getSummariesMap().entrySet())
+            summariesMap.put(e.getKey(), new Cursor<>(e.getValue(), SampleSummary::getStart));
+        Cursor<RecordedException> exceptions = new Cursor<>(dataset.getExceptions(), (e) -> e.getTime().asMillis());
 
-        // Need the feature names to know what features to build
-        ArrayList<String> originalFeatureNames = dataset.getFeatureNames();
+        // Need the feature ids to know what features to build
+        ArrayList<Integer> featureIds = dataset.getFeatureIds();
 
         // Grab the execution run (if it exists!)
-        ExecutionRun r = DBUtils.withConnection((c) -> ExecutionRun.fromID(c, dataset.getRunNo()));
+        ExecutionRun r = DB.getInstance().getEventStore().getRun(dataset.getRunNo());
 
 
         // Start at the beginning of the run (or startT if provided). End at end of the run (or endT if provided)
@@ -285,7 +293,7 @@ public class SummarizedDataset implements Serializable {
 
             // All features and exceptions for this window.
             ArrayList<Float> windowData = new ArrayList<>();
-            ArrayList<RecordedException> windowExceptions;
+            List<RecordedException> windowExceptions;
 
             // Set the start of the nextWindow to t + T (also the end of this window)
             Calendar cal = Calendar.getInstance(); cal.setTime(t);
@@ -294,13 +302,13 @@ public class SummarizedDataset implements Serializable {
 
 
             // Find all the exceptions in this window
-            windowExceptions = popExceptionsInWindow(exceptions, t, nextT);
+            windowExceptions = exceptions.inWindow(t, nextT);
 
-            // Iterate ALL features and look for samples. If any samples are found within this window, pop them
-            // out of the original data and summarize them. If no samples are found, fill it up with 0s and NaNs.
-            // Note how this generates 6 * originalFeatureNames.size() features
-            for (String featureName : originalFeatureNames) {
-                if (!samplesMap.containsKey(featureName)) {
+            // Iterate ALL features and look for samples (and summaries). If any are found within this window, move the
+            // cursor past them and summarize them. If no samples are found, fill it up with 0s and NaNs.
+            // Note how this generates 6 * featureIds.size() features
+            for (int featureId : featureIds) {
+                if (!samplesMap.containsKey(featureId) && !summariesMap.containsKey(featureId)) {
                     //FIXME: No data at all for this feature! What to do? Right now set it to Float.NaN (or -1?)
                     windowData.add(0.0f); //N
                     windowData.add(Float.NaN); //MEAN
@@ -309,18 +317,25 @@ public class SummarizedDataset implements Serializable {
                     windowData.add(Float.NaN); //MAX
                     windowData.add(Float.NaN); //DERIV
                 } else {
-                    // Build the summarized features!
-                    ArrayList<Sample> samples = popSamplesInWindow(samplesMap.get(featureName), t, nextT);
-                    windowData.add((float) samples.size()); //N
-                    windowData.add(mean(samples));
-                    windowData.add(stddev(samples));
-                    windowData.add(min(samples));
-                    windowData.add(max(samples));
-                    windowData.add(deriv(samples));
+                    // Build the summarized features! Samples and summaries all go into a single summary of the window
+                    SampleSummary summary = new SampleSummary(featureId, null, null, t.getTime(), T);
+                    if (samplesMap.containsKey(featureId))
+                        for (Sample s : samplesMap.get(featureId).inWindow(t, nextT))
+                            summary.add(s);
+                    if (summariesMap.containsKey(featureId))
+                        for (SampleSummary s : summariesMap.get(featureId).inWindow(t, nextT))
+                            summary.merge(s);
+
+                    windowData.add((float) summary.getN()); //N
+                    windowData.add(summary.getMean());
+                    windowData.add(summary.getStddev());
+                    windowData.add(summary.getMin());
+                    windowData.add(summary.getMax());
+                    windowData.add(summary.getDeriv());
                 }
             }
 
-            // Append the label after ALL 6 * originalFeatureNames.size() of the features.
+            // Append the label after ALL 6 * featureIds.size() of the features.
             windowData.add(windowExceptions.isEmpty() ? 0.0f : 1.0f);
 
             // This window is done
@@ -330,12 +345,6 @@ public class SummarizedDataset implements Serializable {
         return runData;
     }
 
-    private float deriv(ArrayList<Sample> samples) {
-        if (samples.size() < 2) return -1; //FIXME: Maybe NaN??
-        else return (samples.get(samples.size()-1).getValue() - samples.get(0).getValue()) /
-                (samples.get(samples.size()-1).getTime().asTimestamp().getTime() - samples.get(0).getTime().asTimestamp().getTime());
-    }
-
     /**
      * Returns the minimum value in the specified array.
      *
@@ -389,32 +398,24 @@ public class SummarizedDataset implements Serializable {
         return (float)Math.sqrt(var(a));
     }
 
-    private ArrayList<RecordedException> popExceptionsInWindow(ArrayList<RecordedException> exceptions, Timestamp t, Timestamp nextT) {
-        ArrayList<RecordedException> windowExceptions = new ArrayList<>();
+    // Walks one of the dataset's lists (ordered from first to last) window by window. Everything before the window is
+    // skipped, and the cursor is left right after it.
+    private static final class Cursor<E> {
+        private final List<E> list;
+        private final ToLongFunction<E> time;
+        private int next = 0;
 
-        RecordedException e;
-        while ( !exceptions.isEmpty() && (e = exceptions.get(0)).getTime().asTimestamp().before(t)) exceptions.remove(0);
-
-        while ( !exceptions.isEmpty() &&  (e = exceptions.get(0)).getTime().asTimestamp().before(nextT)) {
-            exceptions.remove(0);
-            windowExceptions.add(e);
+        Cursor(List<E> list, ToLongFunction<E> time) {
+            this.list = list;
+            this.time = time;
         }
 
-        return windowExceptions;
-    }
-
-    private ArrayList<Sample> popSamplesInWindow(ArrayList<Sample> samples, Timestamp t, Timestamp nextT) {
-        ArrayList<Sample> windowSamples = new ArrayList<>();
-
-        Sample s;
-        while ( !samples.isEmpty() && (s = samples.get(0)).getTime().asTimestamp().before(t)) samples.remove(0);
-
-        while ( !samples.isEmpty() && (s = samples.get(0)).getTime().asTimestamp().before(nextT)) {
-            samples.remove(0);
-            windowSamples.add(s);
+        List<E> inWindow(Timestamp t, Timestamp nextT) {
+            while (next < list.size() && time.applyAsLong(list.get(next)) < t.getTime()) next++;
+            int start = next;
+            while (next < list.size() && time.applyAsLong(list.get(next)) < nextT.getTime()) next++;
+            return list.subList(start, next);
         }
-
-        return windowSamples;
     }
 
     private void generateFeatureNames(ArrayList<String> originalFeatureNames) {
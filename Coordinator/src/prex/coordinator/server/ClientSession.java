@@ -0,0 +1,171 @@
+package prex.coordinator.server;
+
+import prex.common.PreXException;
+import prex.common.PredictionContext;
+import prex.common.Sample;
+import prex.common.SampleSummary;
+import prex.common.protocol.Message;
+import prex.common.protocol.MessageChannel;
+import prex.common.protocol.MessageSink;
+import prex.common.protocol.messages.*;
+import prex.coordinator.db.DB;
+import prex.coordinator.db.DBUtils;
+import prex.coordinator.db.RunArchive;
+import prex.coordinator.train.PredictionListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Each client gets its own session, regardless of it being a probe, an administration application or something
+// entirely different. The session holds the client's state and handles its messages one at a time, in order. How the
+// messages get here depends on the ConnectionServer: either a thread blocks in run() reading them off a MessageChannel,
+// or an event loop decodes them and calls handle() itself. Either way the session only ever writes to its channel.
+//
+// Samples are not written by the session: they are handed to the IngestionPipeline so that a slow database doesn't
+// stall the client's socket.
+//
+// A client can have several Try blocks going on at the same time (from different threads), all over the same
+// connection. Each one is a stream, identified by the stream ID it puts in its messages. Each stream has ONE prediction
+// context at a time (inside which it may have different exceptions to predict), and gets its own prediction
+// notifications. Old clients don't know about streams, so everything they do happens in stream 0.
+public class ClientSession {
+    private SharedServerState state;
+    private DB db;
+    private MessageSink channel;
+
+    // <stream ID, stream>. Only touched while handling messages, which happens one at a time
+    private HashMap<Integer, Stream> streams = new HashMap<>();
+
+    // Have we told the client that we are rejecting its samples? We only tell it once per "rejecting streak",
+    // since probes don't usually read from the coordinator and we don't want to fill up their socket.
+    private boolean backpressureSent = false;
+
+    public ClientSession(SharedServerState state, DB db, MessageSink channel) {
+        this.state = state;
+        this.db = db;
+        this.channel = channel;
+    }
+
+    // Loop just receiving messages, until the client goes away. The channel is normally the one we write to.
+    public void run(MessageChannel in) {
+        while (true) {
+            try {
+                handle(in.read());
+            } catch (IOException | ClassNotFoundException e) {
+                //e.printStackTrace();
+                break;
+            }
+        }
+
+        closed();
+    }
+
+    public void handle(Message m) throws IOException {
+        if ( m instanceof BufferedSamplesMessage ) {
+            // New data! Hand it over to the ingestion pipeline, which writes it in the background
+            Sample[] samples = ((BufferedSamplesMessage) m).getBuffer().getSamples();
+            accepted(state.getIngestionPipeline().submit(samples), samples.length);
+        }
+        else if ( m instanceof SummarizedSamplesMessage ) {
+            // Summaries from a probe in summary mode. Same thing
+            SampleSummary[] summaries = ((SummarizedSamplesMessage) m).getSummaries();
+            accepted(state.getIngestionPipeline().submit(summaries), summaries.length);
+        }
+        else if ( m instanceof RecordedExceptionMessage ) {
+            System.err.println(m); // An exception just happened! Logged and written like the samples
+            state.getIngestionPipeline().submit(((RecordedExceptionMessage) m).getException());
+        }
+        else if ( m instanceof StartListeningToPredictionsMessage) {
+            // Get a hold of the PredictionManager and get it to start predicting threads. Also ask it what
+            // the current prediction state is.
+            StartListeningToPredictionsMessage start = (StartListeningToPredictionsMessage) m;
+            Stream stream = streams.computeIfAbsent(start.getStream(), Stream::new);
+
+            // The current context of the stream is now set!
+            stream.currentContext = start.getContext();
+            db.ensureContext(stream.currentContext);
+
+            stream.exceptionsToMonitor.add(start.getException());
+
+            synchronized (channel) {
+                // Send the current prediction (since the thread might have been running already, it may
+                // be true)
+                boolean currPrediction = state.getPredictionThreadManager().startPredicting(stream.currentContext, start.getException(), stream);
+                channel.write(new YesNoMessage("COORDINATOR",currPrediction, stream.id));
+            }
+        }
+        else if ( m instanceof StopListeningToPredictionsMessage) {
+            StopListeningToPredictionsMessage stop = (StopListeningToPredictionsMessage) m;
+            Stream stream = streams.get(stop.getStream());
+            if ( stream == null || stream.currentContext == null )
+                return; // Never started predicting anything
+
+            stream.exceptionsToMonitor.remove(stop.getException());
+            state.getPredictionThreadManager().stopPredicting(stream.currentContext, stop.getException(), stream);
+
+            // FIXME: I don't like this. Maybe we need an explicit EnterContext end ExitContext message. eugh
+            if ( stream.exceptionsToMonitor.isEmpty() )
+                streams.remove(stream.id);
+        } else if ( m instanceof SetRunningMessage ) { // Ah! Here is the administration client doing its thing!
+            state.setRunning(((SetRunningMessage) m).getRunning());
+        } else if ( m instanceof AddRemovePredictionContextSampleIDsMessage) {
+            PredictionContext ctx = ((AddRemovePredictionContextSampleIDsMessage) m).getContext();
+            db.ensureContext(ctx);
+
+            for (String[] id : ((AddRemovePredictionContextSampleIDsMessage) m).getIds())
+                if ( ((AddRemovePredictionContextSampleIDsMessage) m).isAdd() )
+                    ctx.addId(id[0] /* name */, id[1]/* src*/);
+                else
+                    ctx.removeId(id[0] /* name */, id[1]/* src*/);
+
+            DBUtils.withConnection(ctx::update);
+        } else if ( m instanceof TrainMessage) {
+            state.getTrainingManager().train(((TrainMessage) m).getContext(), ((TrainMessage) m).getException(), ((TrainMessage) m).getT(), ((TrainMessage) m).getK());
+        } else if ( m instanceof ExportRunMessage) { // These can take a while, so they happen in the background
+            RunArchive.getInstance().exportInBackground(((ExportRunMessage) m).getRun(), ((ExportRunMessage) m).getPath());
+        } else if ( m instanceof ImportRunMessage) {
+            RunArchive.getInstance().importInBackground(((ImportRunMessage) m).getPath());
+        }
+    }
+
+    // Tell the client to slow down if the pipeline rejected what it sent (once per rejecting streak)
+    private void accepted(boolean accepted, int n) throws IOException {
+        if ( accepted )
+            backpressureSent = false;
+        else if ( !backpressureSent ) {
+            synchronized (channel) {
+                channel.write(new BackpressureMessage("COORDINATOR", n));
+            }
+            backpressureSent = true;
+        }
+    }
+
+    // The client went away. Stop predicting on its behalf, in all of its streams.
+    public void closed() {
+        for (Stream stream : streams.values())
+            if ( stream.currentContext != null)
+                for (PreXException e : stream.exceptionsToMonitor)
+                    state.getPredictionThreadManager().stopPredicting(stream.currentContext, e, stream);
+        streams.clear();
+        //System.out.println("Bye bye client!");
+    }
+
+    // One Try block of the client. Prediction notifications are sent with its ID, so the client knows whose they are.
+    private class Stream implements PredictionListener {
+        private final int id;
+        private PredictionContext currentContext = null;
+        private ArrayList<PreXException> exceptionsToMonitor = new ArrayList<>();
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void notifyOfPredictionState(PredictionContext ctx, PreXException exception, boolean state) throws IOException {
+            synchronized (channel) {
+                channel.write(new ExceptionPredictionStateMessage("COORDINATOR", exception, state, id));
+            }
+        }
+    }
+}
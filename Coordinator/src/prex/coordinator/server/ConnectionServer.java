@@ -0,0 +1,23 @@
+package prex.coordinator.server;
+
+import java.io.IOException;
+
+// The front-end of the coordinator: it accepts client connections and feeds their messages to ClientSessions. There
+// are two flavours:
+//    ThreadPerConnectionServer: one (platform or virtual) thread per connection, blocking on reads
+//    NioConnectionServer:       a single selector thread reading every connection, plus a pool of worker threads
+//                               that run the sessions
+// Both refuse connections beyond a configurable limit. Server picks one at startup.
+public interface ConnectionServer {
+
+    // Accept connections until stop() is called
+    void serve() throws IOException;
+
+    void stop();
+
+    // Number of connections currently open
+    int getConnections();
+
+    // Number of connections refused because we were at the limit
+    long getRejectedConnections();
+}
@@ -0,0 +1,442 @@
+package prex.coordinator.server;
+
+import prex.common.protocol.BinaryChannel;
+import prex.common.protocol.Message;
+import prex.common.protocol.MessageChannels;
+import prex.common.protocol.MessageCodec;
+import prex.common.protocol.MessageSink;
+import prex.common.protocol.ObjectStreamChannel;
+import prex.coordinator.db.DB;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// An event-driven front-end. A single selector thread does all the network reads: it negotiates the protocol and cuts
+// the byte stream into frames. The frames are handed to a small pool of worker threads, which decode them and run the
+// ClientSessions. Decoding stays off the selector because it can block: the first time a feature shows up, the
+// FeatureCatalog inserts it into the database, and one slow insert must not stall every other connection. A
+// connection's messages are always handled one at a time and in order, but different connections are handled in
+// parallel. Writes are queued and flushed by the selector thread.
+//
+// A connection whose frames pile up (more than inboxBytes of them waiting, because the workers are stuck behind a
+// slow database or a full IngestionPipeline) isn't read from until its worker has caught up with half of them. The
+// client then feels it as TCP backpressure, just like with a thread per connection.
+//
+// This means an idle connection costs a socket and a few buffers, not a thread, so the coordinator can hold many
+// thousands of connected probes. A buffer that had to grow for a big frame goes back to its initial size afterwards.
+//
+// Only the binary protocol is spoken by the event loop. Legacy (Java serialization) clients are detected during the
+// handshake and handed over to a blocking thread of their own, exactly as in ThreadPerConnectionServer.
+public class NioConnectionServer implements ConnectionServer {
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final SharedServerState state;
+    private final DB db;
+    private final int port;
+    private final int maxConnections;
+    private final int inboxBytes;
+
+    private final ExecutorService workers;
+    private final ExecutorService legacyClients;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    // Connections that have something to write. The selector thread turns on OP_WRITE for them.
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    // Connections whose workers caught up. The selector thread reads from them again.
+    private final Queue<Connection> pendingReads = new ConcurrentLinkedQueue<>();
+
+    // Legacy connections that have been taken off the selector and are waiting to be handed over (selector thread only)
+    private final ArrayList<Connection> handOvers = new ArrayList<>();
+
+    private volatile Selector selector;
+    private volatile boolean stop = false;
+
+    public NioConnectionServer(SharedServerState state, DB db, int port, int maxConnections, int numWorkers, int inboxBytes) {
+        this.state = state;
+        this.db = db;
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.inboxBytes = inboxBytes;
+
+        AtomicInteger n = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(numWorkers, (r) -> new Thread(r, "prex-session-worker-" + n.incrementAndGet()));
+        this.legacyClients = Executors.newCachedThreadPool((r) -> new Thread(r, "prex-legacy-client-" + n.incrementAndGet()));
+    }
+
+    @Override
+    public void serve() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        while (!stop) {
+            selector.select();
+
+            Connection c;
+            while ((c = pendingWrites.poll()) != null)
+                if (c.key.isValid())
+                    c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+            while ((c = pendingReads.poll()) != null) {
+                try {
+                    c.resumeReading();
+                } catch (IOException | CancelledKeyException e) {
+                    c.close();
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                try {
+                    if (key.isAcceptable())
+                        accept(server);
+                    else {
+                        Connection conn = (Connection) key.attachment();
+                        if (key.isValid() && key.isWritable())
+                            conn.onWritable();
+                        if (key.isValid() && key.isReadable())
+                            conn.onReadable();
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    if (key.attachment() != null)
+                        ((Connection) key.attachment()).close();
+                } catch (RuntimeException e) {
+                    // Whatever it was, it must only take down its own connection, not the event loop everybody else
+                    // depends on.
+                    System.err.println("WARN: Dropping connection after " + e);
+                    if (key.attachment() != null)
+                        ((Connection) key.attachment()).close();
+                }
+            }
+
+            if (!handOvers.isEmpty()) {
+                selector.selectNow(); // Actually deregister the cancelled keys, or we can't switch to blocking mode
+                for (Connection conn : handOvers)
+                    conn.handOverLegacyClient();
+                handOvers.clear();
+            }
+        }
+
+        server.close();
+        selector.close();
+        workers.shutdown();
+        legacyClients.shutdown();
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            if (connections.get() >= maxConnections) {
+                rejected.incrementAndGet();
+                ch.close();
+                continue;
+            }
+
+            connections.incrementAndGet();
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            Connection c = new Connection(ch);
+            c.key = ch.register(selector, SelectionKey.OP_READ, c);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stop = true;
+        if (selector != null)
+            selector.wakeup();
+    }
+
+    @Override
+    public int getConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejected.get();
+    }
+
+    // One client connection. It's also what the session writes to (reading is the event loop's business).
+    private class Connection implements MessageSink {
+        private final SocketChannel ch;
+        private SelectionKey key;
+
+        // Only touched by the selector thread. Always in "write mode" between reads.
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private boolean handshakeDone = false;
+        private MessageCodec codec;
+        private ClientSession session;
+
+        // Frames waiting to be written
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+
+        // Frames waiting for a worker, and how many bytes they add up to. Only one worker at a time drains them, so
+        // they are decoded and handled in order.
+        private final Queue<byte[]> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicLong inboxSize = new AtomicLong();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        // Set by the selector thread when it stops reading because the inbox is full. Whoever clears it (the worker
+        // that drained the inbox enough, or the selector if the worker beat it to it) gets reading going again.
+        private final AtomicBoolean paused = new AtomicBoolean(false);
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile boolean sessionClosed = false; // Only set while draining
+
+        Connection(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        // Called by the selector thread when there is something to read
+        void onReadable() throws IOException {
+            if (!in.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+
+            if (ch.read(in) < 0) {
+                close();
+                return;
+            }
+
+            in.flip();
+            try {
+                if (!handshakeDone && !handshake())
+                    return;
+                readFrames();
+            } finally {
+                if (!closed.get() && key.isValid())
+                    compact();
+            }
+        }
+
+        // Called by the selector thread once the worker has caught up: go through what's left in the buffer, and
+        // listen to the socket again (unless the inbox filled up again already).
+        void resumeReading() throws IOException {
+            if (closed.get() || !key.isValid())
+                return;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            in.flip();
+            try {
+                readFrames();
+            } finally {
+                if (!closed.get() && key.isValid())
+                    compact();
+            }
+        }
+
+        // Back to write mode, in a buffer of the initial size if a big frame made it grow and what's left fits (but not
+        // in the middle of the next big frame, or we'd grow it again for every read)
+        private void compact() {
+            int next = in.remaining() >= 4 ? 4 + in.getInt(in.position()) : 0;
+            if (in.capacity() > INITIAL_BUFFER_SIZE && in.remaining() <= INITIAL_BUFFER_SIZE / 2 && next <= INITIAL_BUFFER_SIZE) {
+                ByteBuffer smaller = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                smaller.put(in);
+                in = smaller;
+            } else
+                in.compact();
+        }
+
+        // Returns true once the handshake is complete and we're talking binary
+        private boolean handshake() throws IOException {
+            if (in.remaining() < 2)
+                return false;
+
+            if ((in.get(in.position()) & 0xFF) == 0xAC && (in.get(in.position() + 1) & 0xFF) == 0xED) {
+                key.cancel();
+                handOvers.add(this);
+                return false;
+            }
+
+            if (in.remaining() < 5)
+                return false;
+            if (in.getInt() != MessageChannels.MAGIC)
+                throw new IOException("Unknown protocol");
+            byte version = (byte) Math.min(in.get(), MessageChannels.VERSION);
+
+            ByteBuffer reply = ByteBuffer.allocate(5);
+            reply.putInt(MessageChannels.MAGIC).put(version).flip();
+            enqueue(reply);
+
+            codec = new MessageCodec(db.getFeatureCatalog(), version);
+            session = new ClientSession(state, db, this);
+            handshakeDone = true;
+            return true;
+        }
+
+        // Legacy clients get a blocking thread of their own. Whatever we already read is replayed in front of the
+        // socket's stream.
+        void handOverLegacyClient() {
+            byte[] alreadyRead = new byte[in.remaining()];
+            in.get(alreadyRead);
+
+            legacyClients.execute(() -> {
+                try {
+                    ch.configureBlocking(true);
+                    InputStream stream = new SequenceInputStream(new ByteArrayInputStream(alreadyRead), ch.socket().getInputStream());
+                    ObjectStreamChannel channel = new ObjectStreamChannel(ch.socket(), stream, false);
+                    new ClientSession(state, db, channel).run(channel);
+                } catch (IOException e) {
+                    // Client went away during the handshake
+                } finally {
+                    try {
+                        ch.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    connections.decrementAndGet();
+                }
+            });
+        }
+
+        private void readFrames() throws IOException {
+            while (!paused.get() && in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 0 || length > BinaryChannel.MAX_FRAME_SIZE)
+                    throw new IOException("Invalid frame length " + length);
+                if (in.remaining() < 4 + length) {
+                    // Make sure the whole frame fits before the next read
+                    if (in.capacity() < 4 + length) {
+                        ByteBuffer bigger = ByteBuffer.allocate(Math.max(4 + length, in.capacity() * 2));
+                        bigger.put(in);
+                        bigger.flip();
+                        in = bigger;
+                    }
+                    return;
+                }
+
+                in.getInt();
+                byte[] frame = new byte[length];
+                in.get(frame);
+
+                inbox.add(frame);
+                if (inboxSize.addAndGet(length) > inboxBytes)
+                    pause();
+                schedule();
+            }
+        }
+
+        // Stop reading until the worker has drained half of the inbox. It may have done so already (between adding
+        // the frame and setting paused), in which case we take the flag back ourselves and carry on.
+        private void pause() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            paused.set(true);
+            if (inboxSize.get() <= inboxBytes / 2 && paused.compareAndSet(true, false))
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true))
+                workers.execute(this::drain);
+        }
+
+        // Runs in a worker thread
+        private void drain() {
+            // Messages that arrived before the client went away are still handled (e.g. its last samples)
+            byte[] frame;
+            while ((frame = inbox.poll()) != null) {
+                if (inboxSize.addAndGet(-frame.length) <= inboxBytes / 2 && paused.compareAndSet(true, false)) {
+                    pendingReads.add(this);
+                    selector.wakeup();
+                }
+                if (sessionClosed)
+                    continue;
+                try {
+                    session.handle(codec.decode(new DataInputStream(new ByteArrayInputStream(frame))));
+                } catch (IOException e) {
+                    close();
+                } catch (RuntimeException e) {
+                    // Most likely a frame that doesn't decode. It only takes down its own connection.
+                    System.err.println("WARN: Dropping connection after " + e);
+                    close();
+                }
+            }
+
+            // Let the session clean up. This happens here so that it never runs alongside handle().
+            if (closed.get() && !sessionClosed) {
+                sessionClosed = true;
+                session.closed();
+            }
+            scheduled.set(false);
+
+            if (!inbox.isEmpty() || (closed.get() && !sessionClosed))
+                schedule(); // Something happened after we stopped looking
+        }
+
+        // Called by the selector thread when the socket can take more data
+        void onWritable() throws IOException {
+            ByteBuffer b;
+            while ((b = out.peek()) != null) {
+                ch.write(b);
+                if (b.hasRemaining())
+                    return; // Socket is full. We'll be back.
+                out.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            // Someone may have queued something after we emptied the queue
+            if (!out.isEmpty())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        private void enqueue(ByteBuffer b) {
+            out.add(b);
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        @Override
+        public synchronized void write(Message m) throws IOException {
+            if (closed.get())
+                throw new IOException("Connection closed");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream frame = new DataOutputStream(bytes);
+            frame.writeInt(0); // Length placeholder
+            codec.encode(m, frame);
+            frame.flush();
+
+            ByteBuffer b = ByteBuffer.wrap(bytes.toByteArray());
+            b.putInt(0, b.capacity() - 4);
+            enqueue(b);
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+
+            key.cancel();
+            try {
+                ch.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            connections.decrementAndGet();
+
+            if (session != null)
+                schedule(); // drain() calls session.closed()
+        }
+    }
+}
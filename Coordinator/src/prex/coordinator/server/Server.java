@@ -1,24 +1,63 @@
 package prex.coordinator.server;
 
 import prex.coordinator.db.DB;
+import prex.coordinator.db.IngestionPipeline;
+import prex.coordinator.db.RollupManager;
 
 import java.io.IOException;
-import java.net.ServerSocket;
 
 // Nothing to see here, move along.
 //
 // You must instruct the server if it is running with predictions enabled or disabled. The first argument can be
 // "predict" to signify that predictions should happen. Pass anything else and they won't be made.
+//
+// The sample ingestion pipeline is configured through system properties. See IngestionPipeline. So are the rollups
+// and how long samples are kept (see RollupManager), where samples and runs are stored (prex.store, see DB) and the
+// connections to the database (see ConnectionPool).
+//
+// So is the front-end that accepts connections (see ConnectionServer):
+//    prex.server:                "threads" (the default, one thread per connection), "virtual" (one virtual thread
+//                                per connection, needs Java 21) or "nio" (a selector thread plus a pool of workers)
+//    prex.server.maxConnections: connections beyond this are refused (default 10000)
+//    prex.server.workers:        number of worker threads of the "nio" front-end (default: number of CPUs)
+//    prex.server.inboxBytes:     the "nio" front-end stops reading from a connection when this many bytes of its
+//                                frames are waiting for a worker (default 1MB)
 public class Server {
     public static void main(String[] args) throws IOException {
         System.out.println("Hello World, the server is running!");
         DB db = DB.getInstance();
-        SharedServerState state = new SharedServerState(false, args[0].equals("predict"));
+        IngestionPipeline ingestionPipeline = IngestionPipeline.fromSystemProperties(db);
+        System.out.println("Ingestion pipeline: " + ingestionPipeline);
+        System.out.println("Connections: " + db.getPool());
+        System.out.println("Sample store: " + db.getSampleStore() + ", event store: " + db.getEventStore());
+        System.out.println("Rollups: " + RollupManager.getInstance());
+        SharedServerState state = new SharedServerState(false, args[0].equals("predict"), ingestionPipeline);
+
+        // On the way out, write what's queued and then the rollup buckets that are still open (they'd be gaps otherwise)
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            ingestionPipeline.stop();
+            RollupManager rollups = RollupManager.getInstance();
+            if (rollups != null)
+                rollups.stop();
+        }, "prex-shutdown"));
+
+        ConnectionServer server = createConnectionServer(state, db, 1610);
+        server.serve();
+    }
 
-        ServerSocket serverSocket = new ServerSocket(1610, 0, null);
+    private static ConnectionServer createConnectionServer(SharedServerState state, DB db, int port) {
+        String type = System.getProperty("prex.server", "threads");
+        int maxConnections = Integer.getInteger("prex.server.maxConnections", 10000);
+        int workers = Integer.getInteger("prex.server.workers", Runtime.getRuntime().availableProcessors());
+        System.out.println("Connection server: " + type + " (max " + maxConnections + " connections)");
 
-        while (true) {
-            new ClientThread(state,db,serverSocket.accept()).start();
+        switch (type) {
+            case "nio":
+                return new NioConnectionServer(state, db, port, maxConnections, workers, Integer.getInteger("prex.server.inboxBytes", 1 << 20));
+            case "virtual":
+                return new ThreadPerConnectionServer(state, db, port, maxConnections, true);
+            default:
+                return new ThreadPerConnectionServer(state, db, port, maxConnections, false);
         }
     }
 }
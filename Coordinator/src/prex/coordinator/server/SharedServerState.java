@@ -2,6 +2,7 @@ package prex.coordinator.server;
 
 import prex.common.PreXTimestamp;
 import prex.coordinator.db.DB;
+import prex.coordinator.db.IngestionPipeline;
 import prex.coordinator.train.PredictionThreadManager;
 import prex.coordinator.train.TrainingManager;
 
@@ -20,15 +21,19 @@ public class SharedServerState {
     private PredictionThreadManager predictionThreadManager;
     private TrainingManager trainingManager;
 
+    // Where client threads drop the samples they receive
+    private IngestionPipeline ingestionPipeline;
+
     // Is the coordinator in "make predictions" mode?
     private boolean doPredictions;
 
-    public SharedServerState(boolean running, boolean doPredictions) {
+    public SharedServerState(boolean running, boolean doPredictions, IngestionPipeline ingestionPipeline) {
         this.running = new AtomicBoolean(running);
         this.start = null;
         this.predictionThreadManager = new PredictionThreadManager(this);
         this.trainingManager = new TrainingManager(predictionThreadManager);
         this.doPredictions = doPredictions;
+        this.ingestionPipeline = ingestionPipeline;
         trainingManager.start(); // FIXME: It is a bit ugly that we manually start the manager. Perhaps change this?
     }
 
@@ -60,6 +65,10 @@ public class SharedServerState {
         return trainingManager;
     }
 
+    public IngestionPipeline getIngestionPipeline() {
+        return ingestionPipeline;
+    }
+
     public boolean doPredictions() {
         return doPredictions;
     }
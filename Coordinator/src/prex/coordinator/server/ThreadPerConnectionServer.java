@@ -0,0 +1,121 @@
+package prex.coordinator.server;
+
+import prex.common.protocol.MessageChannel;
+import prex.common.protocol.MessageChannels;
+import prex.coordinator.db.DB;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The classic front-end: every connection gets a thread that blocks reading its messages. The thread is reclaimed
+// as soon as the client goes away, and connections beyond maxConnections are closed right after being accepted.
+//
+// With virtualThreads set, each connection runs in a virtual thread instead of a platform thread, which lets the
+// coordinator hold many thousands of (mostly idle) connections. Virtual threads need Java 21; on older runtimes we
+// say so and fall back to platform threads.
+public class ThreadPerConnectionServer implements ConnectionServer {
+    private final SharedServerState state;
+    private final DB db;
+    private final int port;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile ServerSocket serverSocket;
+    private volatile boolean stop = false;
+
+    public ThreadPerConnectionServer(SharedServerState state, DB db, int port, int maxConnections, boolean virtualThreads) {
+        this.state = state;
+        this.db = db;
+        this.port = port;
+        this.permits = new Semaphore(maxConnections);
+        this.executor = virtualThreads ? virtualThreadExecutor() : platformThreadExecutor();
+    }
+
+    private static ExecutorService platformThreadExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newCachedThreadPool((r) -> new Thread(r, "prex-client-" + n.incrementAndGet()));
+    }
+
+    // We're compiled against Java 8, so we have to go through reflection to get to virtual threads
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("WARN: Virtual threads are not available in this JVM. Using platform threads.");
+            return platformThreadExecutor();
+        }
+    }
+
+    @Override
+    public void serve() throws IOException {
+        serverSocket = new ServerSocket(port, 0, null);
+
+        while (!stop) {
+            Socket s;
+            try {
+                s = serverSocket.accept();
+            } catch (IOException e) {
+                if (stop) break;
+                throw e;
+            }
+
+            if (!permits.tryAcquire()) {
+                rejected.incrementAndGet();
+                s.close();
+                continue;
+            }
+
+            connections.incrementAndGet();
+            executor.execute(() -> {
+                try {
+                    // The handshake happens here (and not in the accept loop) so that a slow client can't hold
+                    // everybody else up
+                    MessageChannel channel = MessageChannels.accept(s, db.getFeatureCatalog());
+                    new ClientSession(state, db, channel).run(channel);
+                } catch (IOException e) {
+                    // Client went away during the handshake
+                } finally {
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    connections.decrementAndGet();
+                    permits.release();
+                }
+            });
+        }
+
+        executor.shutdown();
+    }
+
+    @Override
+    public void stop() {
+        stop = true;
+        try {
+            if (serverSocket != null)
+                serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public int getConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,29 @@
+package prex.coordinator.store;
+
+import prex.common.ExecutionRun;
+import prex.common.PreXTimestamp;
+import prex.common.RecordedException;
+
+import java.util.List;
+
+// Where the coordinator keeps the execution runs and the exceptions that happened during them, i.e. the labels for
+// training. See SampleStore for the samples, and DB.getEventStore for how one is picked.
+public interface EventStore {
+
+    // Log a run, and return its ID (0 if it couldn't be logged). Runs get consecutive IDs, starting at 1.
+    int logRun(PreXTimestamp start, PreXTimestamp finish);
+
+    // The ID of the last run, or -1 if there are none
+    int getNumRuns();
+
+    // The run with the given ID. Like ExecutionRun.fromID, unknown runs have no start or finish.
+    ExecutionRun getRun(int id);
+
+    boolean write(RecordedException e);
+
+    // The exceptions of the given class recorded within the given context with from <= time < to, in time order
+    List<RecordedException> getExceptions(String context, String exceptionClass, long from, long to);
+
+    // Every exception recorded with from <= time < to, whatever its class and context, in time order
+    List<RecordedException> getExceptions(long from, long to);
+}
@@ -0,0 +1,190 @@
+package prex.coordinator.store;
+
+// A ring buffer holding the most recent samples of ONE feature (one feature ID) as primitive columns: a long[]
+// of epoch-millis timestamps and a float[] of values. It is sized by time, not by count: when the buffer is full and
+// its oldest sample is still within the retention period, the buffer doubles (up to maxCapacity) instead of
+// overwriting it.
+//
+// Writers are serialized (append is synchronized), but readers never lock. The trick is that "head" (the total number
+// of samples ever appended) is volatile and is only bumped after a sample is written. A reader grabs head, copies the
+// slots it wants and then re-reads head: any slot that might have been overwritten in the meantime is discarded.
+// Growing the buffer allocates new arrays and never touches the old ones, so readers holding the old arrays are safe.
+//
+// Samples are kept in arrival order, which is only roughly time order, so scans check every retained slot.
+//
+// Buffers never shrink on their own. The RecentSampleStore trims them now and then (see trim), so that a burst or a
+// retention that has since gone down doesn't hold on to the memory forever, and retires the buffers of features that
+// stopped being sampled.
+public class FeatureRingBuffer {
+    private static final int INITIAL_CAPACITY = 256;
+
+    // Snapshot of the arrays. Replaced (never modified in place, except for slots) when the buffer grows or shrinks.
+    private static final class Columns {
+        final long[] times;
+        final float[] values;
+        final int mask;
+
+        // Lowest sample index held by these arrays (slots below it were never written)
+        final long first;
+
+        Columns(int capacity, long first) {
+            this.times = new long[capacity];
+            this.values = new float[capacity];
+            this.mask = capacity - 1;
+            this.first = first;
+        }
+    }
+
+    // The feature: its ID and <name,src>
+    private final int featureId;
+    private final String name;
+    private final String src;
+
+    private final int maxCapacity;
+    private volatile long retentionMs;
+
+    private volatile Columns columns = new Columns(INITIAL_CAPACITY, 0);
+    private volatile long head = 0;
+
+    // Set (under the lock) when the store drops this buffer. Appends then fail, so nothing is written to it anymore
+    private boolean retired = false;
+
+    public interface SampleVisitor {
+        void visit(long time, float value);
+    }
+
+    public FeatureRingBuffer(int featureId, String name, String src, long retentionMs, int maxCapacity) {
+        this.featureId = featureId;
+        this.name = name;
+        this.src = src;
+        this.retentionMs = retentionMs;
+        this.maxCapacity = Integer.highestOneBit(Math.max(maxCapacity, INITIAL_CAPACITY));
+    }
+
+    // Returns false if the buffer was retired (get a new one from the store)
+    public synchronized boolean append(long time, float value) {
+        if (retired)
+            return false;
+
+        Columns c = columns;
+        long h = head;
+        int capacity = c.mask + 1;
+
+        // Full? Grow if the oldest sample is still needed, otherwise just overwrite it.
+        if (h >= capacity && capacity < maxCapacity && c.times[(int) (h - capacity) & c.mask] >= time - retentionMs) {
+            Columns bigger = new Columns(capacity * 2, h - capacity);
+            for (long i = h - capacity; i < h; i++) {
+                bigger.times[(int) i & bigger.mask] = c.times[(int) i & c.mask];
+                bigger.values[(int) i & bigger.mask] = c.values[(int) i & c.mask];
+            }
+            columns = c = bigger;
+        }
+
+        c.times[(int) h & c.mask] = time;
+        c.values[(int) h & c.mask] = value;
+        head = h + 1;
+        return true;
+    }
+
+    // Shrink the buffer if less than a quarter of it is samples with time >= before. The samples that are kept
+    // (the newest ones, at least all of those) are copied to smaller arrays, which readers pick up like when growing.
+    // Returns the number of slots freed.
+    public synchronized int trim(long before) {
+        Columns c = columns;
+        long h = head;
+        int capacity = c.mask + 1;
+        if (capacity == INITIAL_CAPACITY)
+            return 0;
+
+        // Samples come roughly in order, so count back from the newest until the first old one
+        long start = Math.max(c.first, h - capacity);
+        long oldest = h;
+        while (oldest > start && c.times[(int) (oldest - 1) & c.mask] >= before)
+            oldest--;
+        int live = (int) (h - oldest);
+        if (live * 4 > capacity)
+            return 0;
+
+        int newCapacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, live * 2 - 1)) << 1);
+        if (newCapacity >= capacity)
+            return 0;
+
+        long keep = Math.max(start, h - newCapacity);
+        Columns smaller = new Columns(newCapacity, keep);
+        for (long i = keep; i < h; i++) {
+            smaller.times[(int) i & smaller.mask] = c.times[(int) i & c.mask];
+            smaller.values[(int) i & smaller.mask] = c.values[(int) i & c.mask];
+        }
+        columns = smaller;
+        return capacity - newCapacity;
+    }
+
+    // Retire the buffer if it has nothing with time >= before. True if it was retired.
+    public synchronized boolean retireIfIdle(long before) {
+        long h = head;
+        Columns c = columns;
+        if (h > 0 && c.times[(int) (h - 1) & c.mask] >= before)
+            return false;
+        retired = true;
+        return true;
+    }
+
+    // Visit every sample with from <= time < to, in insertion order. Returns the number of samples visited.
+    public int scan(long from, long to, SampleVisitor visitor) {
+        // Order matters: head must be read before columns, so that the columns are at least as recent as head. They can
+        // be a lot more recent, though: if the buffer grew or was trimmed in between, the new arrays might start past
+        // the head we read (and the copy would be negative). Then read head again. Columns are only published with a
+        // first <= head, so this settles as soon as they stop changing under us.
+        long h;
+        Columns c;
+        do {
+            h = head;
+            c = columns;
+        } while (c.first > h);
+        long start = Math.max(c.first, h - (c.mask + 1));
+
+        int n = (int) (h - start);
+        long[] times = new long[n];
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++) {
+            times[i] = c.times[(int) (start + i) & c.mask];
+            values[i] = c.values[(int) (start + i) & c.mask];
+        }
+
+        // Anything older than (newHead - capacity) could have been overwritten while we copied.
+        long h2 = head;
+        int firstValid = (int) Math.min(n, Math.max(0, (h2 - (c.mask + 1)) - start));
+
+        int visited = 0;
+        for (int i = firstValid; i < n; i++)
+            if (times[i] >= from && times[i] < to) {
+                visitor.visit(times[i], values[i]);
+                visited++;
+            }
+        return visited;
+    }
+
+    public long getRetentionMs() {
+        return retentionMs;
+    }
+
+    public void setRetentionMs(long retentionMs) {
+        this.retentionMs = retentionMs;
+    }
+
+    public int getCapacity() {
+        return columns.mask + 1;
+    }
+
+    public int getFeatureId() {
+        return featureId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSrc() {
+        return src;
+    }
+}
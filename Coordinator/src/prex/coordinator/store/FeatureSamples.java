@@ -0,0 +1,53 @@
+package prex.coordinator.store;
+
+import java.util.Arrays;
+
+// The samples of one feature, as they come out of a store (see SampleStore.scan), as primitive columns. Only the first
+// n slots of times and values are used.
+public final class FeatureSamples implements FeatureRingBuffer.SampleVisitor {
+    public long[] times = new long[1024];
+    public float[] values = new float[1024];
+    public int n = 0;
+    private boolean ordered = true; // Strictly increasing times, so sorted and without duplicates
+
+    @Override
+    public void visit(long time, float value) {
+        if (n == times.length) {
+            times = Arrays.copyOf(times, n * 2);
+            values = Arrays.copyOf(values, n * 2);
+        }
+        if (n > 0 && time <= times[n - 1])
+            ordered = false;
+        times[n] = time;
+        values[n] = value;
+        n++;
+    }
+
+    // The SAMPLE table keeps one sample per (feature, time), the last one written, and so should we. Stores visit
+    // samples in the order they were written (at least for equal times), and the sort is stable. Late samples and
+    // duplicates are rare, so this usually does nothing.
+    public void sortAndDedup() {
+        if (ordered)
+            return;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+
+        long[] sortedTimes = new long[n];
+        float[] sortedValues = new float[n];
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            int j = order[i];
+            if (kept > 0 && sortedTimes[kept - 1] == times[j])
+                kept--;
+            sortedTimes[kept] = times[j];
+            sortedValues[kept] = values[j];
+            kept++;
+        }
+        times = sortedTimes;
+        values = sortedValues;
+        n = kept;
+        ordered = true;
+    }
+}
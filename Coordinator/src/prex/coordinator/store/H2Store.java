@@ -0,0 +1,146 @@
+package prex.coordinator.store;
+
+import prex.common.*;
+import prex.coordinator.db.DBUtils;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+// The SampleStore and EventStore on top of the coordinator's H2 database (see DB): the SAMPLE, SAMPLE_SUMMARY,
+// EXECUTION_RUN and RECORDED_EXCEPTION tables. This is how the coordinator has always stored everything.
+//
+// Range scans go through the primary key of each table (feature first, then time), one feature at a time, rather than
+// joining the whole table against the prediction context.
+public class H2Store implements SampleStore, EventStore {
+    private static final int PURGE_CHUNK = 10000;
+
+    @Override
+    public boolean write(Sample[] samples) {
+        return DBUtils.withConnection((c) -> Sample.insertBatch(c, samples)) >= 0;
+    }
+
+    @Override
+    public boolean write(SampleSummary[] summaries) {
+        return DBUtils.withConnection((c) -> SampleSummary.insertBatch(c, summaries)) >= 0;
+    }
+
+    @Override
+    public int scan(int featureId, long from, long to, FeatureRingBuffer.SampleVisitor visitor) {
+        return DBUtils.withConnection((c) -> {
+            int visited = 0;
+            try {
+                PreparedStatement s = c.prepareStatement("SELECT time, value FROM SAMPLE WHERE feature = ? AND time >= ? AND time < ? ORDER BY time ASC");
+                s.setFetchSize(DBUtils.FETCH_SIZE); // Visited as they are read, never all at once
+                s.setInt(1, featureId);
+                s.setTimestamp(2, new Timestamp(from));
+                s.setTimestamp(3, new Timestamp(to));
+                ResultSet resultSet = s.executeQuery();
+                while ( resultSet.next() ) {
+                    visitor.visit(resultSet.getTimestamp(1).getTime(), resultSet.getFloat(2));
+                    visited++;
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return visited;
+        });
+    }
+
+    @Override
+    public List<SampleSummary> getSummaries(int featureId, long from, long to) {
+        return DBUtils.withConnection((c) -> {
+            ArrayList<SampleSummary> summaries = new ArrayList<>();
+            try {
+                PreparedStatement s = c.prepareStatement("SELECT " + SampleSummary.COLUMNS + " FROM SAMPLE_SUMMARY s, FEATURE f WHERE s.feature = f.id AND s.feature = ? AND s.time >= ? AND s.time < ? ORDER BY s.time ASC");
+                s.setInt(1, featureId);
+                s.setTimestamp(2, new Timestamp(from));
+                s.setTimestamp(3, new Timestamp(to));
+                ResultSet resultSet = s.executeQuery();
+                while ( resultSet.next() )
+                    summaries.add(SampleSummary.fromResultSet(resultSet));
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return summaries;
+        });
+    }
+
+    // In small chunks, so that writers aren't kept waiting for long
+    @Override
+    public int purgeBefore(long before) {
+        int total = 0, n;
+        while ((n = DBUtils.withConnection((c) -> Sample.deleteBefore(c, before, PURGE_CHUNK))) > 0)
+            total += n;
+        while ((n = DBUtils.withConnection((c) -> SampleSummary.deleteBefore(c, before, PURGE_CHUNK))) > 0)
+            total += n;
+        return total;
+    }
+
+    @Override
+    public int logRun(PreXTimestamp start, PreXTimestamp finish) {
+        ExecutionRun run = new ExecutionRun(start, finish);
+        return DBUtils.withConnection(run::insert) ? run.getId() : 0;
+    }
+
+    @Override
+    public int getNumRuns() {
+        return DBUtils.withConnection(ExecutionRun::numRuns);
+    }
+
+    @Override
+    public ExecutionRun getRun(int id) {
+        return DBUtils.withConnection((c) -> ExecutionRun.fromID(c, id));
+    }
+
+    @Override
+    public boolean write(RecordedException e) {
+        return DBUtils.withConnection(e::insert);
+    }
+
+    @Override
+    public List<RecordedException> getExceptions(String context, String exceptionClass, long from, long to) {
+        return DBUtils.withConnection((c) -> {
+            ArrayList<RecordedException> exceptions = new ArrayList<>();
+            try {
+                PreparedStatement s = c.prepareStatement("SELECT r.* FROM RECORDED_EXCEPTION r WHERE r.PREDICTION_CONTEXT = ? AND r.EXCEPTION_CLASS = ? AND r.time >= ? AND r.time < ? ORDER BY r.time ASC");
+                s.setString(1, context);
+                s.setString(2, exceptionClass);
+                s.setTimestamp(3, new Timestamp(from));
+                s.setTimestamp(4, new Timestamp(to));
+                ResultSet resultSet = s.executeQuery();
+                while ( resultSet.next() )
+                    exceptions.add(RecordedException.fromResultSet(resultSet));
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return exceptions;
+        });
+    }
+
+    @Override
+    public List<RecordedException> getExceptions(long from, long to) {
+        return DBUtils.withConnection((c) -> {
+            ArrayList<RecordedException> exceptions = new ArrayList<>();
+            try {
+                PreparedStatement s = c.prepareStatement("SELECT r.* FROM RECORDED_EXCEPTION r WHERE r.time >= ? AND r.time < ? ORDER BY r.time ASC");
+                s.setTimestamp(1, new Timestamp(from));
+                s.setTimestamp(2, new Timestamp(to));
+                ResultSet resultSet = s.executeQuery();
+                while ( resultSet.next() )
+                    exceptions.add(RecordedException.fromResultSet(resultSet));
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return exceptions;
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "H2Store";
+    }
+}
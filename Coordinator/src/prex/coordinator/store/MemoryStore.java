@@ -0,0 +1,206 @@
+package prex.coordinator.store;
+
+import prex.common.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A SampleStore and EventStore that keeps everything on the heap, and nothing on disk. Samples are kept per feature
+// as two growing primitive columns (like FeatureRingBuffer, but never overwritten). It's meant for tests, short
+// experiments and small deployments where losing the history on a restart is fine.
+//
+// Each feature is locked on its own, so writers of different features never wait for each other.
+public class MemoryStore implements SampleStore, EventStore {
+
+    // The samples of one feature, in time order (and in arrival order for equal times). Guarded by itself
+    private static final class Series {
+        long[] times = new long[256];
+        float[] values = new float[256];
+        int n = 0;
+
+        // Late samples are moved into place right away, like the summaries below. They are rare and usually only a
+        // few slots late, so this is almost always the end, and scans can always binary search.
+        void add(long time, float value) {
+            if (n == times.length) {
+                times = Arrays.copyOf(times, n * 2);
+                values = Arrays.copyOf(values, n * 2);
+            }
+            int pos = n;
+            if (n > 0 && time < times[n - 1]) {
+                pos = lowerBound(time + 1);
+                System.arraycopy(times, pos, times, pos + 1, n - pos);
+                System.arraycopy(values, pos, values, pos + 1, n - pos);
+            }
+            times[pos] = time;
+            values[pos] = value;
+            n++;
+        }
+
+        // The first index with a time >= from
+        int lowerBound(long from) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] < from)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    // <feature id, samples>
+    private final ConcurrentHashMap<Integer, Series> samples = new ConcurrentHashMap<>();
+
+    // <feature id, summaries (ordered by bucket)>. Guarded by each list
+    private final ConcurrentHashMap<Integer, ArrayList<SampleSummary>> summaries = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private final ArrayList<ExecutionRun> runs = new ArrayList<>();
+    private final ArrayList<RecordedException> exceptions = new ArrayList<>();
+
+    @Override
+    public boolean write(Sample[] batch) {
+        for (Sample s : batch) {
+            if (s == null || s.getFeatureId() == 0)
+                continue;
+            Series series = samples.computeIfAbsent(s.getFeatureId(), (k) -> new Series());
+            synchronized (series) {
+                series.add(s.getTime().asMillis(), s.getValue());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean write(SampleSummary[] batch) {
+        for (SampleSummary s : batch) {
+            if (s == null || s.getFeatureId() == 0)
+                continue;
+            ArrayList<SampleSummary> list = summaries.computeIfAbsent(s.getFeatureId(), (k) -> new ArrayList<>());
+            synchronized (list) {
+                // They usually come in order, so this is almost always the end
+                int pos = list.size();
+                while (pos > 0 && list.get(pos - 1).getStart() > s.getStart())
+                    pos--;
+                list.add(pos, s);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int scan(int featureId, long from, long to, FeatureRingBuffer.SampleVisitor visitor) {
+        Series series = samples.get(featureId);
+        if (series == null)
+            return 0;
+
+        // Copy the range out, so that the visitor doesn't run with the lock held
+        long[] times;
+        float[] values;
+        synchronized (series) {
+            int start = series.lowerBound(from);
+            int end = series.lowerBound(to);
+            times = Arrays.copyOfRange(series.times, start, end);
+            values = Arrays.copyOfRange(series.values, start, end);
+        }
+        for (int i = 0; i < times.length; i++)
+            visitor.visit(times[i], values[i]);
+        return times.length;
+    }
+
+    @Override
+    public List<SampleSummary> getSummaries(int featureId, long from, long to) {
+        ArrayList<SampleSummary> result = new ArrayList<>();
+        ArrayList<SampleSummary> list = summaries.get(featureId);
+        if (list != null)
+            synchronized (list) {
+                for (SampleSummary s : list)
+                    if (s.getStart() >= from && s.getStart() < to)
+                        result.add(s);
+            }
+        return result;
+    }
+
+    @Override
+    public int purgeBefore(long before) {
+        int purged = 0;
+        for (Series series : samples.values()) {
+            synchronized (series) {
+                int kept = 0;
+                for (int i = 0; i < series.n; i++)
+                    if (series.times[i] >= before) {
+                        series.times[kept] = series.times[i];
+                        series.values[kept] = series.values[i];
+                        kept++;
+                    }
+                purged += series.n - kept;
+                series.n = kept;
+            }
+        }
+        for (ArrayList<SampleSummary> list : summaries.values()) {
+            synchronized (list) {
+                int n = list.size();
+                list.removeIf((s) -> s.getStart() < before);
+                purged += n - list.size();
+            }
+        }
+        return purged;
+    }
+
+    @Override
+    public synchronized int logRun(PreXTimestamp start, PreXTimestamp finish) {
+        runs.add(new ExecutionRun(runs.size() + 1, start, finish));
+        return runs.size();
+    }
+
+    @Override
+    public synchronized int getNumRuns() {
+        return runs.isEmpty() ? -1 : runs.size();
+    }
+
+    @Override
+    public synchronized ExecutionRun getRun(int id) {
+        if (id < 1 || id > runs.size())
+            return new ExecutionRun(id, null, null);
+        return runs.get(id - 1);
+    }
+
+    @Override
+    public synchronized boolean write(RecordedException e) {
+        exceptions.add(e);
+        return true;
+    }
+
+    @Override
+    public synchronized List<RecordedException> getExceptions(String context, String exceptionClass, long from, long to) {
+        ArrayList<RecordedException> result = new ArrayList<>();
+        for (RecordedException e : exceptions) {
+            long time = e.getTime().asMillis();
+            if (time >= from && time < to && e.getExceptionClass().equals(exceptionClass) && e.getContext().getName().equals(context))
+                result.add(e);
+        }
+        result.sort((a, b) -> Long.compare(a.getTime().asMillis(), b.getTime().asMillis()));
+        return result;
+    }
+
+    @Override
+    public synchronized List<RecordedException> getExceptions(long from, long to) {
+        ArrayList<RecordedException> result = new ArrayList<>();
+        for (RecordedException e : exceptions) {
+            long time = e.getTime().asMillis();
+            if (time >= from && time < to)
+                result.add(e);
+        }
+        result.sort((a, b) -> Long.compare(a.getTime().asMillis(), b.getTime().asMillis()));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryStore{features=" + samples.size() + ", runs=" + runs.size() + "}";
+    }
+}
@@ -0,0 +1,214 @@
+package prex.coordinator.store;
+
+import prex.common.PreXTimestamp;
+import prex.common.Sample;
+import prex.common.SampleSummary;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+// Keeps the most recent samples of every feature in memory, so that prediction threads never have to query the
+// database. It replaces the old SAMPLE_SNAPSHOT table (which was truncated every 60 seconds, regardless of who was
+// reading it). There is one FeatureRingBuffer per feature ID, and every buffer keeps at least retentionMs worth
+// of samples. Samples must have their feature ID resolved before they are added.
+//
+// The retention follows what the prediction threads need: each of them tells the store how far back it reads (T*k of
+// its model, see require), and the store keeps the largest of those plus a margin, but never less than a minimum.
+// Eviction is continuous and incremental: buffers overwrite what is older than the retention as new samples come in,
+// and an evictor thread goes over the buffers one at a time every few seconds, shrinking the ones that hold much
+// more than they need and dropping the ones of features that are no longer sampled. Nothing ever locks more than one
+// buffer at a time.
+//
+// The store is fed by the IngestionPipeline as soon as samples arrive (before they are written to the database) and
+// read by Dataset.gatherSamplesSince(). Like the DB, it is a singleton, configured with system properties (in ms):
+//    prex.recent.retention:     minimum retention (default 1 minute)
+//    prex.recent.margin:        kept on top of the largest T*k (default 10 seconds)
+//    prex.recent.evictInterval: how often the evictor runs (default 5 seconds)
+//
+// Probes in summary mode send summaries instead of samples. There are few of them, so they are simply kept in a
+// deque per feature, ordered by bucket, and trimmed to the same retention.
+public class RecentSampleStore {
+    private static final int MAX_CAPACITY = 1 << 20; // per feature
+
+    private static RecentSampleStore store;
+    public static synchronized RecentSampleStore getInstance() {
+        if (store == null) store = new RecentSampleStore(Long.getLong("prex.recent.retention", 60 * 1000),
+                Long.getLong("prex.recent.margin", 10 * 1000), Long.getLong("prex.recent.evictInterval", 5000));
+        return store;
+    }
+
+    // <feature id, buffer>
+    private final ConcurrentHashMap<Integer, FeatureRingBuffer> buffers = new ConcurrentHashMap<>();
+
+    // <feature id, summaries (oldest first)>
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedDeque<SampleSummary>> summaries = new ConcurrentHashMap<>();
+
+    // <whoever needs samples (e.g. a PredictionThread), how far back it reads>
+    private final ConcurrentHashMap<Object, Long> requirements = new ConcurrentHashMap<>();
+
+    private final long minRetentionMs, marginMs, evictIntervalMs;
+    private volatile long retentionMs;
+
+    // Evictor stats
+    private volatile long slotsFreed = 0;
+    private volatile long buffersRetired = 0;
+
+    public RecentSampleStore(long minRetentionMs, long marginMs, long evictIntervalMs) {
+        this.minRetentionMs = minRetentionMs;
+        this.marginMs = marginMs;
+        this.evictIntervalMs = evictIntervalMs;
+        this.retentionMs = minRetentionMs;
+
+        Thread evictor = new Thread(this::evictorLoop, "prex-recent-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    public void add(Sample[] samples) {
+        for (Sample s : samples)
+            if (s != null)
+                add(s);
+    }
+
+    public void add(Sample s) {
+        // Only fails if the evictor retired the buffer in the meantime, in which case there'll be a new one
+        while (!buffer(s).append(s.getTime().asMillis(), s.getValue()))
+            Thread.yield();
+    }
+
+    public void add(SampleSummary[] summaries) {
+        for (SampleSummary s : summaries) {
+            if (s == null) continue;
+            ConcurrentLinkedDeque<SampleSummary> deque = this.summaries.computeIfAbsent(s.getFeatureId(), (k) -> new ConcurrentLinkedDeque<>());
+            deque.addLast(s);
+
+            SampleSummary oldest;
+            while ((oldest = deque.peekFirst()) != null && oldest.getStart() < s.getStart() - retentionMs)
+                deque.pollFirst();
+        }
+    }
+
+    private FeatureRingBuffer buffer(Sample s) {
+        FeatureRingBuffer b = buffers.get(s.getFeatureId());
+        if (b == null)
+            b = buffers.computeIfAbsent(s.getFeatureId(), (k) -> new FeatureRingBuffer(k, s.getName(), s.getSrc(), retentionMs, MAX_CAPACITY));
+        return b;
+    }
+
+    // Keep at least ms worth of samples for owner, until it calls release. Calling it again replaces the requirement.
+    public void require(Object owner, long ms) {
+        requirements.put(owner, ms);
+        updateRetention();
+    }
+
+    public void release(Object owner) {
+        requirements.remove(owner);
+        updateRetention();
+    }
+
+    private synchronized void updateRetention() {
+        long needed = 0;
+        for (long ms : requirements.values())
+            needed = Math.max(needed, ms);
+        long retention = Math.max(minRetentionMs, needed + marginMs);
+        if (retention == retentionMs)
+            return;
+
+        retentionMs = retention;
+        for (FeatureRingBuffer b : buffers.values())
+            b.setRetentionMs(retention);
+        System.out.println("Recent samples are now kept for " + retention + "ms");
+    }
+
+    private void evictorLoop() {
+        while (true) {
+            try {
+                Thread.sleep(evictIntervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            evict(System.currentTimeMillis() - retentionMs);
+        }
+    }
+
+    // Shrink the buffers that hold much more than needed, and drop the samples and summaries of the features that
+    // have nothing newer than before. One buffer at a time.
+    public void evict(long before) {
+        for (Map.Entry<Integer, FeatureRingBuffer> e : buffers.entrySet()) {
+            FeatureRingBuffer b = e.getValue();
+            slotsFreed += b.trim(before);
+            boolean[] retired = { false };
+            buffers.computeIfPresent(e.getKey(), (k, v) -> {
+                if (v != b || !v.retireIfIdle(before))
+                    return v;
+                retired[0] = true;
+                return null;
+            });
+            if (retired[0])
+                buffersRetired++;
+        }
+
+        for (Map.Entry<Integer, ConcurrentLinkedDeque<SampleSummary>> e : summaries.entrySet()) {
+            ConcurrentLinkedDeque<SampleSummary> deque = e.getValue();
+            SampleSummary oldest;
+            while ((oldest = deque.peekFirst()) != null && oldest.getStart() + oldest.getBucketMs() <= before)
+                deque.pollFirst();
+            summaries.computeIfPresent(e.getKey(), (k, v) -> v.isEmpty() ? null : v);
+        }
+    }
+
+    // Get all samples of the given features with a timestamp >= since, ordered by time (first to last)
+    public List<Sample> getSamplesSince(List<Integer> featureIds, long since) {
+        ArrayList<Sample> samples = new ArrayList<>();
+        for (int featureId : featureIds) {
+            FeatureRingBuffer b = buffers.get(featureId);
+            if (b != null)
+                b.scan(since, Long.MAX_VALUE, (time, value) ->
+                        samples.add(new Sample(new PreXTimestamp(new Date(time)), b.getFeatureId(), b.getName(), b.getSrc(), value)));
+        }
+
+        samples.sort((a, b) -> Long.compare(a.getTime().asMillis(), b.getTime().asMillis()));
+        return samples;
+    }
+
+    // Get all summaries of the given features whose bucket starts at or after since
+    public List<SampleSummary> getSummariesSince(List<Integer> featureIds, long since) {
+        ArrayList<SampleSummary> result = new ArrayList<>();
+        for (int featureId : featureIds) {
+            ConcurrentLinkedDeque<SampleSummary> deque = summaries.get(featureId);
+            if (deque != null)
+                for (SampleSummary s : deque)
+                    if (s.getStart() >= since)
+                        result.add(s);
+        }
+        return result;
+    }
+
+    public long getRetentionMs() {
+        return retentionMs;
+    }
+
+    public int getNumFeatures() {
+        return buffers.size();
+    }
+
+    // Total number of slots of all buffers (samples they can hold right now)
+    public long getCapacity() {
+        long n = 0;
+        for (FeatureRingBuffer b : buffers.values())
+            n += b.getCapacity();
+        return n;
+    }
+
+    public long getSlotsFreed() {
+        return slotsFreed;
+    }
+
+    public long getBuffersRetired() {
+        return buffersRetired;
+    }
+}
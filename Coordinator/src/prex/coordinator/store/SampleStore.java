@@ -0,0 +1,34 @@
+package prex.coordinator.store;
+
+import prex.common.Sample;
+import prex.common.SampleSummary;
+
+import java.util.List;
+
+// Where the coordinator keeps the samples (and the summaries of probes in summary mode) it receives. The DB writes to
+// one of these (see DB.getSampleStore), and training reads runs back from it. There are three of them:
+//    H2Store:      the SAMPLE and SAMPLE_SUMMARY tables (the default)
+//    MemoryStore:  plain arrays on the heap. Fast, but gone when the coordinator stops
+//    SegmentStore: memory-mapped files, one column per field
+// Everything else (features, prediction contexts, rollups) stays in the database whatever the store is.
+//
+// Samples and summaries must have their feature IDs resolved. Time ranges are [from, to), in epoch ms.
+public interface SampleStore {
+
+    // Store a batch of samples (null entries are skipped). False if they couldn't be stored.
+    boolean write(Sample[] samples);
+
+    boolean write(SampleSummary[] summaries);
+
+    // Visit every sample of the feature with from <= time < to. Samples come roughly in time order, but not
+    // necessarily exactly, and two samples with the same time (the later one should win) may both show up. Returns the
+    // number of samples visited.
+    int scan(int featureId, long from, long to, FeatureRingBuffer.SampleVisitor visitor);
+
+    // The summaries of the feature whose bucket starts in [from, to), ordered by bucket
+    List<SampleSummary> getSummaries(int featureId, long from, long to);
+
+    // Delete the samples and summaries older than before. Stores that delete in bigger pieces (the SegmentStore deletes
+    // whole segments) may keep some of them around for a while. Returns how many were deleted (segments count as one).
+    int purgeBefore(long before);
+}
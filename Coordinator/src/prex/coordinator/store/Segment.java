@@ -0,0 +1,202 @@
+package prex.coordinator.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// One segment file of the SegmentStore: up to capacity samples of ONE feature, all within one time partition, stored
+// as two primitive columns (epoch-millis timestamps and values). The whole file is memory-mapped, both for appending
+// and for reading, so reads are plain memory accesses and the columns can be handed out as LongBuffer/FloatBuffer
+// views without copying anything.
+//
+// Layout (little-endian):
+//
+//    0   int   magic ("PXSG")
+//    4   int   version
+//    8   int   feature ID
+//    12  int   capacity
+//    16  int   count (number of samples written)
+//    20  int   flags (UNSORTED: some sample is older than the one before it)
+//    24  long  min time
+//    32  long  max time
+//    64  long[capacity]   times
+//    ... float[capacity]  values
+//
+// The count is written after the sample, so a crash never exposes a half-written sample. Appending is serialized by
+// the SegmentStore. Readers never lock: they read count (volatile) first and only look at the samples below it.
+class Segment {
+    static final int MAGIC = 0x50585347; // PXSG
+    static final int VERSION = 1;
+    static final int UNSORTED = 1;
+
+    private static final int HEADER = 64;
+    private static final int COUNT = 16, FLAGS = 20, MIN_TIME = 24, MAX_TIME = 32;
+
+    final Path path;
+    final int featureId;
+    final long partition;
+    final int capacity;
+
+    private final MappedByteBuffer buffer;
+    private final int valuesOffset;
+
+    private volatile int count;
+    private volatile int flags;
+    private volatile long minTime, maxTime;
+
+    private Segment(Path path, long partition, MappedByteBuffer buffer) {
+        this.path = path;
+        this.partition = partition;
+        this.buffer = buffer;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.featureId = buffer.getInt(8);
+        this.capacity = buffer.getInt(12);
+        this.valuesOffset = HEADER + capacity * 8;
+        this.count = buffer.getInt(COUNT);
+        this.flags = buffer.getInt(FLAGS);
+        this.minTime = buffer.getLong(MIN_TIME);
+        this.maxTime = buffer.getLong(MAX_TIME);
+    }
+
+    static Segment create(Path path, int featureId, long partition, int capacity) throws IOException {
+        long size = HEADER + capacity * 12L;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, featureId);
+            buffer.putInt(12, capacity);
+            buffer.putLong(MIN_TIME, Long.MAX_VALUE);
+            buffer.putLong(MAX_TIME, Long.MIN_VALUE);
+            return new Segment(path, partition, buffer);
+        }
+    }
+
+    // The mapping outlives the channel, so nothing stays open but the mapping itself
+    static Segment open(Path path, long partition) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+                throw new IOException("Not a segment file (or an unknown version): " + path);
+            return new Segment(path, partition, buffer);
+        }
+    }
+
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    // Only ever called by one thread at a time (see SegmentStore)
+    void append(long time, float value) {
+        int n = count;
+        buffer.putLong(HEADER + n * 8, time);
+        buffer.putFloat(valuesOffset + n * 4, value);
+
+        if (n > 0 && time < buffer.getLong(HEADER + (n - 1) * 8) && (flags & UNSORTED) == 0) {
+            flags |= UNSORTED;
+            buffer.putInt(FLAGS, flags);
+        }
+        if (time < minTime) {
+            minTime = time;
+            buffer.putLong(MIN_TIME, time);
+        }
+        if (time > maxTime) {
+            maxTime = time;
+            buffer.putLong(MAX_TIME, time);
+        }
+
+        buffer.putInt(COUNT, n + 1);
+        count = n + 1; // Publish
+    }
+
+    // Write the changes to disk now, rather than whenever the OS feels like it
+    void force() {
+        buffer.force();
+    }
+
+    // Does this segment have anything in [from, to)?
+    boolean overlaps(long from, long to) {
+        return count > 0 && minTime < to && maxTime >= from;
+    }
+
+    // Visit every sample with from <= time < to. Sorted segments (the usual case) are binary-searched and only the
+    // matching range is read; unsorted ones are read in full.
+    int scan(long from, long to, FeatureRingBuffer.SampleVisitor visitor) {
+        int n = count;
+        if (n == 0 || !overlaps(from, to))
+            return 0;
+
+        int visited = 0;
+        if ((flags & UNSORTED) == 0) {
+            for (int i = lowerBound(from, n); i < n; i++) {
+                long time = buffer.getLong(HEADER + i * 8);
+                if (time >= to)
+                    break;
+                visitor.visit(time, buffer.getFloat(valuesOffset + i * 4));
+                visited++;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                long time = buffer.getLong(HEADER + i * 8);
+                if (time >= from && time < to) {
+                    visitor.visit(time, buffer.getFloat(valuesOffset + i * 4));
+                    visited++;
+                }
+            }
+        }
+        return visited;
+    }
+
+    // The first index with a time >= from (n if there is none). Sorted segments only
+    int lowerBound(long from, int n) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (buffer.getLong(HEADER + mid * 8) < from)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // Read-only views of the columns for samples [from, to) (indexes, not times). No copies.
+    LongBuffer times(int from, int to) {
+        return view(HEADER + from * 8, (to - from) * 8).asLongBuffer();
+    }
+
+    FloatBuffer values(int from, int to) {
+        return view(valuesOffset + from * 4, (to - from) * 4).asFloatBuffer();
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.limit(offset + length);
+        return b.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    boolean isSorted() {
+        return (flags & UNSORTED) == 0;
+    }
+
+    long getMinTime() {
+        return minTime;
+    }
+
+    long getMaxTime() {
+        return maxTime;
+    }
+}
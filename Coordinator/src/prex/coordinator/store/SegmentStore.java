@@ -0,0 +1,363 @@
+package prex.coordinator.store;
+
+import prex.common.Sample;
+import prex.common.SampleSummary;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// An append-only, on-disk store of every sample the coordinator writes, meant for reading whole runs back (training)
+// without going through the SAMPLE table. Samples are kept per feature, in time-partitioned segment files of
+// primitive columns that are memory-mapped (see Segment):
+//
+//    <dir>/<feature id>/<partition start>-<n>.seg
+//
+// The summaries sent by probes in summary mode go to a small log per feature (see SummaryLog):
+//
+//    <dir>/summaries/<feature id>.sum
+//
+// A new segment starts whenever a sample falls in a new time partition, or when the current segment is full. Reading
+// the samples of a feature in a time range is then a matter of skipping the segments that don't overlap it, a binary
+// search in the others and a sequential scan. Nothing is copied until the samples are handed out, and slices() hands
+// out views of the mapped columns themselves.
+//
+// The store only knows about the samples written since it was created (see getSince()), so older runs still have to
+// come from the database. The IngestionPipeline appends samples as soon as it accepts them, and the Dataset reads them.
+// It can also be the coordinator's SampleStore (prex.store=segments, see DB), in which case the DB writes to it
+// instead and there is no database to fall back on.
+// Like the DB, it is a singleton, configured with system properties:
+//    prex.segments:           "false" turns it off (getInstance() returns null)
+//    prex.segments.dir:       where to put it (default prex-segments)
+//    prex.segments.capacity:  samples per segment (default 65536, i.e. 768KB files)
+//    prex.segments.partition: time partition, in ms (default 1 hour)
+public class SegmentStore implements SampleStore {
+    private static SegmentStore store;
+    private static boolean initialized = false;
+    public static synchronized SegmentStore getInstance() {
+        if (!initialized) {
+            initialized = true;
+            if (Boolean.parseBoolean(System.getProperty("prex.segments", "true"))) {
+                try {
+                    store = new SegmentStore(Paths.get(System.getProperty("prex.segments.dir", "prex-segments")),
+                            Integer.getInteger("prex.segments.capacity", 65536),
+                            Long.getLong("prex.segments.partition", 60 * 60 * 1000));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println("WARN: Can't open the segment store. Runs will be read from the database.");
+                }
+            }
+        }
+        return store;
+    }
+
+    private final Path dir;
+    private final int capacity;
+    private final long partitionMs;
+
+    // When the store was created (or up to when it was purged): it has every sample written since then
+    private volatile long since;
+
+    // <feature id, its segments (ordered by partition, then by creation)>
+    private final ConcurrentHashMap<Integer, FeatureSegments> features = new ConcurrentHashMap<>();
+
+    // <feature id, its summaries>
+    private final ConcurrentHashMap<Integer, SummaryLog> summaries = new ConcurrentHashMap<>();
+
+    // The segments of one feature. Appends are serialized on it; readers only look at the (copy-on-write) list
+    private final class FeatureSegments {
+        final int featureId;
+        final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+
+        FeatureSegments(int featureId) {
+            this.featureId = featureId;
+        }
+
+        synchronized void append(long time, float value) throws IOException {
+            long partition = time - Math.floorMod(time, partitionMs);
+
+            // Samples usually arrive in order, so the last segment is almost always the right one. Late samples go
+            // to the segment of their partition (if any is left with room), which then becomes unsorted.
+            Segment target = null;
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment s = segments.get(i);
+                if (s.partition == partition && !s.isFull()) {
+                    target = s;
+                    break;
+                }
+                if (s.partition < partition)
+                    break;
+            }
+
+            if (target == null) {
+                Path featureDir = dir.resolve(Integer.toString(featureId));
+                Files.createDirectories(featureDir);
+                int n = 0;
+                Path path;
+                while (Files.exists(path = featureDir.resolve(partition + "-" + n + ".seg")))
+                    n++;
+                target = Segment.create(path, featureId, partition, capacity);
+
+                // Keep the list ordered by partition
+                int pos = segments.size();
+                while (pos > 0 && segments.get(pos - 1).partition > partition)
+                    pos--;
+                Segment previous = pos > 0 ? segments.get(pos - 1) : null;
+                segments.add(pos, target);
+                if (previous != null)
+                    previous.force(); // Most likely done with it
+            }
+
+            target.append(time, value);
+        }
+    }
+
+    public SegmentStore(Path dir, int capacity, long partitionMs) throws IOException {
+        this.dir = dir;
+        this.capacity = capacity;
+        this.partitionMs = partitionMs;
+        Files.createDirectories(dir);
+
+        Path sinceFile = dir.resolve("SINCE");
+        if (!Files.exists(sinceFile))
+            Files.write(sinceFile, Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.US_ASCII));
+        this.since = Long.parseLong(new String(Files.readAllBytes(sinceFile), StandardCharsets.US_ASCII).trim());
+
+        Files.createDirectories(dir.resolve("summaries"));
+        load();
+    }
+
+    // Map the segments that are already on disk
+    private void load() throws IOException {
+        try (DirectoryStream<Path> featureDirs = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path featureDir : featureDirs) {
+                int featureId;
+                try {
+                    featureId = Integer.parseInt(featureDir.getFileName().toString());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                ArrayList<Segment> segments = new ArrayList<>();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(featureDir, "*.seg")) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        try {
+                            segments.add(Segment.open(file, Long.parseLong(name.substring(0, name.indexOf('-')))));
+                        } catch (IOException | RuntimeException e) {
+                            System.err.println("WARN: Skipping segment " + file + ": " + e);
+                        }
+                    }
+                }
+
+                // By partition, then by the number in their name
+                segments.sort((a, b) -> a.partition != b.partition ? Long.compare(a.partition, b.partition) :
+                        Integer.compare(sequence(a), sequence(b)));
+                feature(featureId).segments.addAll(segments);
+            }
+        }
+    }
+
+    private static int sequence(Segment s) {
+        String name = s.path.getFileName().toString();
+        return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.length() - ".seg".length()));
+    }
+
+    private FeatureSegments feature(int featureId) {
+        FeatureSegments f = features.get(featureId);
+        return f != null ? f : features.computeIfAbsent(featureId, FeatureSegments::new);
+    }
+
+    // Append a batch of samples (their feature IDs must be resolved). Returns false if any of them couldn't be written.
+    public boolean append(Sample[] samples) {
+        boolean ok = true;
+        for (Sample s : samples) {
+            if (s == null || s.getFeatureId() == 0)
+                continue;
+            try {
+                feature(s.getFeatureId()).append(s.getTime().asMillis(), s.getValue());
+            } catch (IOException e) {
+                e.printStackTrace();
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    @Override
+    public boolean write(Sample[] samples) {
+        return append(samples);
+    }
+
+    @Override
+    public boolean write(SampleSummary[] batch) {
+        // One file write per feature
+        Map<Integer, List<SampleSummary>> byFeature = new HashMap<>();
+        for (SampleSummary s : batch)
+            if (s != null && s.getFeatureId() != 0)
+                byFeature.computeIfAbsent(s.getFeatureId(), (k) -> new ArrayList<>()).add(s);
+
+        boolean ok = true;
+        for (Map.Entry<Integer, List<SampleSummary>> e : byFeature.entrySet()) {
+            try {
+                summaryLog(e.getKey()).append(e.getValue());
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    @Override
+    public List<SampleSummary> getSummaries(int featureId, long from, long to) {
+        try {
+            List<SampleSummary> list = summaryLog(featureId).read(from, to);
+            list.sort((a, b) -> Long.compare(a.getStart(), b.getStart()));
+            return list;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    private SummaryLog summaryLog(int featureId) {
+        return summaries.computeIfAbsent(featureId,
+                (k) -> new SummaryLog(dir.resolve("summaries").resolve(k + ".sum"), k));
+    }
+
+    // Visit every sample of the feature with from <= time < to, segment by segment. Samples come in time order,
+    // except for samples that arrived late (see Segment). Returns the number of samples visited.
+    @Override
+    public int scan(int featureId, long from, long to, FeatureRingBuffer.SampleVisitor visitor) {
+        FeatureSegments f = features.get(featureId);
+        if (f == null)
+            return 0;
+
+        int visited = 0;
+        for (Segment s : f.segments)
+            visited += s.scan(from, to, visitor);
+        return visited;
+    }
+
+    // A run of consecutive samples of one feature, as read-only views of a segment's mapped columns
+    public static final class Slice {
+        public final LongBuffer times;
+        public final FloatBuffer values;
+
+        Slice(LongBuffer times, FloatBuffer values) {
+            this.times = times;
+            this.values = values;
+        }
+    }
+
+    // The samples of the feature with from <= time < to, without copying them. Unsorted segments can't be sliced
+    // by time, so their slices hold all of their samples and must be filtered by the caller.
+    public List<Slice> slices(int featureId, long from, long to) {
+        ArrayList<Slice> slices = new ArrayList<>();
+        FeatureSegments f = features.get(featureId);
+        if (f == null)
+            return slices;
+
+        for (Segment s : f.segments) {
+            int n = s.getCount();
+            if (!s.overlaps(from, to))
+                continue;
+
+            int start = 0, end = n;
+            if (s.isSorted()) {
+                start = s.lowerBound(from, n);
+                end = s.lowerBound(to, n);
+            }
+            if (start < end)
+                slices.add(new Slice(s.times(start, end), s.values(start, end)));
+        }
+        return slices;
+    }
+
+    // Is every sample written since from in here?
+    public boolean covers(long from) {
+        return from >= since;
+    }
+
+    // Delete the segments that only have samples older than before (see RollupManager). From then on, the store only
+    // covers what is newer. Returns the number of segments deleted.
+    public synchronized int purge(long before) {
+        int deleted = 0;
+        for (FeatureSegments f : features.values()) {
+            synchronized (f) {
+                for (Segment s : f.segments) {
+                    if (s.partition + partitionMs > before && (s.getCount() == 0 || s.getMaxTime() >= before))
+                        continue;
+                    f.segments.remove(s);
+                    try {
+                        Files.deleteIfExists(s.path); // Readers that still have it mapped can keep reading it
+                        deleted++;
+                    } catch (IOException e) {
+                        System.err.println("WARN: Can't delete segment " + s.path + ": " + e);
+                    }
+                }
+            }
+        }
+
+        if (before > since) {
+            since = before;
+            try {
+                Files.write(dir.resolve("SINCE"), Long.toString(since).getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return deleted;
+    }
+
+    // As a SampleStore, purging also drops old summaries. Returns the number of segments and summaries deleted.
+    @Override
+    public int purgeBefore(long before) {
+        int deleted = purge(before);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.resolve("summaries"), "*.sum")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                deleted += summaryLog(Integer.parseInt(name.substring(0, name.length() - ".sum".length()))).purge(before);
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        return deleted;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public int getNumFeatures() {
+        return features.size();
+    }
+
+    public int getNumSegments() {
+        int n = 0;
+        for (FeatureSegments f : features.values())
+            n += f.segments.size();
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentStore{dir=" + dir + ", features=" + getNumFeatures() + ", segments=" + getNumSegments() + "}";
+    }
+
+    // Write everything to disk
+    public void force() {
+        for (FeatureSegments f : features.values())
+            for (Segment s : f.segments)
+                s.force();
+    }
+}
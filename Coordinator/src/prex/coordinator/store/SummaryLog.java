@@ -0,0 +1,96 @@
+package prex.coordinator.store;
+
+import prex.common.SampleSummary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The summaries of ONE feature in the SegmentStore (probes in summary mode send few of them, so they don't need
+// anything fancier): an append-only file of fixed-size little-endian records,
+//
+//    start (long), bucket (int), n (int), mean (double), m2 (double), min (float), max (float),
+//    first time (long), first value (float), last time (long), last value (float)
+//
+// which is read in full whenever it is queried.
+class SummaryLog {
+    private static final int RECORD = 64;
+
+    private final Path path;
+    private final int featureId;
+
+    SummaryLog(Path path, int featureId) {
+        this.path = path;
+        this.featureId = featureId;
+    }
+
+    synchronized void append(List<SampleSummary> summaries) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(summaries.size() * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+        for (SampleSummary s : summaries) {
+            b.putLong(s.getStart()).putInt(s.getBucketMs()).putInt(s.getN());
+            b.putDouble(s.getRawMean()).putDouble(s.getM2());
+            b.putFloat(s.getMin()).putFloat(s.getMax());
+            b.putLong(s.getFirstTime()).putFloat(s.getFirstValue());
+            b.putLong(s.getLastTime()).putFloat(s.getLastValue());
+        }
+        b.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (b.hasRemaining())
+                channel.write(b);
+        }
+    }
+
+    // Every summary whose bucket starts in [from, to), in the order they were written
+    synchronized List<SampleSummary> read(long from, long to) throws IOException {
+        ArrayList<SampleSummary> summaries = new ArrayList<>();
+        if (!Files.exists(path))
+            return summaries;
+
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.remaining() >= RECORD) {
+            long start = b.getLong();
+            int bucket = b.getInt(), n = b.getInt();
+            double mean = b.getDouble(), m2 = b.getDouble();
+            float min = b.getFloat(), max = b.getFloat();
+            long firstTime = b.getLong();
+            float firstValue = b.getFloat();
+            long lastTime = b.getLong();
+            float lastValue = b.getFloat();
+            if (start >= from && start < to)
+                summaries.add(new SampleSummary(featureId, null, null, start, bucket, n, mean, m2, min, max, firstTime, firstValue, lastTime, lastValue));
+        }
+        return summaries;
+    }
+
+    // Rewrite the file without the summaries that start before the given time. Returns how many were dropped.
+    synchronized int purge(long before) throws IOException {
+        if (!Files.exists(path))
+            return 0;
+
+        byte[] all = Files.readAllBytes(path);
+        ByteBuffer in = ByteBuffer.wrap(all).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer out = ByteBuffer.allocate(all.length);
+        int dropped = 0;
+        for (int pos = 0; pos + RECORD <= all.length; pos += RECORD) {
+            if (in.getLong(pos) < before)
+                dropped++;
+            else
+                out.put(all, pos, RECORD);
+        }
+        if (dropped == 0)
+            return 0;
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, Arrays.copyOf(out.array(), out.position()));
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return dropped;
+    }
+}
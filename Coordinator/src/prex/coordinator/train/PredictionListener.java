@@ -0,0 +1,12 @@
+package prex.coordinator.train;
+
+import prex.common.PreXException;
+import prex.common.PredictionContext;
+
+import java.io.IOException;
+
+// Whoever wants to be told about changes in the prediction of some exception (in practice, one stream of a client
+// session). See PredictionThreadManager.
+public interface PredictionListener {
+    void notifyOfPredictionState(PredictionContext ctx, PreXException exception, boolean state) throws IOException;
+}
@@ -5,6 +5,7 @@ import prex.common.PredictionContext;
 import prex.common.PreXTimestamp;
 import prex.coordinator.preprocess.Dataset;
 import prex.coordinator.preprocess.SummarizedDataset;
+import prex.coordinator.store.RecentSampleStore;
 import weka.core.Instances;
 
 import java.io.ObjectOutputStream;
@@ -25,6 +26,8 @@ import java.util.concurrent.atomic.AtomicLong;
 // Note also that it is the sole responsibility of the PredictionThreadManager to guarantee that only one
 // PredictionThread exists for each exception and prediction context. This makes programming the thread itself much
 // easier
+//
+// While it runs, the thread makes sure the RecentSampleStore keeps the last T*k ms of samples of its model around.
 public class PredictionThread extends Thread {
     // Context and exception for which to predict
     private PredictionContext context;
@@ -61,6 +64,7 @@ public class PredictionThread extends Thread {
             manager.notifyStoppedPredicting(this);
             return;
         }
+        RecentSampleStore.getInstance().require(this, (long) currentBestModel.getT() * currentBestModel.getK());
 
         while ( !stop.get() ) {
             synchronized (dieTime) {
@@ -73,9 +77,10 @@ public class PredictionThread extends Thread {
             if ( newBest.get() ) {
                 newBest.set(false);
                 currentBestModel = Model.loadBest(".", context, exception);
-                if (currentBestModel != null)
+                if (currentBestModel != null) {
                     System.err.println("Loaded newbest for " + context + ", " + exception);
-                else
+                    RecentSampleStore.getInstance().require(this, (long) currentBestModel.getT() * currentBestModel.getK());
+                } else
                     break;
 
             }
@@ -126,6 +131,7 @@ public class PredictionThread extends Thread {
         }
 
         // We're all done and we must tell this to the manager before it tries to tell us to do more work!
+        RecentSampleStore.getInstance().release(this);
         manager.notifyStoppedPredicting(this);
     }
 
@@ -2,7 +2,6 @@ package prex.coordinator.train;
 
 import prex.common.PreXException;
 import prex.common.PredictionContext;
-import prex.coordinator.server.ClientThread;
 import prex.coordinator.server.SharedServerState;
 
 import java.io.IOException;
@@ -18,10 +17,10 @@ import java.util.Map;
 // prediction thread can exist for the same exception at a time. In practice, this would be better with a Set, but
 // for now this works.
 //
-// In addition, every client wanting to predict some exception within a prediction context is also mapped with a Map
-// to the PredictionContext/Exception pair. This is so that when a thread tells us that it "changed its prediction
-// status", we know whom to notify. Perhaps it would be better if this logic was moved onto the threads themselves
-// in a later version.
+// In addition, every client (in fact, every PredictionListener, i.e., every stream of a client session) wanting to
+// predict some exception within a prediction context is also mapped with a Map to the PredictionContext/Exception
+// pair. This is so that when a thread tells us that it "changed its prediction status", we know whom to notify.
+// Perhaps it would be better if this logic was moved onto the threads themselves in a later version.
 public class PredictionThreadManager {
 
     // The time to wait before we kill a thread if it has no clients. Set this to 0 and watch the world burn before your
@@ -31,8 +30,8 @@ public class PredictionThreadManager {
     // < <PredictionContext name-exceptionClass name>, PredictionThread>
     private Map<String,PredictionThread> allThreads = new HashMap<>();
 
-    // < <PredictionContext name-exceptionClass name>, multiple ClientThread listeners >
-    private Map<String,ArrayList<ClientThread>> listeners = new HashMap<>();
+    // < <PredictionContext name-exceptionClass name>, multiple listeners >
+    private Map<String,ArrayList<PredictionListener>> listeners = new HashMap<>();
 
     private SharedServerState state;
 
@@ -46,15 +45,16 @@ public class PredictionThreadManager {
         return ctx.getName() + "-" + exception.getExceptionClass();
     }
 
-    // A client thread should use this to tell the manager that it no longer cares about some prediction.
-    public synchronized void stopPredicting(PredictionContext ctx, PreXException exception, ClientThread thread) {
+    // A listener should use this to tell the manager that it no longer cares about some prediction.
+    public synchronized void stopPredicting(PredictionContext ctx, PreXException exception,
+                                            PredictionListener listener) {
         String key = mapKeyFromContextAndException(ctx, exception);
 
         synchronized (listeners) {
 
             // Remove the thread from the list of threads interested in this prediction
             if (listeners.containsKey(key))
-                listeners.get(key).remove(thread);
+                listeners.get(key).remove(listener);
 
 
             // If no more listeners, ask the thread to kill itself _IN A WHILE_
@@ -89,9 +89,10 @@ public class PredictionThreadManager {
         return false;
     }*/
 
-    // A client thread should invoke this method when it wants to predict some exception in some prediction context.
+    // A listener should invoke this method when it wants to predict some exception in some prediction context.
     // The method returns the current prediction state (it could have already started predicting!)
-    public synchronized boolean startPredicting(PredictionContext ctx, PreXException exception, ClientThread thread) {
+    public synchronized boolean startPredicting(PredictionContext ctx, PreXException exception,
+                                                PredictionListener listener) {
         boolean ret = false;
         if ( !state.doPredictions() ) return false;
 
@@ -117,10 +118,10 @@ public class PredictionThreadManager {
         // Add this client to the listeners interested in this prediction.
         synchronized (listeners) {
             if (listeners.containsKey(key)) {
-                listeners.get(key).add(thread);
+                listeners.get(key).add(listener);
             } else {
-                ArrayList<ClientThread> l = new ArrayList<>();
-                l.add(thread);
+                ArrayList<PredictionListener> l = new ArrayList<>();
+                l.add(listener);
                 listeners.put(key, l);
             }
         }
@@ -151,7 +152,7 @@ public class PredictionThreadManager {
         String key = mapKeyFromContextAndException(ctx,exception);
         synchronized (listeners) {
             if (listeners.containsKey(key)) { // Sanity check!
-                for (ClientThread c : listeners.get(key))
+                for (PredictionListener c : listeners.get(key))
                     try {
                         c.notifyOfPredictionState(ctx, exception, state);
                     } catch (IOException e) {
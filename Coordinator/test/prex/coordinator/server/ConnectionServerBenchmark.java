@@ -0,0 +1,124 @@
+package prex.coordinator.server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import prex.common.PreXTimestamp;
+import prex.common.Sample;
+import prex.common.SampleBuffer;
+import prex.common.protocol.MessageChannel;
+import prex.common.protocol.MessageChannels;
+import prex.common.protocol.messages.BufferedSamplesMessage;
+import prex.coordinator.db.DB;
+import prex.coordinator.db.IngestionPipeline;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The three front-ends (see ConnectionServer) with a crowd of connected probes. All the clients connect before the
+// measurement starts and stay connected; a few threads then send sample buffers round-robin over all of them, so
+// every connection is busy now and then but most are idle most of the time, like a fleet of real probes. They all
+// send the same features, so that what we measure is the front-end and not the feature catalog.
+//
+// The score is messages sent per second. What the coordinator actually took in (messages handed to the ingestion
+// pipeline per second) and how many connections it is holding are printed after every iteration, since sends can
+// run ahead of the server for a while by filling up the socket buffers.
+//
+// Each client is two file descriptors in this process (both ends of the socket), so 10000 clients need a ulimit -n
+// of well over 20000.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xss256k", "-Dprex.store=memory", "-Dprex.wal=false", "-Dprex.rollup.resolutions="})
+@Threads(4)
+public class ConnectionServerBenchmark {
+    private static final int PORT = 16610;
+    private static final int SAMPLES_PER_MESSAGE = 10;
+
+    @Param({"threads", "virtual", "nio"})
+    String server;
+
+    @Param({"10000"})
+    int clients;
+
+    private IngestionPipeline pipeline;
+    private ConnectionServer connectionServer;
+    private MessageChannel[] channels;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private long iterationStart, samplesAtStart;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        DB db = DB.getInstance();
+        pipeline = new IngestionPipeline(db, 2, 64 * 1024, 256, IngestionPipeline.OverflowPolicy.BLOCK);
+        SharedServerState state = new SharedServerState(false, false, pipeline);
+
+        switch (server) {
+            case "nio":
+                connectionServer = new NioConnectionServer(state, db, PORT, clients, Runtime.getRuntime().availableProcessors(), 1 << 20);
+                break;
+            default:
+                connectionServer = new ThreadPerConnectionServer(state, db, PORT, clients, server.equals("virtual"));
+        }
+        new Thread(() -> {
+            try {
+                connectionServer.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "benchmark-server").start();
+        Thread.sleep(500);
+
+        long t0 = System.nanoTime();
+        channels = new MessageChannel[clients];
+        for (int i = 0; i < clients; i++)
+            channels[i] = MessageChannels.connect(new Socket("localhost", PORT), true);
+        while (connectionServer.getConnections() < clients && System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(60))
+            Thread.sleep(10);
+        System.out.println("\n" + server + ": " + connectionServer.getConnections() + " of " + clients
+                + " connections held after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) + " ms ("
+                + connectionServer.getRejectedConnections() + " rejected)");
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        iterationStart = System.nanoTime();
+        samplesAtStart = pipeline.getEnqueued();
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        double seconds = (System.nanoTime() - iterationStart) / 1e9;
+        double messages = (pipeline.getEnqueued() - samplesAtStart) / (double) SAMPLES_PER_MESSAGE;
+        System.out.println("   server: " + String.format("%.0f", messages / seconds) + " msgs/s handled, "
+                + connectionServer.getConnections() + " connections held");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (MessageChannel c : channels)
+            c.close();
+        connectionServer.stop();
+        pipeline.stop();
+    }
+
+    @Benchmark
+    public void send() throws IOException {
+        int i = Math.abs(next.getAndIncrement() % clients);
+        Sample[] samples = new Sample[SAMPLES_PER_MESSAGE];
+        PreXTimestamp now = new PreXTimestamp();
+        for (int j = 0; j < samples.length; j++)
+            samples[j] = new Sample(now, "feature" + j, "probe", j);
+        channels[i].write(new BufferedSamplesMessage("probe" + i, new SampleBuffer(samples)));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ConnectionServerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,33 @@
+package prex.coordinator.store;
+
+import prex.coordinator.db.DB;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+// Against a database of its own, in a temporary directory. Features have to exist in it (the SAMPLE table references
+// them), so they come from the FeatureCatalog.
+public class H2StoreTest extends SampleStoreContract {
+    static {
+        try {
+            System.setProperty("prex.db.path", Files.createTempDirectory("prex-db").resolve("prex-db").toString());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        System.setProperty("prex.store", "h2");
+        System.setProperty("prex.segments", "false");
+        System.setProperty("prex.rollup.resolutions", "");
+    }
+
+    private static int features = 0;
+
+    @Override
+    protected SampleStore createStore() {
+        return new H2Store();
+    }
+
+    @Override
+    protected int newFeature(String name) {
+        return DB.getInstance().getFeatureCatalog().featureId(name + (++features), "test");
+    }
+}
@@ -0,0 +1,8 @@
+package prex.coordinator.store;
+
+public class MemoryStoreTest extends SampleStoreContract {
+    @Override
+    protected SampleStore createStore() {
+        return new MemoryStore();
+    }
+}
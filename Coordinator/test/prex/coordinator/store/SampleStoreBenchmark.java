@@ -0,0 +1,106 @@
+package prex.coordinator.store;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import prex.common.PreXTimestamp;
+import prex.common.Sample;
+import prex.coordinator.db.DB;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Reading a run back out of each store (see SampleStore): the features of a prediction context, each with a history
+// of a probe sampling every 10ms, and scans of a minute of it, like training reading one run. With late > 0, one
+// sample in that many comes up to half a second late, which used to send every MemoryStore scan after the first late
+// sample through the whole history. Each operation is one sample visited, so the scores are samples per microsecond.
+//
+// write is the other side: batches of 100 samples (one probe flush) going in.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dprex.store=h2", "-Dprex.segments=false", "-Dprex.wal=false", "-Dprex.rollup.resolutions="})
+public class SampleStoreBenchmark {
+    private static final int FEATURES = 10;
+    private static final int HISTORY = 200000; // Per feature: about half an hour at 10ms
+    private static final int RUN = 6000;       // A minute
+    private static final int BATCH = 100;
+
+    @Param({"memory", "segments", "h2"})
+    String store;
+
+    @Param({"0", "100"})
+    int late;
+
+    private SampleStore sampleStore;
+    private final int[] features = new int[FEATURES];
+    private final long t0 = System.currentTimeMillis() - HISTORY * 10L;
+    private final Random random = new Random(42);
+    private long writeTime;
+
+    @Setup
+    public void setup() throws IOException {
+        switch (store) {
+            case "memory":
+                sampleStore = new MemoryStore();
+                break;
+            case "segments":
+                sampleStore = new SegmentStore(Files.createTempDirectory("prex-segments"), 65536, 3600 * 1000);
+                break;
+            default:
+                System.setProperty("prex.db.path", Files.createTempDirectory("prex-db").resolve("prex-db").toString());
+                sampleStore = new H2Store();
+        }
+        for (int f = 0; f < FEATURES; f++)
+            features[f] = store.equals("h2") ? DB.getInstance().getFeatureCatalog().featureId("bench" + f + "-" + late, "bench") : f + 1;
+
+        Sample[] batch = new Sample[BATCH];
+        for (int i = 0; i < HISTORY; i += BATCH) {
+            for (int f = 0; f < FEATURES; f++) {
+                for (int j = 0; j < BATCH; j++)
+                    batch[j] = sample(f, t0 + (i + j) * 10L);
+                sampleStore.write(batch);
+            }
+        }
+        writeTime = t0 + HISTORY * 10L;
+    }
+
+    private Sample sample(int f, long time) {
+        if (late > 0 && random.nextInt(late) == 0)
+            time -= random.nextInt(500);
+        return new Sample(new PreXTimestamp(new Date(time)), features[f], "bench" + f, "bench", random.nextFloat());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FEATURES * RUN)
+    public int scanRun() {
+        FeatureSamples samples = new FeatureSamples();
+        long from = t0 + random.nextInt(HISTORY - RUN) * 10L;
+        int visited = 0;
+        for (int feature : features) {
+            samples.n = 0;
+            visited += sampleStore.scan(feature, from, from + RUN * 10L, samples);
+        }
+        return visited;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public boolean write() {
+        Sample[] batch = new Sample[BATCH];
+        int f = random.nextInt(FEATURES);
+        for (int j = 0; j < BATCH; j++)
+            batch[j] = sample(f, writeTime += 10);
+        return sampleStore.write(batch);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SampleStoreBenchmark.class.getSimpleName()).build()).run();
+    }
+}
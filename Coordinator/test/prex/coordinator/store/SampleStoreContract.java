@@ -0,0 +1,208 @@
+package prex.coordinator.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import prex.common.PreXTimestamp;
+import prex.common.Sample;
+import prex.common.SampleSummary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// What every SampleStore must do (see the interface), checked the same way against each of them. A store's test
+// extends this and says how to create one (see H2StoreTest, MemoryStoreTest and SegmentStoreTest).
+//
+// Scans are compared after FeatureSamples.sortAndDedup, which is what Dataset does with them: the interface lets stores
+// hand out late samples out of order and duplicates more than once, as long as the last one written wins.
+public abstract class SampleStoreContract {
+    // Long ago, so that nothing gets in the way of a SegmentStore's partitions (one hour, see SegmentStoreTest)
+    protected static final long T0 = 1500000000000L;
+
+    private static int features = 0;
+
+    protected SampleStore store;
+
+    protected abstract SampleStore createStore() throws IOException;
+
+    // A new feature ID, no other test has written anything to it
+    protected int newFeature(String name) {
+        return ++features;
+    }
+
+    protected void closeStore() throws IOException {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        store = createStore();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        closeStore();
+    }
+
+    @Test
+    public void scanIsFromInclusiveToExclusive() {
+        int f = newFeature("range");
+        write(f, T0, 100, 10); // T0, T0 + 10, ..., T0 + 990
+
+        FeatureSamples s = scan(f, T0 + 100, T0 + 200);
+        assertEquals(10, s.n);
+        assertEquals(T0 + 100, s.times[0]);
+        assertEquals(T0 + 190, s.times[9]);
+        assertEquals(0, scan(f, T0 + 101, T0 + 110).n);
+        assertEquals(100, scan(f, T0, T0 + 1000).n);
+    }
+
+    @Test
+    public void featuresDontMix() {
+        int a = newFeature("a"), b = newFeature("b");
+        write(a, T0, 50, 1);
+        write(b, T0, 30, 1);
+        assertEquals(50, scan(a, T0, T0 + 1000).n);
+        assertEquals(30, scan(b, T0, T0 + 1000).n);
+        assertEquals(0, store.scan(newFeature("nothing"), T0, T0 + 1000, (time, value) -> fail()));
+    }
+
+    @Test
+    public void scanCountsWhatItVisits() {
+        int f = newFeature("count");
+        write(f, T0, 100, 10);
+        int[] visited = new int[1];
+        assertEquals(20, store.scan(f, T0 + 500, T0 + 700, (time, value) -> visited[0]++));
+        assertEquals(20, visited[0]);
+    }
+
+    @Test
+    public void lateSamplesAreFound() {
+        int f = newFeature("late");
+        Random random = new Random(21);
+
+        // Slots T0 + 10k in order, except that a tenth of them come up to 50 slots late, and a few that were already
+        // written are written again
+        ArrayList<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            order.add(i);
+        for (int i = 0; i < 100; i++) {
+            int from = random.nextInt(order.size());
+            int slot = order.remove(from);
+            order.add(Math.min(order.size(), from + 1 + random.nextInt(50)), slot);
+        }
+        for (int i = 0; i < 50; i++) {
+            int pos = 1 + random.nextInt(order.size() - 1);
+            order.add(pos, order.get(random.nextInt(pos)));
+        }
+
+        float[] expected = new float[1000];
+        for (int w = 0; w < order.size(); w++) {
+            int slot = order.get(w);
+            expected[slot] = w;
+            // One at a time, like the writers when they're idle
+            assertTrue(store.write(new Sample[] { new Sample(new PreXTimestamp(new Date(T0 + slot * 10)), f, "late", "test", w) }));
+        }
+
+        FeatureSamples s = scan(f, T0, T0 + 10000);
+        assertEquals(1000, s.n);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(T0 + i * 10, s.times[i]);
+            assertEquals("slot " + i, expected[i], s.values[i], 0);
+        }
+
+        // The same for a range in the middle, a few times over (stores may reorganise themselves as they are read)
+        for (int round = 0; round < 3; round++) {
+            FeatureSamples middle = scan(f, T0 + 2000, T0 + 3000);
+            assertEquals(100, middle.n);
+            for (int i = 0; i < 100; i++)
+                assertEquals(expected[200 + i], middle.values[i], 0);
+        }
+    }
+
+    @Test
+    public void lastWriteWins() {
+        int f = newFeature("dup");
+        write(f, T0, 10, 100);
+        assertTrue(store.write(new Sample[] { new Sample(new PreXTimestamp(new Date(T0 + 500)), f, "dup", "test", -1) }));
+        write(f, T0 + 1000, 10, 100);
+
+        FeatureSamples s = scan(f, T0, T0 + 2000);
+        assertEquals(20, s.n);
+        assertEquals(T0 + 500, s.times[5]);
+        assertEquals(-1, s.values[5], 0);
+    }
+
+    @Test
+    public void nullsAreSkipped() {
+        int f = newFeature("nulls");
+        Sample[] batch = { null, new Sample(new PreXTimestamp(new Date(T0)), f, "nulls", "test", 1), null };
+        assertTrue(store.write(batch));
+        assertEquals(1, scan(f, T0, T0 + 1).n);
+        assertTrue(store.write(new Sample[0]));
+    }
+
+    @Test
+    public void summariesComeOrderedByBucket() {
+        int f = newFeature("summaries");
+        SampleSummary[] batch = new SampleSummary[10];
+        for (int i = 0; i < batch.length; i++) {
+            int bucket = (i * 7) % 10; // Out of order
+            batch[i] = new SampleSummary(f, "summaries", "test", T0 + bucket * 1000, 1000);
+            batch[i].add(T0 + bucket * 1000 + 10, bucket);
+            batch[i].add(T0 + bucket * 1000 + 20, bucket + 2);
+        }
+        assertTrue(store.write(batch));
+
+        List<SampleSummary> list = store.getSummaries(f, T0 + 2000, T0 + 6000);
+        assertEquals(4, list.size());
+        for (int i = 0; i < 4; i++) {
+            SampleSummary s = list.get(i);
+            assertEquals(T0 + (2 + i) * 1000, s.getStart());
+            assertEquals(f, s.getFeatureId());
+            assertEquals(2, s.getN());
+            assertEquals(3 + i, s.getMean(), 1e-6f);
+        }
+        assertTrue(store.getSummaries(newFeature("none"), T0, T0 + 10000).isEmpty());
+    }
+
+    // Stores may keep old samples for a while (see purgeBefore), but never lose newer ones. What's far older than the
+    // cut (a SegmentStore's partition before) must be gone.
+    @Test
+    public void purgeKeepsWhatIsNewer() {
+        long hour = 3600 * 1000;
+        int f = newFeature("purge");
+        write(f, T0, 100, 1000);
+        write(f, T0 + 5 * hour, 100, 1000);
+        SampleSummary old = new SampleSummary(f, "purge", "test", T0, 1000);
+        old.add(T0, 1);
+        SampleSummary recent = new SampleSummary(f, "purge", "test", T0 + 5 * hour, 1000);
+        recent.add(T0 + 5 * hour, 1);
+        assertTrue(store.write(new SampleSummary[] { old, recent }));
+
+        assertTrue(store.purgeBefore(T0 + 3 * hour) > 0);
+        assertEquals(0, scan(f, T0, T0 + hour).n);
+        assertEquals(100, scan(f, T0 + 5 * hour, T0 + 6 * hour).n);
+        assertTrue(store.getSummaries(f, T0, T0 + hour).isEmpty());
+        assertEquals(1, store.getSummaries(f, T0 + 5 * hour, T0 + 6 * hour).size());
+    }
+
+    // count samples of the feature, starting at start, step ms apart, with values 0, 1, 2...
+    protected void write(int feature, long start, int count, int step) {
+        Sample[] batch = new Sample[count];
+        for (int i = 0; i < count; i++)
+            batch[i] = new Sample(new PreXTimestamp(new Date(start + (long) i * step)), feature, "f" + feature, "test", i);
+        assertTrue(store.write(batch));
+    }
+
+    protected FeatureSamples scan(int feature, long from, long to) {
+        FeatureSamples s = new FeatureSamples();
+        store.scan(feature, from, to, s);
+        s.sortAndDedup();
+        return s;
+    }
+}
@@ -0,0 +1,25 @@
+package prex.coordinator.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Small segments, so that scans cross a few of them
+public class SegmentStoreTest extends SampleStoreContract {
+    private Path dir;
+
+    @Override
+    protected SampleStore createStore() throws IOException {
+        dir = Files.createTempDirectory("prex-segments");
+        return new SegmentStore(dir, 128, 3600 * 1000);
+    }
+
+    @Override
+    protected void closeStore() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach((p) -> p.toFile().delete());
+        }
+    }
+}
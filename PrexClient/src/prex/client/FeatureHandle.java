@@ -0,0 +1,44 @@
+package prex.client;
+
+// A feature (something that is sampled) of a PrexClient, registered once with PrexClient.feature(name). Sampling
+// through a handle skips looking the feature up by name and doesn't allocate anything: it is the way to go for
+// probes that sample many variables at high rates. Handles are thread safe.
+//
+//    FeatureHandle freeRam = client.feature("Free Ram");
+//    ...
+//    freeRam.sample(runtime.freeMemory());
+public final class FeatureHandle {
+    private final PrexClient client;
+    private final String name;
+
+    // Index in the client's FeatureTable
+    final int index;
+
+    FeatureHandle(PrexClient client, String name, int index) {
+        this.client = client;
+        this.name = name;
+        this.index = index;
+    }
+
+    // Record a sample, timestamped right now
+    public void sample(float value) {
+        client.sample(this, System.currentTimeMillis(), value);
+    }
+
+    // Record a sample with the given timestamp (epoch ms)
+    public void sample(long time, float value) {
+        client.sample(this, time, value);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return "FeatureHandle{" +
+                "name='" + name + '\'' +
+                ", src='" + client.getSrc() + '\'' +
+                '}';
+    }
+}
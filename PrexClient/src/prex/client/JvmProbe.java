@@ -0,0 +1,178 @@
+package prex.client;
+
+import java.io.IOException;
+import java.lang.management.*;
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.List;
+
+// A probe for the JVM it runs in, built on the platform MXBeans. Just create it and start() it:
+//
+//    new JvmProbe("service1", "localhost", 1610).start();
+//
+// The metrics are split in groups, each sampled at its own interval (which can be changed with interval() before
+// start(), or with the prex.jvm.<group>.interval system property, in ms; 0 turns a group off):
+//
+//    MEMORY      jvm.heap.used, jvm.heap.committed, jvm.heap.max, jvm.nonheap.used, jvm.nonheap.committed (bytes)
+//    GC          jvm.gc.<collector>.count and jvm.gc.<collector>.time: collections and ms spent collecting since the
+//                last sample (so time is the GC pause time of the interval, for stop-the-world collectors)
+//    THREADS     jvm.threads.live, jvm.threads.daemon, jvm.threads.peak
+//    CLASSES     jvm.classes.loaded, jvm.classes.unloaded (total since the JVM started)
+//    SAFEPOINTS  jvm.safepoints.count and jvm.safepoints.time: safepoints and ms spent in them since the last sample
+//
+// Safepoint numbers come from HotSpot's internal runtime MBean. On Java 9 and later it's only reachable with
+// --add-exports java.management/sun.management=ALL-UNNAMED. Without it, the group is turned off with a warning.
+public class JvmProbe extends ScheduledProbe {
+    public enum Group {
+        MEMORY(1000), GC(1000), THREADS(5000), CLASSES(10000), SAFEPOINTS(1000);
+
+        private final long defaultIntervalMs;
+
+        Group(long defaultIntervalMs) {
+            this.defaultIntervalMs = defaultIntervalMs;
+        }
+    }
+
+    private final EnumMap<Group, Long> intervals = new EnumMap<>(Group.class);
+    private boolean scheduled = false;
+
+    public JvmProbe(String src, String host, int port) throws IOException {
+        this(src, host, port, 50);
+    }
+
+    public JvmProbe(String src, String host, int port, int bufferSize) throws IOException {
+        super(src, host, port, bufferSize);
+        for (Group g : Group.values())
+            intervals.put(g, Long.getLong("prex.jvm." + g.name().toLowerCase() + ".interval", g.defaultIntervalMs));
+    }
+
+    // Change the interval of a group of metrics (0 turns it off). Only before start().
+    public JvmProbe interval(Group group, long intervalMs) {
+        intervals.put(group, intervalMs);
+        return this;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!scheduled) {
+            scheduled = true;
+            scheduleMemory();
+            scheduleGc();
+            scheduleThreads();
+            scheduleClasses();
+            scheduleSafepoints();
+        }
+        super.start();
+    }
+
+    private boolean enabled(Group g) {
+        return intervals.get(g) > 0;
+    }
+
+    private void scheduleMemory() {
+        if (!enabled(Group.MEMORY)) return;
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        FeatureHandle heapUsed = feature("jvm.heap.used"), heapCommitted = feature("jvm.heap.committed"),
+                heapMax = feature("jvm.heap.max"), nonHeapUsed = feature("jvm.nonheap.used"),
+                nonHeapCommitted = feature("jvm.nonheap.committed");
+
+        every(intervals.get(Group.MEMORY), () -> {
+            long now = System.currentTimeMillis();
+            MemoryUsage heap = memory.getHeapMemoryUsage();
+            MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+            heapUsed.sample(now, heap.getUsed());
+            heapCommitted.sample(now, heap.getCommitted());
+            heapMax.sample(now, heap.getMax());
+            nonHeapUsed.sample(now, nonHeap.getUsed());
+            nonHeapCommitted.sample(now, nonHeap.getCommitted());
+        });
+    }
+
+    private void scheduleGc() {
+        if (!enabled(Group.GC)) return;
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        FeatureHandle[] counts = new FeatureHandle[collectors.size()], times = new FeatureHandle[collectors.size()];
+        long[] lastCount = new long[collectors.size()], lastTime = new long[collectors.size()];
+        for (int i = 0; i < collectors.size(); i++) {
+            String name = collectors.get(i).getName().replace(' ', '_');
+            counts[i] = feature("jvm.gc." + name + ".count");
+            times[i] = feature("jvm.gc." + name + ".time");
+            lastCount[i] = Math.max(0, collectors.get(i).getCollectionCount());
+            lastTime[i] = Math.max(0, collectors.get(i).getCollectionTime());
+        }
+
+        every(intervals.get(Group.GC), () -> {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < collectors.size(); i++) {
+                // -1 means "not available" for this collector
+                long count = Math.max(0, collectors.get(i).getCollectionCount());
+                long time = Math.max(0, collectors.get(i).getCollectionTime());
+                counts[i].sample(now, count - lastCount[i]);
+                times[i].sample(now, time - lastTime[i]);
+                lastCount[i] = count;
+                lastTime[i] = time;
+            }
+        });
+    }
+
+    private void scheduleThreads() {
+        if (!enabled(Group.THREADS)) return;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        FeatureHandle live = feature("jvm.threads.live"), daemon = feature("jvm.threads.daemon"),
+                peak = feature("jvm.threads.peak");
+
+        every(intervals.get(Group.THREADS), () -> {
+            long now = System.currentTimeMillis();
+            live.sample(now, threads.getThreadCount());
+            daemon.sample(now, threads.getDaemonThreadCount());
+            peak.sample(now, threads.getPeakThreadCount());
+        });
+    }
+
+    private void scheduleClasses() {
+        if (!enabled(Group.CLASSES)) return;
+        ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+        FeatureHandle loaded = feature("jvm.classes.loaded"), unloaded = feature("jvm.classes.unloaded");
+
+        every(intervals.get(Group.CLASSES), () -> {
+            long now = System.currentTimeMillis();
+            loaded.sample(now, classes.getTotalLoadedClassCount());
+            unloaded.sample(now, classes.getUnloadedClassCount());
+        });
+    }
+
+    private void scheduleSafepoints() {
+        if (!enabled(Group.SAFEPOINTS)) return;
+
+        // We're compiled against Java 8 and this is HotSpot-only, so reflection it is
+        Object runtime;
+        Method safepointCount, safepointTime;
+        long[] last = new long[2];
+        try {
+            Class<?> helper = Class.forName("sun.management.ManagementFactoryHelper");
+            runtime = helper.getMethod("getHotspotRuntimeMBean").invoke(null);
+            Class<?> runtimeClass = Class.forName("sun.management.HotspotRuntimeMBean");
+            safepointCount = runtimeClass.getMethod("getSafepointCount");
+            safepointTime = runtimeClass.getMethod("getTotalSafepointTime");
+            last[0] = (Long) safepointCount.invoke(runtime);
+            last[1] = (Long) safepointTime.invoke(runtime);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            System.err.println("WARN: Safepoint statistics are not available in this JVM (" + e + "). Not sampling them.");
+            return;
+        }
+
+        FeatureHandle count = feature("jvm.safepoints.count"), time = feature("jvm.safepoints.time");
+        every(intervals.get(Group.SAFEPOINTS), () -> {
+            long now = System.currentTimeMillis();
+            try {
+                long c = (Long) safepointCount.invoke(runtime), t = (Long) safepointTime.invoke(runtime);
+                count.sample(now, c - last[0]);
+                time.sample(now, t - last[1]);
+                last[0] = c;
+                last[1] = t;
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+}
@@ -0,0 +1,400 @@
+package prex.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A probe for the Linux machine (and cgroup) it runs in, reading /proc and /sys/fs/cgroup directly. Just create it
+// and start() it:
+//
+//    new LinuxProbe("machine1", "localhost", 1610).start();
+//
+// It's meant to be cheap enough to sample at 10-100 Hz: every file is opened once and re-read into the same buffer,
+// and it's parsed in place (see ProcFile), so a sample is a pread() and a scan over a few hundred bytes, with no
+// Strings and no garbage: reading and parsing a file takes a few microseconds. Groups that are due at the same time
+// are sampled together, in one wake-up of the probe's thread.
+//
+// At that point the wake-ups are most of the cost. On a small VM, in steady state, the probe's threads (sampling and
+// sending) took 0.3% of a core with the default intervals, 0.9% with the CPU group at 100 Hz (of which 0.4% is just
+// waking up 100 times a second) and 1.5% with every group at 100 Hz. So by default only the CPU group samples at
+// 10 Hz, and the rest at 1 Hz. Sampling CPU faster than that buys little: /proc/stat counts in 10ms jiffies.
+//
+// The metrics are split in groups, each sampled at its own interval (which can be changed with interval() before
+// start(), or with the prex.linux.<group>.interval system property, in ms; 0 turns a group off):
+//
+//    CPU      os.cpu.user, os.cpu.system, os.cpu.iowait, os.cpu.steal, os.cpu.idle: % of the machine's CPU time in
+//             the last interval, from /proc/stat. Also os.procs.running and os.procs.blocked.
+//    MEMORY   os.mem.total, os.mem.free, os.mem.available, os.mem.cached, os.mem.swap_free (bytes), from /proc/meminfo
+//    IO       proc.io.rchar, proc.io.wchar, proc.io.read_bytes, proc.io.write_bytes: bytes this process read and
+//             wrote in the last interval (all of them, and just those that hit storage), from /proc/self/io
+//    NET      os.net.<interface>.rx_bytes, .tx_bytes, .rx_packets, .tx_packets in the last interval, from
+//             /proc/net/dev (loopback excluded)
+//    CGROUP   cgroup.cpu.pressure, cgroup.memory.pressure, cgroup.io.pressure: the "some" avg10 PSI (% of the time
+//             some task was stalled on the resource); cgroup.memory.current and cgroup.memory.max (bytes, max only if
+//             there is a limit); cgroup.cpu.throttled and cgroup.cpu.throttled_time (periods and ms throttled in the
+//             last interval). This is cgroup v2 (plain or hybrid mode). Pressure falls back to the machine-wide
+//             /proc/pressure files when the cgroup has none.
+//
+// Files that aren't there (not Linux, an old kernel, cgroup v1...) are skipped with a warning. A group with none of
+// its files is turned off.
+public class LinuxProbe extends ScheduledProbe {
+    public enum Group {
+        CPU(100), MEMORY(1000), IO(1000), NET(1000), CGROUP(1000);
+
+        private final long defaultIntervalMs;
+
+        Group(long defaultIntervalMs) {
+            this.defaultIntervalMs = defaultIntervalMs;
+        }
+    }
+
+    private final EnumMap<Group, Long> intervals = new EnumMap<>(Group.class);
+    private final ArrayList<ProcFile> files = new ArrayList<>();
+    private final TreeMap<Long, ArrayList<Runnable>> samplers = new TreeMap<>(); // By interval
+    private boolean scheduled = false;
+
+    public LinuxProbe(String src, String host, int port) throws IOException {
+        this(src, host, port, 100);
+    }
+
+    public LinuxProbe(String src, String host, int port, int bufferSize) throws IOException {
+        super(src, host, port, bufferSize);
+        for (Group g : Group.values())
+            intervals.put(g, Long.getLong("prex.linux." + g.name().toLowerCase() + ".interval", g.defaultIntervalMs));
+    }
+
+    // Change the interval of a group of metrics (0 turns it off). Only before start().
+    public LinuxProbe interval(Group group, long intervalMs) {
+        intervals.put(group, intervalMs);
+        return this;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!scheduled) {
+            scheduled = true;
+            scheduleCpu();
+            scheduleMemory();
+            scheduleIo();
+            scheduleNet();
+            scheduleCgroup();
+
+            // Groups with the same interval share a single task: the wake-up costs more than reading the files
+            for (Map.Entry<Long, ArrayList<Runnable>> e : samplers.entrySet()) {
+                Runnable[] group = e.getValue().toArray(new Runnable[0]);
+                every(e.getKey(), () -> {
+                    for (Runnable r : group) {
+                        try {
+                            r.run();
+                        } catch (RuntimeException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }
+        super.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        for (ProcFile f : files)
+            f.close();
+    }
+
+    private boolean enabled(Group g) {
+        return intervals.get(g) > 0;
+    }
+
+    private void sampler(Group g, Runnable sampler) {
+        samplers.computeIfAbsent(intervals.get(g), k -> new ArrayList<>()).add(sampler);
+    }
+
+    private ProcFile open(String path) {
+        ProcFile f = ProcFile.open(path);
+        if (f == null)
+            System.err.println("WARN: Can't read " + path + ". Not sampling it.");
+        else
+            files.add(f);
+        return f;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void refresh(ProcFile f) {
+        try {
+            f.refresh();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void scheduleCpu() {
+        if (!enabled(Group.CPU)) return;
+        ProcFile stat = open("/proc/stat");
+        if (stat == null) return;
+
+        byte[] cpuLine = bytes("cpu "), runningLine = bytes("procs_running "), blockedLine = bytes("procs_blocked ");
+        FeatureHandle user = feature("os.cpu.user"), system = feature("os.cpu.system"),
+                iowait = feature("os.cpu.iowait"), steal = feature("os.cpu.steal"), idle = feature("os.cpu.idle"),
+                running = feature("os.procs.running"), blocked = feature("os.procs.blocked");
+
+        // The aggregate line: user nice system idle iowait irq softirq steal (guest and guest_nice are already
+        // counted in user and nice). In jiffies since boot.
+        long[] last = new long[8], now = new long[8];
+        refresh(stat);
+        readCpu(stat, cpuLine, last);
+
+        sampler(Group.CPU, () -> {
+            long time = System.currentTimeMillis();
+            refresh(stat);
+            if (!readCpu(stat, cpuLine, now))
+                return;
+
+            long total = 0;
+            for (int i = 0; i < 8; i++)
+                total += now[i] - last[i];
+
+            // Jiffies are 10ms, so very short intervals may not have seen any tick at all
+            if (total > 0) {
+                float percent = 100f / total;
+                user.sample(time, (now[0] - last[0] + now[1] - last[1]) * percent);
+                system.sample(time, (now[2] - last[2] + now[5] - last[5] + now[6] - last[6]) * percent);
+                idle.sample(time, (now[3] - last[3]) * percent);
+                iowait.sample(time, (now[4] - last[4]) * percent);
+                steal.sample(time, (now[7] - last[7]) * percent);
+                System.arraycopy(now, 0, last, 0, 8);
+            }
+
+            if (stat.findLine(runningLine))
+                running.sample(time, stat.nextLong());
+            if (stat.findLine(blockedLine))
+                blocked.sample(time, stat.nextLong());
+        });
+    }
+
+    private static boolean readCpu(ProcFile stat, byte[] cpuLine, long[] into) {
+        if (!stat.findLine(cpuLine))
+            return false;
+        for (int i = 0; i < into.length; i++)
+            into[i] = Math.max(0, stat.nextLong()); // Old kernels have fewer columns
+        return true;
+    }
+
+    private void scheduleMemory() {
+        if (!enabled(Group.MEMORY)) return;
+        ProcFile meminfo = open("/proc/meminfo");
+        if (meminfo == null) return;
+
+        byte[][] lines = {bytes("MemTotal:"), bytes("MemFree:"), bytes("MemAvailable:"), bytes("Cached:"), bytes("SwapFree:")};
+        FeatureHandle[] features = {feature("os.mem.total"), feature("os.mem.free"), feature("os.mem.available"),
+                feature("os.mem.cached"), feature("os.mem.swap_free")};
+
+        sampler(Group.MEMORY, () -> {
+            long time = System.currentTimeMillis();
+            refresh(meminfo);
+            for (int i = 0; i < lines.length; i++)
+                if (meminfo.findLine(lines[i]))
+                    features[i].sample(time, meminfo.nextLong() * 1024f); // In kB
+        });
+    }
+
+    private void scheduleIo() {
+        if (!enabled(Group.IO)) return;
+        // Only readable by the process itself (and root), which is what we want
+        ProcFile io = open("/proc/self/io");
+        if (io == null) return;
+
+        byte[][] lines = {bytes("rchar:"), bytes("wchar:"), bytes("read_bytes:"), bytes("write_bytes:")};
+        FeatureHandle[] features = {feature("proc.io.rchar"), feature("proc.io.wchar"), feature("proc.io.read_bytes"),
+                feature("proc.io.write_bytes")};
+        long[] last = new long[lines.length];
+        readCounters(io, lines, last);
+
+        sampler(Group.IO, () -> {
+            long time = System.currentTimeMillis();
+            refresh(io);
+            for (int i = 0; i < lines.length; i++) {
+                if (!io.findLine(lines[i]))
+                    continue;
+                long v = io.nextLong();
+                features[i].sample(time, v - last[i]);
+                last[i] = v;
+            }
+        });
+    }
+
+    private static void readCounters(ProcFile f, byte[][] lines, long[] into) {
+        refresh(f);
+        for (int i = 0; i < lines.length; i++)
+            if (f.findLine(lines[i]))
+                into[i] = f.nextLong();
+    }
+
+    private void scheduleNet() {
+        if (!enabled(Group.NET)) return;
+        ProcFile dev = open("/proc/net/dev");
+        if (dev == null) return;
+
+        // Find the interfaces up front (two header lines, then "name: rx_bytes rx_packets (6 more) tx_bytes
+        // tx_packets ..."). Interfaces that show up later aren't sampled.
+        ArrayList<byte[]> names = new ArrayList<>();
+        ArrayList<FeatureHandle[]> handles = new ArrayList<>();
+        refresh(dev);
+        dev.nextLine();
+        while (dev.nextLine()) {
+            String name = dev.readToken(':');
+            if (name.isEmpty() || name.equals("lo"))
+                continue;
+            names.add(bytes(name));
+            handles.add(new FeatureHandle[]{feature("os.net." + name + ".rx_bytes"),
+                    feature("os.net." + name + ".tx_bytes"), feature("os.net." + name + ".rx_packets"),
+                    feature("os.net." + name + ".tx_packets")});
+        }
+        if (names.isEmpty())
+            return;
+
+        byte[][] interfaces = names.toArray(new byte[0][]);
+        FeatureHandle[][] features = handles.toArray(new FeatureHandle[0][]);
+        long[][] last = new long[interfaces.length][4], now = new long[interfaces.length][4];
+        readNet(dev, interfaces, last);
+
+        sampler(Group.NET, () -> {
+            long time = System.currentTimeMillis();
+            refresh(dev);
+            readNet(dev, interfaces, now);
+            for (int i = 0; i < interfaces.length; i++) {
+                for (int j = 0; j < 4; j++) {
+                    // Counters go back to 0 if the interface is reset
+                    features[i][j].sample(time, Math.max(0, now[i][j] - last[i][j]));
+                    last[i][j] = now[i][j];
+                }
+            }
+        });
+    }
+
+    // Into is [interface][rx_bytes, tx_bytes, rx_packets, tx_packets]. Interfaces that are gone keep their values
+    private static void readNet(ProcFile dev, byte[][] interfaces, long[][] into) {
+        dev.rewind();
+        dev.nextLine();
+        while (dev.nextLine()) {
+            for (int i = 0; i < interfaces.length; i++) {
+                if (!dev.skipToken(interfaces[i], ':'))
+                    continue;
+                into[i][0] = dev.nextLong();
+                into[i][2] = dev.nextLong();
+                for (int skip = 0; skip < 6; skip++)
+                    dev.nextLong();
+                into[i][1] = dev.nextLong();
+                into[i][3] = dev.nextLong();
+                break;
+            }
+        }
+    }
+
+    private void scheduleCgroup() {
+        if (!enabled(Group.CGROUP)) return;
+        String dir = cgroupDirectory();
+        if (dir == null)
+            System.err.println("WARN: Not in a cgroup v2. Only sampling machine-wide pressure.");
+
+        byte[] some = bytes("some "), throttledLine = bytes("nr_throttled "), throttledTimeLine = bytes("throttled_usec "),
+                max = bytes("max");
+        String[] resources = {"cpu", "memory", "io"};
+        ArrayList<ProcFile> pressureFiles = new ArrayList<>();
+        ArrayList<FeatureHandle> pressureFeatures = new ArrayList<>();
+        for (String resource : resources) {
+            ProcFile f = dir == null ? null : ProcFile.open(dir + "/" + resource + ".pressure");
+            if (f != null)
+                files.add(f);
+            else
+                f = open("/proc/pressure/" + resource);
+            if (f != null) {
+                pressureFiles.add(f);
+                pressureFeatures.add(feature("cgroup." + resource + ".pressure"));
+            }
+        }
+
+        ProcFile memoryCurrent = dir == null ? null : open(dir + "/memory.current");
+        ProcFile memoryMax = dir == null ? null : open(dir + "/memory.max");
+        ProcFile cpuStat = dir == null ? null : open(dir + "/cpu.stat");
+        FeatureHandle current = memoryCurrent == null ? null : feature("cgroup.memory.current");
+        FeatureHandle limit = memoryMax == null ? null : feature("cgroup.memory.max");
+        FeatureHandle throttled = cpuStat == null ? null : feature("cgroup.cpu.throttled");
+        FeatureHandle throttledTime = cpuStat == null ? null : feature("cgroup.cpu.throttled_time");
+        if (pressureFiles.isEmpty() && memoryCurrent == null && memoryMax == null && cpuStat == null)
+            return;
+
+        ProcFile[] pressure = pressureFiles.toArray(new ProcFile[0]);
+        FeatureHandle[] pressureHandles = pressureFeatures.toArray(new FeatureHandle[0]);
+        long[] lastThrottled = new long[2];
+        if (cpuStat != null)
+            readCounters(cpuStat, new byte[][]{throttledLine, throttledTimeLine}, lastThrottled);
+
+        sampler(Group.CGROUP, () -> {
+            long time = System.currentTimeMillis();
+            for (int i = 0; i < pressure.length; i++) {
+                refresh(pressure[i]);
+                // some avg10=1.37 avg60=8.12 avg300=16.88 total=424890304
+                if (pressure[i].findLine(some) && pressure[i].skipPast('='))
+                    pressureHandles[i].sample(time, (float) pressure[i].nextDecimal());
+            }
+
+            if (memoryCurrent != null) {
+                refresh(memoryCurrent);
+                current.sample(time, memoryCurrent.nextLong());
+            }
+
+            // "max" when there's no limit
+            if (memoryMax != null) {
+                refresh(memoryMax);
+                if (!memoryMax.nextIsWord(max))
+                    limit.sample(time, memoryMax.nextLong());
+            }
+
+            // Only there when the cpu controller is enabled for the cgroup
+            if (cpuStat != null) {
+                refresh(cpuStat);
+                if (cpuStat.findLine(throttledLine)) {
+                    long v = cpuStat.nextLong();
+                    throttled.sample(time, v - lastThrottled[0]);
+                    lastThrottled[0] = v;
+                }
+                if (cpuStat.findLine(throttledTimeLine)) {
+                    long v = cpuStat.nextLong();
+                    throttledTime.sample(time, (v - lastThrottled[1]) / 1000f);
+                    lastThrottled[1] = v;
+                }
+            }
+        });
+    }
+
+    // The cgroup v2 directory of this process: the "0::<path>" line of /proc/self/cgroup, under /sys/fs/cgroup (or
+    // /sys/fs/cgroup/unified in hybrid mode). Null if there's none.
+    private static String cgroupDirectory() {
+        ProcFile cgroup = ProcFile.open("/proc/self/cgroup");
+        if (cgroup == null)
+            return null;
+        try {
+            if (!cgroup.findLine(bytes("0::")))
+                return null;
+            String path = cgroup.readToken('\n');
+            if (path.equals("/"))
+                path = "";
+            for (String root : new String[]{"/sys/fs/cgroup", "/sys/fs/cgroup/unified"})
+                if (new File(root + path + "/cgroup.controllers").exists())
+                    return root + path;
+            return null;
+        } finally {
+            cgroup.close();
+        }
+    }
+}
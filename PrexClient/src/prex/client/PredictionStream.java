@@ -0,0 +1,93 @@
+package prex.client;
+
+import prex.common.PreXException;
+import prex.common.PredictionContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// The state of one Try block as seen by its PrexClient. Many of these can share a single connection: every message
+// about predictions carries the stream ID, and the coordinator keeps the streams of a connection apart.
+//
+// The streams of Try blocks don't talk to the coordinator themselves: they get their prediction states from the
+// subscriptions they are attached to (see Subscription). Only the default stream, used by the old stream-less methods
+// of PrexClient, has its own state on the coordinator.
+//
+// A stream belongs to the thread running its Try block, but its prediction states are pushed by the client's reader
+// thread. They are kept so that the question asked on every check() ("is anything predicted at all?") is a single
+// volatile read: alarms counts the exceptions currently predicted to happen, and only when it isn't zero do we look
+// for which one it is.
+//
+// An async Try block doesn't check() at all. Instead, it sets a listener that setState() calls (in the reader thread)
+// whenever one of the exceptions goes from not predicted to predicted.
+class PredictionStream {
+    final int id;
+
+    // The prediction context of the Try block (null when outside of one)
+    volatile PredictionContext context;
+
+    // The list of exceptions that we "care about", either because we want to predict or catch them
+    final List<PreXException> exceptionsToMonitor = new CopyOnWriteArrayList<>();
+
+    // The state of the prediction for each of the exceptions we are predicting. Written through setState()
+    private final Map<PreXException, Boolean> exceptionStates = new ConcurrentHashMap<>();
+    private volatile int alarms = 0;
+
+    // The subscriptions a Try block holds while it runs (see Subscription). Only touched by the Try block's thread
+    final List<Subscription> subscriptions = new ArrayList<>();
+
+    // The coordinator's reply to our last StartListeningToPredictionsMessage (the default stream only)
+    volatile CompletableFuture<Boolean> reply;
+
+    // Called when an exception becomes predicted. It runs in the reader thread, so it must not block
+    volatile Consumer<PreXException> listener;
+
+    PredictionStream(int id) {
+        this.id = id;
+    }
+
+    // Only updates exceptions that we are predicting (see startPredicting), unless force is set
+    void setState(PreXException e, boolean state, boolean force) {
+        boolean raised;
+        synchronized (this) {
+            if (!force && !exceptionStates.containsKey(e))
+                return;
+
+            Boolean old = exceptionStates.put(e, state);
+            raised = state && !Boolean.TRUE.equals(old);
+            if (Boolean.TRUE.equals(old) != state)
+                alarms += state ? 1 : -1;
+        }
+
+        // Tell the listener outside of the lock
+        Consumer<PreXException> listener = this.listener;
+        if (raised && listener != null)
+            listener.accept(e);
+    }
+
+    synchronized void forget(PreXException e) {
+        if (Boolean.TRUE.equals(exceptionStates.remove(e)))
+            alarms--;
+    }
+
+    synchronized void forgetAll() {
+        exceptionStates.clear();
+        alarms = 0;
+    }
+
+    // The exception that is predicted to happen (the first one, if there are several), or null. Lock-free.
+    PreXException predicted() {
+        if (alarms == 0)
+            return null;
+
+        for (PreXException e : exceptionsToMonitor)
+            if (Boolean.TRUE.equals(exceptionStates.get(e)))
+                return e;
+        return null;
+    }
+}
@@ -2,12 +2,17 @@ package prex.client;
 
 import prex.common.*;
 import prex.common.protocol.Message;
+import prex.common.protocol.MessageChannel;
+import prex.common.protocol.MessageChannels;
 import prex.common.protocol.messages.*;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 // This is the base class which every client should use to connect to a coordinator. This can be a probe, for which
 // there is an auxiliary class named Probe (which ultimately extends this one), or a client looking to use the
@@ -15,6 +20,8 @@ import java.util.HashMap;
 //
 // If the intention is to act as a probe, it is merely sufficient to pass samples to the client's sample function.
 // They will be automatically timestamped and their ID (made of their name and the src of this client) will be generated.
+// Probes that sample often should get a FeatureHandle for each of their features instead (see feature()), which
+// records samples without allocating anything.
 //
 // If the intention is to use the try-prevent-catch construct, then you can start the construct using the Try method.
 // The way this is done is as follows:
@@ -41,10 +48,14 @@ import java.util.HashMap;
 // have a corresponding catch call. Though we could enforce this at run-time (in fact I think we could cook up
 // some generic magic to get type-checking at compile-time), time-constraints have prevented us from doing that.
 //
-// The PrexClient class IS NOT THREAD SAFE. Although support for this can be implemented in the future, if you wish
-// to have multiple threads at the same time using the try-prevent-catch construct or the sample construct,
-// then you should create one separate client instance for each one of them. You may reuse the source name, since it is
-// the same source after all.
+// The PrexClient class is thread safe. Any number of threads (platform or virtual) can share one client, and thus one
+// connection to the coordinator, each one with its own try-prevent-catch blocks and samples. Each Try block opens a
+// stream (see PredictionStream), and a reader thread applies the predictions to the streams as they arrive, so
+// checking for alarms is cheap enough to do in a tight loop.
+//
+// Try blocks that predict the same exception in the same context share a Subscription with the coordinator. Only the
+// first one waits for the coordinator; entering a Try block that has been entered recently is purely local.
+// Subscriptions are dropped after nobody has used them for prex.client.subscription.linger ms (30s by default).
 //
 // Note: Although this class and the Try class work, a lot of code was hammered in here when I realized that exception
 // hierarchies weren't fully supported. As such, a bit of this code is a monstrous spaghetti monster, with the incorrect
@@ -52,167 +63,418 @@ import java.util.HashMap;
 // will refactor when I can. Sorry to all who dear understand this madness.
 //
 public class PrexClient {
-    // Sockets and streams to communicate with the coordinator
+    // Socket and message channel to communicate with the coordinator
     protected Socket s;
-    protected ObjectInputStream inStream;
-    protected ObjectOutputStream outStream;
+    protected MessageChannel channel;
 
     // The "unique id" of this client (e.g. probe1, prex1, etc)
     protected String src;
 
-    // This is the current context (set whenever we enter a try block)
-    private PredictionContext currentContext;
+    // Every Try block gets its own stream, identified by an ID that travels with its messages, so that many threads
+    // can use the same client (and connection). Stream 0 is used by the old, stream-less methods.
+    // In practice, using a map for the exception states of each stream has come back to byte us, because it makes
+    // hierarchy much harder to work with. That's a FIXME.
+    private final Map<Integer, PredictionStream> streams = new ConcurrentHashMap<>();
+    private final PredictionStream defaultStream = new PredictionStream(0);
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+
+    // <context + exception class, subscription>, and the same subscriptions by their stream ID. See Subscription
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final Map<Integer, Subscription> subscriptionsById = new ConcurrentHashMap<>();
+    private final long subscriptionLingerNanos = Long.getLong("prex.client.subscription.linger", 30000) * 1000000L;
+    private Thread reaper; // Started with the first subscription
+
+    // Reads everything the coordinator sends and applies it to the streams, so that checking for predictions never
+    // touches the network
+    private final Thread reader;
+    private volatile boolean closing = false;
+    private volatile boolean readerDone = false;
+
+    // The features sampled by this client. Samples are buffered with their index in here rather than with their name
+    private final FeatureTable features = new FeatureTable();
+    private final Map<String, FeatureHandle> handles = new ConcurrentHashMap<>();
 
-    // The list of exceptions that we "care about", either because we want to predict or catch them
-    private ArrayList<PreXException> exceptionsToMonitor;
+    // Where samples wait to be sent. One per client. Samples are sent in batches by its flusher thread, so sample()
+    // never waits for the network.
+    private SampleRecorder recorder;
 
-    // The state of the prediction for each of the exceptions we are predicting.
-    // In practice, using a map has come back to byte us, because it makes hierarchy much harder to work with. That's
-    // a FIXME.
-    private HashMap<PreXException,Boolean> exceptionStates;
+    // Only in summary mode (see summarize()): samples are summarized per time bucket and only the summaries are sent
+    private volatile SampleSummarizer summarizer;
 
-    // The sample buffer. One per client. Defaults to synchronous mode
-    private SampleBuffer buffer;
+    // Number of BackpressureMessages received from the coordinator
+    private final AtomicInteger backpressureSignals = new AtomicInteger();
 
     public PrexClient(String src, String host, int port) throws IOException {
         this(src,host,port,1, false);
     }
 
     public PrexClient(String src, String host, int port, int bufferSize, boolean async) throws IOException {
+        this(src, host, port, bufferSize, async, MessageChannels.binaryByDefault());
+    }
+
+    // bufferSize is the number of samples sent together. Samples that have waited too long (the prex.client.linger
+    // property, 100ms by default) are sent anyway.
+    //
+    // async used to decide if full buffers were sent in a new thread or in the thread calling sample(). Samples are
+    // now always sent by the recorder's flusher thread, so it no longer matters. It is kept so existing code
+    // still compiles.
+    //
+    // binaryProtocol selects the wire format. Only turn it off to talk to coordinators that predate it.
+    public PrexClient(String src, String host, int port, int bufferSize, boolean async, boolean binaryProtocol) throws IOException {
         this.src = src;
-        exceptionsToMonitor = new ArrayList<>();
-        exceptionStates = new HashMap<>();
+        streams.put(defaultStream.id, defaultStream);
         s = new Socket(host, port);
-        outStream = new ObjectOutputStream(s.getOutputStream());
-        inStream = new ObjectInputStream(s.getInputStream());
+        channel = MessageChannels.connect(s, binaryProtocol);
+
+        // Whenever a batch is ready, just flush it out to the coordinator.
+        this.recorder = new SampleRecorder(src, features, bufferSize, (samples) -> {
+            try {
+                channel.write(new BufferedSamplesMessage(src, new SampleBuffer(samples)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // The recorder counts these samples as dropped
+            }
+        });
+
+        this.reader = new Thread(this::readerLoop, "prex-client-reader-" + src);
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    private void readerLoop() {
+        try {
+            while (true)
+                handleMessage(channel.read());
+        } catch (IOException | ClassNotFoundException e) {
+            if (!closing)
+                e.printStackTrace();
+        }
+
+        // Nobody will ever answer whoever is still waiting for a reply
+        readerDone = true;
+        for (PredictionStream stream : streams.values()) {
+            CompletableFuture<Boolean> reply = stream.reply;
+            if (reply != null)
+                reply.complete(false);
+        }
+        for (Subscription subscription : subscriptionsById.values())
+            subscription.ready.complete(false);
+    }
+
+    // Open a new stream for a Try block within the given prediction context. Used by the Try class. These streams
+    // never go on the wire themselves (their subscriptions do), so the reader doesn't need to know about them.
+    protected PredictionStream openStream(String context) {
+        PredictionStream stream = new PredictionStream(0);
+        stream.context = new PredictionContext(context);
+        return stream;
+    }
+
+    // The Try block is over: let go of its subscriptions and forget about the stream. Used by the Try class
+    protected void closeStream(PredictionStream stream) {
+        for (Subscription subscription : stream.subscriptions)
+            subscription.release(stream);
+        stream.subscriptions.clear();
+        stream.exceptionsToMonitor.clear();
+        stream.forgetAll();
+        stream.context = null;
+    }
+
+    // Start predicting a type of exception in a Try block's stream, through the client's subscription to it (which
+    // is only created, and waited for, if there isn't one already). Used by the Try class
+    protected void subscribe(PredictionStream stream, Class<? extends Exception> c) {
+        PreXException e = new PreXException(c.getName());
+        String key = stream.context.getName() + "/" + e.getExceptionClass();
+
+        Subscription subscription;
+        while (true) {
+            subscription = subscriptions.get(key);
+            if (subscription == null) {
+                Subscription created = new Subscription(nextStreamId.getAndIncrement(), stream.context, e);
+                created.acquire();
+                subscription = subscriptions.putIfAbsent(key, created);
+                if (subscription == null) {
+                    subscription = created;
+                    sendSubscription(created);
+                    break;
+                }
+            }
+            if (subscription.acquire())
+                break;
+            // It was just dropped by the reaper. Make a new one
+        }
+
+        // Only the first time, really
+        try {
+            subscription.ready.get();
+        } catch (ExecutionException ex) {
+            ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        stream.exceptionsToMonitor.add(e);
+        stream.subscriptions.add(subscription);
+        subscription.attach(stream);
+    }
+
+    private void sendSubscription(Subscription subscription) {
+        subscriptionsById.put(subscription.id, subscription);
+        startReaper();
+        try {
+            // The coordinator replies with the current prediction state, and the reader thread hands it over
+            channel.write(new StartListeningToPredictionsMessage(src, subscription.exception, subscription.context, subscription.id));
+            if (readerDone)
+                subscription.ready.complete(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            subscription.ready.complete(false);
+        }
+    }
+
+    private synchronized void startReaper() {
+        if (reaper != null || closing)
+            return;
+        reaper = new Thread(this::reaperLoop, "prex-subscription-reaper-" + src);
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private void reaperLoop() {
+        while (!closing) {
+            try {
+                Thread.sleep(Math.max(1, subscriptionLingerNanos / 2000000L));
+            } catch (InterruptedException e) {
+                return;
+            }
+            reapSubscriptions();
+        }
+    }
+
+    // Drop the subscriptions that nobody has used for a while, and tell the coordinator to stop predicting them
+    private void reapSubscriptions() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            Subscription subscription = entry.getValue();
+            if (!subscription.expire(now, subscriptionLingerNanos))
+                continue;
 
-        // Whenever the buffer is full, just flush it out to the coordinator. For some reason, we need to reset
-        // the stream, otherwise it wouldn't flush data on successive messages.
-        this.buffer = new SampleBuffer(bufferSize, (buf) -> {
+            subscriptions.remove(entry.getKey(), subscription);
+            subscriptionsById.remove(subscription.id);
             try {
-                outStream.reset(); // Just in case...
-                outStream.writeObject(new BufferedSamplesMessage(src, buf));
+                channel.write(new StopListeningToPredictionsMessage(src, subscription.exception, subscription.context, subscription.id));
             } catch (IOException e) {
                 e.printStackTrace();
-                close();
             }
-        }, async);
+        }
+    }
+
+    // Subscriptions currently held by the client (in use or lingering)
+    public int getSubscriptions() {
+        return subscriptions.size();
     }
 
-    // Notify the client that it has entered a prediction context. Used by the Try class
-    protected synchronized void startPredictionContext(String context) {
-        this.currentContext = new PredictionContext(context);
+    // Notify the client that it has entered a prediction context (in the default stream)
+    protected void startPredictionContext(String context) {
+        defaultStream.context = new PredictionContext(context);
     }
 
-    // Notify the client that it should start predicting a type of exception. Used by the Try class
-    protected synchronized void startPredicting(Class<? extends Exception> c) {
+    // Notify the client that it should start predicting a type of exception (in the default stream)
+    protected void startPredicting(Class<? extends Exception> c) {
+        startPredicting(defaultStream, c);
+    }
+
+    protected void startPredicting(PredictionStream stream, Class<? extends Exception> c) {
         try {
             PreXException e = new PreXException(c.getName());
-            exceptionsToMonitor.add(e);
+            stream.exceptionsToMonitor.add(e);
+            CompletableFuture<Boolean> reply = new CompletableFuture<>();
+            stream.reply = reply;
 
             // Ask the coordinator to start listening to predictions
-            outStream.reset(); // Just in case...
-            outStream.writeObject(new StartListeningToPredictionsMessage(src, e, currentContext));
+            channel.write(new StartListeningToPredictionsMessage(src, e, stream.context, stream.id));
 
-            // The coordinator replies with the current prediction state
-            YesNoMessage m = (YesNoMessage)inStream.readObject();
-            exceptionStates.put(e, m.yes());
-        } catch (IOException | ClassNotFoundException e) {
+            // The coordinator replies with the current prediction state. The reader thread hands it to us.
+            if (readerDone)
+                reply.complete(false);
+            stream.setState(e, reply.get(), true);
+        } catch (IOException | ExecutionException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    // sample(name, value) construct
-    public synchronized void sample(String name, float value) {
-        buffer.add(new Sample(new PreXTimestamp(), name, src, value));
+    // sample(name, value) construct. Like everything else in the client, this can be called from any thread.
+    public void sample(String name, float value) {
+        record(features.register(name, src), System.currentTimeMillis(), value);
     }
 
-    // Notify the client that it should stop predicting a type of exception. Used by the Try class
-    public synchronized void stopPredicting(Class<? extends Exception> c) {
-        assert currentContext != null;
+    // Get the handle of a feature of this client, registering it if needed. See FeatureHandle.
+    public FeatureHandle feature(String name) {
+        return handles.computeIfAbsent(name, (n) -> new FeatureHandle(this, n, features.register(n, src)));
+    }
+
+    protected void sample(FeatureHandle feature, long time, float value) {
+        record(feature.index, time, value);
+    }
+
+    private void record(int feature, long time, float value) {
+        SampleSummarizer summarizer = this.summarizer;
+        if (summarizer != null)
+            summarizer.record(feature, time, value);
+        else
+            recorder.record(feature, time, value);
+    }
+
+    // Switch to summary mode: from now on, instead of sending every sample, send one summary (N, mean, stddev, min,
+    // max and derivative, see SampleSummary) per feature every bucketMs. This is meant for probes that sample much
+    // more often than the windows of the models that use them: the coordinator builds its windows straight from the
+    // summaries. Buckets should be a divisor of (and much smaller than) those windows.
+    public synchronized void summarize(int bucketMs) {
+        if (summarizer != null)
+            return;
+        summarizer = new SampleSummarizer(src, features, bucketMs, (summaries) -> {
+            try {
+                channel.write(new SummarizedSamplesMessage(src, summaries));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // Notify the client that it should stop predicting a type of exception (in the default stream)
+    public void stopPredicting(Class<? extends Exception> c) {
+        stopPredicting(defaultStream, c);
+    }
+
+    protected void stopPredicting(PredictionStream stream, Class<? extends Exception> c) {
+        assert stream.context != null;
         try {
             PreXException e = new PreXException(c.getName());
-            exceptionsToMonitor.remove(e);
-            exceptionStates.remove(e);
+            stream.exceptionsToMonitor.remove(e);
+            stream.forget(e);
 
             // Notify the coordinator
-            outStream.reset(); // Just in case...
-            outStream.writeObject(new StopListeningToPredictionsMessage(src, e, currentContext));
+            channel.write(new StopListeningToPredictionsMessage(src, e, stream.context, stream.id));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // Notify the client that a given exception (class) has happened
-    protected synchronized void exceptionClass(Class<? extends Exception> eClass) {
-        assert currentContext != null;
-        RecordedException ex = new RecordedException(new PreXTimestamp(), eClass.getName(), currentContext);
+    // Notify the client that a given exception (class) has happened (in the default stream)
+    protected void exceptionClass(Class<? extends Exception> eClass) {
+        exceptionClass(defaultStream, eClass);
+    }
+
+    protected void exceptionClass(PredictionStream stream, Class<? extends Exception> eClass) {
+        assert stream.context != null;
+        RecordedException ex = new RecordedException(new PreXTimestamp(), eClass.getName(), stream.context);
 
         // Check to see if we really care about this exception
-        if ( exceptionsToMonitor.contains(ex) )
+        if ( stream.exceptionsToMonitor.contains(ex) )
 
             // Notify the coordinator
             try {
-                outStream.reset(); // Just in case
-                outStream.writeObject(new RecordedExceptionMessage(src, ex));
+                channel.write(new RecordedExceptionMessage(src, ex));
             } catch (IOException e1) {
                 e1.printStackTrace();
             }
     }
 
 
-    // Ask the client to check if any of the current exceptions have been predicted to happen. The client first
-    // processes any pending messages (which may bring new data) and, then, it checks the states of current exceptions.
+    // Ask the client to check if any of the current exceptions have been predicted to happen. Prediction states are
+    // pushed by the coordinator and applied by the reader thread, so this never blocks, locks or reads from the
+    // network: when nothing is predicted, it's a single volatile read.
     //
     // Note that the exception that is predicted first is also returned first. A FIXME is to make this work iteratively
     // for multiple exception types.
-    public synchronized PredictionInformationObject checkPredictions() {
-        try {
-            // Check for new updates
-            while (s.getInputStream().available() > 0) {
-                Message m = (Message) inStream.readObject();
-                if (m instanceof ExceptionPredictionStateMessage) {
+    public PredictionInformationObject checkPredictions() {
+        return checkPredictions(defaultStream);
+    }
 
-                    PreXException e = ((ExceptionPredictionStateMessage) m).getException();
-                    if ( exceptionStates.containsKey(e) )
-                        exceptionStates.put(e, ((ExceptionPredictionStateMessage) m).getState());
+    protected PredictionInformationObject checkPredictions(PredictionStream stream) {
+        PreXException e = stream.predicted();
+        return e == null ? null : new PredictionInformationObject(e);
+    }
 
-                } else {
-                    System.err.println("Unexpected message!!!");
-                }
+    // Process a message from the coordinator (in the reader thread), handing it over to the stream it is meant for
+    private void handleMessage(Message m) {
+        if (m instanceof ExceptionPredictionStateMessage) {
+
+            Subscription subscription = subscriptionsById.get(((ExceptionPredictionStateMessage) m).getStream());
+            PredictionStream stream = streams.get(((ExceptionPredictionStateMessage) m).getStream());
+            if ( subscription != null )
+                subscription.setState(((ExceptionPredictionStateMessage) m).getState());
+            else if ( stream != null )
+                stream.setState(((ExceptionPredictionStateMessage) m).getException(), ((ExceptionPredictionStateMessage) m).getState(), false);
+
+        } else if (m instanceof YesNoMessage) {
+            Subscription subscription = subscriptionsById.get(((YesNoMessage) m).getStream());
+            if ( subscription != null ) {
+                subscription.setState(((YesNoMessage) m).yes());
+                return;
             }
 
-            // Check the states of current predictions
-            for (PreXException e : this.exceptionsToMonitor)
-                if (exceptionStates.get(e))
-                    return new PredictionInformationObject(e);
-        } catch (IOException | ClassNotFoundException e1) {
-            e1.printStackTrace();
+            PredictionStream stream = streams.get(((YesNoMessage) m).getStream());
+            CompletableFuture<Boolean> reply = stream == null ? null : stream.reply;
+            if ( reply != null )
+                reply.complete(((YesNoMessage) m).yes());
+        } else if (m instanceof BackpressureMessage) {
+            // The coordinator is dropping our samples. There's not much we can do about it here, but keep count so
+            // that whoever is using the client can react (e.g. sample less often)
+            backpressureSignals.incrementAndGet();
+            System.err.println("Coordinator is rejecting samples: " + m);
+        } else {
+            System.err.println("Unexpected message!!!");
         }
+    }
+
+    // Samples that never made it to the coordinator (our buffer was full, or sending them failed)
+    public long getDroppedSamples() {
+        return recorder.getDropped();
+    }
+
+    public long getFlushedSamples() {
+        return recorder.getFlushed();
+    }
+
+    // Summaries sent so far (only in summary mode)
+    public long getSentSummaries() {
+        SampleSummarizer summarizer = this.summarizer;
+        return summarizer == null ? 0 : summarizer.getSummaries();
+    }
 
+    // How many times has the coordinator told us that it is rejecting our samples?
+    public int getBackpressureSignals() {
+        return backpressureSignals.get();
+    }
 
-        return null;
+    // Notify the client that it has exited a prediction context (in the default stream)
+    public void endPredictionContext(String context) {
+        endPredictionContext(defaultStream);
     }
 
-    // Notify the client that it has exited a prediction context. Used by the Try class
-    public synchronized void endPredictionContext(String context) {
-        this.currentContext = null;
+    private void endPredictionContext(PredictionStream stream) {
         try {
-            if ( !this.exceptionsToMonitor.isEmpty() ) {
-                for (PreXException e : this.exceptionsToMonitor) {
-                    outStream.writeObject(new StopListeningToPredictionsMessage(src, e, currentContext));
-                }
-                exceptionsToMonitor.clear();
-            }
+            for (PreXException e : stream.exceptionsToMonitor)
+                channel.write(new StopListeningToPredictionsMessage(src, e, stream.context, stream.id));
         } catch (IOException e1) {
             e1.printStackTrace();
         }
+        stream.exceptionsToMonitor.clear();
+        stream.forgetAll();
+        stream.context = null;
     }
 
     public synchronized void close() {
+        if (summarizer != null)
+            summarizer.close(); // Send the buckets that are still open
+        recorder.close(); // Send whatever samples are still waiting
+        closing = true;
+        if (reaper != null)
+            reaper.interrupt();
         try {
-            outStream.writeObject(new GoodbyeMessage(src));
-            s.close();
+            channel.write(new GoodbyeMessage(src));
+            channel.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -230,7 +492,7 @@ public class PrexClient {
 
     public void startRun() {
         try {
-            outStream.writeObject(new SetRunningMessage(src, true));
+            channel.write(new SetRunningMessage(src, true));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -238,7 +500,7 @@ public class PrexClient {
 
     public void stopRun() {
         try {
-            outStream.writeObject(new SetRunningMessage(src, false));
+            channel.write(new SetRunningMessage(src, false));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -246,7 +508,7 @@ public class PrexClient {
 
     public void addPredictionContextIDs(String context, String[][] ids) {
         try {
-            outStream.writeObject(new AddRemovePredictionContextSampleIDsMessage(src, new PredictionContext(context), ids));
+            channel.write(new AddRemovePredictionContextSampleIDsMessage(src, new PredictionContext(context), ids));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -254,7 +516,7 @@ public class PrexClient {
 
     public void removePredictionContextIDs(String context, String[][] ids) {
         try {
-            outStream.writeObject(new AddRemovePredictionContextSampleIDsMessage(src, new PredictionContext(context), ids, false));
+            channel.write(new AddRemovePredictionContextSampleIDsMessage(src, new PredictionContext(context), ids, false));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -262,7 +524,24 @@ public class PrexClient {
 
     public void startTraining(String context, String exceptionClass, int[]T, int[] k) {
         try {
-            outStream.writeObject(new TrainMessage(src, T, k, new PredictionContext(context), new PreXException(exceptionClass)));
+            channel.write(new TrainMessage(src, T, k, new PredictionContext(context), new PreXException(exceptionClass)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // The path is a file in the coordinator's archive directory (prex.archive.dir)
+    public void exportRun(int run, String path) {
+        try {
+            channel.write(new ExportRunMessage(src, run, path));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void importRun(String path) {
+        try {
+            channel.write(new ImportRunMessage(src, path));
         } catch (IOException e) {
             e.printStackTrace();
         }
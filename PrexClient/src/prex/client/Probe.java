@@ -13,4 +13,10 @@ public class Probe extends PrexClient {
         super(src, host, port, bufferSize, false);
     }
 
+    // A probe in summary mode: it only sends a summary of its samples every summaryBucketMs (see PrexClient.summarize)
+    public Probe(String src, String host, int port, int bufferSize, int summaryBucketMs) throws IOException {
+        this(src, host, port, bufferSize);
+        summarize(summaryBucketMs);
+    }
+
 }
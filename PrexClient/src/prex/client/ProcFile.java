@@ -0,0 +1,197 @@
+package prex.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// A /proc (or /sys) file that is read over and over, for LinuxProbe. The file is opened once and re-read from
+// position 0 into the same buffer every time (the kernel regenerates its contents on every read from the start),
+// and it is parsed in place through a cursor. Reading and parsing never allocate, so this can be done many times per
+// second.
+//
+// The parsing methods are deliberately simple: they know about lines, tokens separated by blanks, and decimal
+// numbers. That's all these files need.
+class ProcFile {
+    private final Path path;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private byte[] bytes;
+    private int length = 0;
+
+    // The cursor
+    private int pos = 0;
+
+    ProcFile(String path) throws IOException {
+        this.path = Paths.get(path);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ);
+        this.bytes = new byte[4096];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    // Returns null if the file can't be read (e.g. not on Linux, or no such cgroup controller)
+    static ProcFile open(String path) {
+        if (!Files.isReadable(Paths.get(path)))
+            return null;
+        try {
+            ProcFile f = new ProcFile(path);
+            f.refresh();
+            return f;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Read the whole file again and put the cursor at its start
+    void refresh() throws IOException {
+        while (true) {
+            buffer.clear();
+            long position = 0;
+            int n;
+            while ((n = channel.read(buffer, position)) > 0) {
+                position += n;
+                if (!buffer.hasRemaining())
+                    break;
+            }
+
+            if (buffer.hasRemaining() || n < 0)
+                break;
+
+            // Didn't fit: grow and read it all again (only happens the first few times)
+            bytes = new byte[bytes.length * 2];
+            buffer = ByteBuffer.wrap(bytes);
+        }
+        length = buffer.position();
+        pos = 0;
+    }
+
+    void rewind() {
+        pos = 0;
+    }
+
+    // Move the cursor to the start of the next line. False if there is none
+    boolean nextLine() {
+        while (pos < length && bytes[pos] != '\n')
+            pos++;
+        if (pos >= length)
+            return false;
+        pos++;
+        return pos < length;
+    }
+
+    // Move the cursor to the start of the first line (from the start of the file) that begins with prefix, and then
+    // just past the prefix. False (and the cursor at the end) if there is no such line.
+    boolean findLine(byte[] prefix) {
+        pos = 0;
+        do {
+            if (startsWith(prefix)) {
+                pos += prefix.length;
+                return true;
+            }
+        } while (nextLine());
+        pos = length;
+        return false;
+    }
+
+    // Does the text at the cursor (skipping blanks) start with token, followed by one of the terminator characters?
+    // If so, move past it.
+    boolean skipToken(byte[] token, char terminator) {
+        int p = pos;
+        while (p < length && (bytes[p] == ' ' || bytes[p] == '\t'))
+            p++;
+        if (p + token.length >= length)
+            return false;
+        for (int i = 0; i < token.length; i++)
+            if (bytes[p + i] != token[i])
+                return false;
+        if (bytes[p + token.length] != terminator)
+            return false;
+        pos = p + token.length + 1;
+        return true;
+    }
+
+    private boolean startsWith(byte[] prefix) {
+        if (pos + prefix.length > length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (bytes[pos + i] != prefix[i])
+                return false;
+        return true;
+    }
+
+    // Move the cursor past the next occurrence of c in the current line. False if there is none
+    boolean skipPast(char c) {
+        int p = pos;
+        while (p < length && bytes[p] != '\n') {
+            if (bytes[p] == c) {
+                pos = p + 1;
+                return true;
+            }
+            p++;
+        }
+        return false;
+    }
+
+    // Parse the next non-negative integer in the current line, skipping anything before it. -1 if there is none.
+    long nextLong() {
+        while (pos < length && bytes[pos] != '\n' && (bytes[pos] < '0' || bytes[pos] > '9'))
+            pos++;
+        if (pos >= length || bytes[pos] == '\n')
+            return -1;
+
+        long v = 0;
+        while (pos < length && bytes[pos] >= '0' && bytes[pos] <= '9')
+            v = v * 10 + (bytes[pos++] - '0');
+        return v;
+    }
+
+    // Like nextLong, for numbers with decimals (e.g. "12.34"). NaN if there is none.
+    double nextDecimal() {
+        long integer = nextLong();
+        if (integer < 0)
+            return Double.NaN;
+        if (pos >= length || bytes[pos] != '.')
+            return integer;
+
+        pos++;
+        long fraction = 0, scale = 1;
+        while (pos < length && bytes[pos] >= '0' && bytes[pos] <= '9') {
+            fraction = fraction * 10 + (bytes[pos++] - '0');
+            scale *= 10;
+        }
+        return integer + (double) fraction / scale;
+    }
+
+    // Does the current line (from the cursor, skipping blanks) start with a word instead of a number? Used for files
+    // that may contain "max" instead of a value (cgroup limits).
+    boolean nextIsWord(byte[] word) {
+        return skipToken(word, '\n');
+    }
+
+    // The token at the cursor (skipping blanks), up to terminator, as a String. This allocates: only for setting up
+    String readToken(char terminator) {
+        while (pos < length && (bytes[pos] == ' ' || bytes[pos] == '\t'))
+            pos++;
+        int start = pos;
+        while (pos < length && bytes[pos] != terminator && bytes[pos] != '\n')
+            pos++;
+        return new String(bytes, start, pos - start, StandardCharsets.US_ASCII).trim();
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
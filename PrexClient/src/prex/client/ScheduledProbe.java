@@ -0,0 +1,130 @@
+package prex.client;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.DoubleSupplier;
+
+// A probe that samples its metrics by itself, each one at its own interval. All metrics share a single scheduler
+// thread (a daemon, so it never keeps the application alive), which sleeps until the next metric is due: there are
+// no busy loops and no thread per metric. Samples are recorded through FeatureHandles, so sampling doesn't allocate
+// (unless the metric itself does).
+//
+// The scheduler is a plain thread parking until the next deadline, rather than a ScheduledExecutorService: at 100 Hz
+// the wake-up is most of what a probe costs, and the executor's queue and locks doubled it. Metrics that are due at
+// the same time (e.g. one every 100ms and one every second) are sampled in the same wake-up.
+//
+// Subclasses (see JvmProbe) register their metrics with metric() or every(), and the user calls start() once
+// they're all there.
+//
+//    ScheduledProbe probe = new ScheduledProbe("machine1", "localhost", 1610, 100);
+//    probe.metric("Queue size", 500, () -> queue.size());
+//    probe.start();
+public class ScheduledProbe extends Probe {
+    private final Thread scheduler;
+
+    // By next deadline. The task being run isn't in here. Both guarded by tasks (not by this, which belongs to the
+    // client and may be held while it talks to the coordinator)
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private boolean started = false;
+    private volatile boolean closed = false;
+
+    private static class Task implements Comparable<Task> {
+        final Runnable sampler;
+        final long intervalNanos;
+        long next; // System.nanoTime() deadline
+
+        Task(Runnable sampler, long intervalNanos) {
+            this.sampler = sampler;
+            this.intervalNanos = intervalNanos;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            return Long.compare(next - o.next, 0); // nanoTime may overflow, so compare the difference
+        }
+    }
+
+    public ScheduledProbe(String src, String host, int port, int bufferSize) throws IOException {
+        super(src, host, port, bufferSize);
+        this.scheduler = new Thread(this::schedulerLoop, "prex-probe-" + src);
+        this.scheduler.setDaemon(true);
+    }
+
+    // Sample a metric every intervalMs. The first sample is taken right away (once the probe is started).
+    public void metric(String name, long intervalMs, DoubleSupplier metric) {
+        FeatureHandle feature = feature(name);
+        every(intervalMs, () -> feature.sample((float) metric.getAsDouble()));
+    }
+
+    // Run a sampler every intervalMs. Use this when several metrics come from the same source and should be read
+    // together. A sampler that throws is logged and keeps being called.
+    public void every(long intervalMs, Runnable sampler) {
+        if (intervalMs <= 0)
+            throw new IllegalArgumentException("Interval must be positive: " + intervalMs);
+
+        Task task = new Task(sampler, TimeUnit.MILLISECONDS.toNanos(intervalMs));
+        synchronized (tasks) {
+            task.next = System.nanoTime();
+            tasks.add(task);
+            if (started)
+                LockSupport.unpark(scheduler);
+        }
+    }
+
+    // Nothing is sampled before this is called. Metrics can still be added later on.
+    public void start() {
+        synchronized (tasks) {
+            if (started)
+                return;
+            started = true;
+
+            // Everything starts now, so that metrics whose intervals are multiples of each other stay in step
+            long now = System.nanoTime();
+            for (Task task : tasks)
+                task.next = now;
+        }
+        scheduler.start();
+    }
+
+    private void schedulerLoop() {
+        while (!closed) {
+            Task task;
+            long wait;
+            synchronized (tasks) {
+                task = tasks.peek();
+                wait = task == null ? Long.MAX_VALUE : task.next - System.nanoTime();
+                if (wait <= 0)
+                    tasks.poll();
+            }
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+
+            try {
+                task.sampler.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+
+            // At a fixed rate. If we fell more than a whole interval behind (the machine was suspended, a sampler
+            // took too long), skip what we missed instead of running it all at once.
+            task.next += task.intervalNanos;
+            long now = System.nanoTime();
+            if (now - task.next > task.intervalNanos)
+                task.next = now;
+            synchronized (tasks) {
+                tasks.add(task);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        LockSupport.unpark(scheduler);
+        super.close();
+    }
+}
@@ -0,0 +1,81 @@
+package prex.client;
+
+import prex.common.PreXException;
+import prex.common.PredictionContext;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+// The client's interest in the predictions of one exception in one prediction context. Subscriptions are shared by
+// all the Try blocks of a client that predict the same thing, and they are sticky: the first Try block asks the
+// coordinator to start predicting (which is a round trip, and a few queries on the coordinator's side), and the
+// following ones just attach their stream to the subscription and get its current state, without touching the network.
+//
+// Try blocks hold a reference while they run. A subscription nobody has used for a while is dropped by the client
+// (see PrexClient.reapSubscriptions), and only then is the coordinator told to stop predicting.
+//
+// On the wire, a subscription is a stream of its own, with its own ID. The reader thread hands its prediction states
+// to the subscription, which passes them on to the streams attached to it.
+class Subscription {
+    final int id;
+    final PredictionContext context;
+    final PreXException exception;
+
+    // Completed by the coordinator's reply to the StartListeningToPredictionsMessage
+    final CompletableFuture<Boolean> ready = new CompletableFuture<>();
+
+    // All of these are guarded by this
+    private boolean state = false;
+    private final ArrayList<PredictionStream> streams = new ArrayList<>();
+    private int refs = 0;
+    private long idleSince = System.nanoTime();
+    private boolean closed = false;
+
+    Subscription(int id, PredictionContext context, PreXException exception) {
+        this.id = id;
+        this.context = context;
+        this.exception = exception;
+    }
+
+    // Take a reference. False if the subscription was dropped in the meantime (get a new one)
+    synchronized boolean acquire() {
+        if (closed)
+            return false;
+        refs++;
+        return true;
+    }
+
+    // Start passing prediction states to a stream, beginning with the current one
+    synchronized void attach(PredictionStream stream) {
+        streams.add(stream);
+        stream.setState(exception, state, true);
+    }
+
+    // Stop passing prediction states to a stream and give up its reference
+    synchronized void release(PredictionStream stream) {
+        streams.remove(stream);
+        if (--refs == 0)
+            idleSince = System.nanoTime();
+    }
+
+    // Called by the reader thread (the reply to the subscription, and every change after that)
+    synchronized void setState(boolean state) {
+        this.state = state;
+        for (PredictionStream stream : streams)
+            stream.setState(exception, state, false);
+        ready.complete(state);
+    }
+
+    // Close the subscription if nobody has used it for lingerNanos. True if it was closed (and the coordinator
+    // should be told).
+    synchronized boolean expire(long now, long lingerNanos) {
+        if (closed || refs > 0 || now - idleSince < lingerNanos)
+            return false;
+        closed = true;
+        return true;
+    }
+
+    synchronized int getRefs() {
+        return refs;
+    }
+}
@@ -4,6 +4,9 @@ import prex.common.PredictionInformationObject;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 // See the documentation of PrexClient to understand how this class works. Pretty much like mentioned there, these
@@ -11,6 +14,10 @@ import java.util.function.Consumer;
 // structures. They work, but this could all be shorter and better
 public class Try {
 
+    // Where the prevent handlers of async() blocks run. It's shared by all Try blocks, so an async block costs no
+    // thread of its own while nothing is predicted.
+    private static final ExecutorService preventExecutor = preventExecutor();
+
     // The current prediction context (although it was already stored in the client)
     private String predictionContext;
 
@@ -20,6 +27,9 @@ public class Try {
     // The PrexClient that originated this Try block, with whom we have to communicate
     private PrexClient prexClient;
 
+    // Our stream within the client (only while the try block runs)
+    private volatile PredictionStream stream;
+
     // All <Exception Class, handler> maps (contains the "code" within the prevent block)
     private Map<Class<? extends Exception>, Consumer<PredictionInformationObject>> preventHandlers;
 
@@ -84,14 +94,46 @@ public class Try {
         return getKeyOrParentClass(m,key) != null;
     }
 
+    // Virtual threads if the JVM has them (we're compiled against Java 8, hence the reflection), a cached pool of
+    // daemon threads otherwise
+    private static ExecutorService preventExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newCachedThreadPool((r) -> {
+                Thread t = new Thread(r, "prex-prevent-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
     // The synchronous version of the try-prevent-catch
     public void sync() {
-        // Notify the coordinator that we have entered a prediction context
-        prexClient.startPredictionContext(predictionContext);
+        run(false);
+    }
 
-        // Notify the coordinator that we want to get predictions for all these exceptions
+    // The asynchronous version of the try-prevent-catch. The try block runs in this thread as in sync(), but nobody
+    // has to call check(): as soon as the coordinator tells us that one of the exceptions is predicted, its prevent
+    // handler is started in the shared preventExecutor (so it runs concurrently with the try block).
+    public void async() {
+        run(true);
+    }
+
+    private void run(boolean async) {
+        // Enter the prediction context, in a stream of our own
+        PredictionStream stream = prexClient.openStream(predictionContext);
+        this.stream = stream;
+
+        // Must be in place before startPredicting, since the reply to it may already say that the exception is predicted
+        if (async)
+            stream.listener = (e) -> preventExecutor.execute(() -> prevent(stream, new PredictionInformationObject(e)));
+
+        // Get predictions for all these exceptions. Only the first Try block in a while to predict an exception (in
+        // this context) waits for the coordinator: the client keeps the subscription for the next ones.
         for ( Class<? extends Exception> e : preventHandlers.keySet() )
-            prexClient.startPredicting(e);
+            prexClient.subscribe(stream, e);
 
         // Execute the code within the try block. Note that the developer should have included a call to
         // check() within that block.
@@ -103,7 +145,7 @@ public class Try {
             // the BASE class and not the class that actually triggered the exception
             if ( mapContainsKeyOrParentClass(preventHandlers,e.getClass()) ) {
                 // Log the base class to the coordinator
-                prexClient.exceptionClass(realMapClass(preventHandlers, e.getClass()));
+                prexClient.exceptionClass(stream, realMapClass(preventHandlers, e.getClass()));
             }
 
             // If we also want to catch this exception, then we have a handler for it and should invoke it right now.
@@ -116,47 +158,38 @@ public class Try {
         }
 
         // We are all done with predicting exceptions
-        prexClient.endPredictionContext(predictionContext);
+        this.stream = null;
+        prexClient.closeStream(stream);
     }
 
-    // The asynchronous version of the try-prevent-catch. This is currently a very simple implementation which merely
-    // uses the synchronous version and loops checking for exceptions (remember that check might jump to the prevent
-    // handler). We would be MUCH better off with just idlying while waiting for data, but that's life.
-    public void async() {
-        Thread preventThread = new Thread(() -> {
-            try {
-                Thread.sleep(1000); // Wait a second before we start checking for predictions
-                while (!Thread.interrupted()) {
-                    check();
-                    Thread.sleep(100);
-
-                }
-            } catch (InterruptedException e) {
-                // Exit because we were interrupted!
-            }
-        });
-        preventThread.start();
-        sync();
-        preventThread.interrupt();
+    // Check for any predictions. No lock: threads sharing the try block call this all the time, and only prevent()
+    // (which hardly ever runs) needs one.
+    public void check() {
+        PredictionStream stream = this.stream;
+        if ( stream == null )
+            return; // Not inside the try block
+
+        PredictionInformationObject predictionInformationObject = prexClient.checkPredictions(stream);
+        if ( predictionInformationObject != null )
+            prevent(stream, predictionInformationObject);
     }
 
-    // Check for any predictions.
-    public synchronized void check() {
-        PredictionInformationObject predictionInformationObject = prexClient.checkPredictions();
-
-        // One exception is predicted! Which one? Do we care about it?
-        if ( predictionInformationObject != null ) {
-            String exceptionClass = predictionInformationObject.getException().getExceptionClass();
-
-            // Do we care about it?
-            for (Class<? extends Exception> c : preventHandlers.keySet())
-                if ( exceptionClass.equals(c.getName()) ) {
-                    //FIXME: Do we lose some generality here? Maybe not
-                    // Invoke the handler!
-                    preventHandlers.get(c).accept(predictionInformationObject);
-                    return;
-                }
-        }
+    // One exception is predicted! Which one? Do we care about it? Synchronized, so that prevent handlers never run
+    // concurrently with each other
+    private synchronized void prevent(PredictionStream stream, PredictionInformationObject predictionInformationObject) {
+        if ( this.stream != stream )
+            return; // The try block is already over
+
+        String exceptionClass = predictionInformationObject.getException().getExceptionClass();
+
+        // Do we care about it?
+        for (Class<? extends Exception> c : preventHandlers.keySet())
+            if ( exceptionClass.equals(c.getName()) ) {
+                //FIXME: Do we lose some generality here? Maybe not
+                // Invoke the handler!
+                preventHandlers.get(c).accept(predictionInformationObject);
+                return;
+            }
     }
 
     public void sample(String name, float value) {
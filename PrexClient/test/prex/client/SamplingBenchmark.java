@@ -0,0 +1,77 @@
+package prex.client;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import prex.common.protocol.MessageChannel;
+import prex.common.protocol.MessageChannels;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+// What recording one sample costs the application thread, through a FeatureHandle and by name, sending every sample
+// or only summaries (see PrexClient.summarize). The number to look at is gc.alloc.rate.norm from the GC profiler:
+// handles should stay at (about) 0 bytes per sample. Objects are only made by the flusher and summarizer threads.
+//
+// The client talks to a dummy coordinator that swallows whatever it is sent. Samples are recorded much faster than
+// they can be sent, so most of them end up dropped by the recorder's full ring, which costs the same as keeping them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplingBenchmark {
+    @Param({"samples", "summaries"})
+    String mode;
+
+    private ServerSocket coordinator;
+    private PrexClient client;
+    private FeatureHandle handle;
+    private float value = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        coordinator = new ServerSocket(0);
+        Thread t = new Thread(() -> {
+            try (Socket s = coordinator.accept()) {
+                MessageChannel channel = MessageChannels.accept(s, null);
+                while (true)
+                    channel.read();
+            } catch (IOException | ClassNotFoundException e) {
+                // The client went away
+            }
+        }, "dummy-coordinator");
+        t.setDaemon(true);
+        t.start();
+
+        client = new PrexClient("benchmark", "localhost", coordinator.getLocalPort(), 100, false);
+        if (mode.equals("summaries"))
+            client.summarize(100);
+        handle = client.feature("Handle feature");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        coordinator.close();
+    }
+
+    @Benchmark
+    public void handle() {
+        handle.sample(value++);
+    }
+
+    @Benchmark
+    public void byName() {
+        client.sample("Named feature", value++);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SamplingBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,84 @@
+package prex.client;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import prex.common.protocol.MessageChannel;
+import prex.common.protocol.MessageChannels;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// What check() costs when nothing is predicted, which is what it does nearly all of the time. Applications call it
+// in their hot loops, often from several threads working inside the same Try block, so it is measured with one thread
+// and with four sharing the block.
+//
+// The client talks to a dummy coordinator that just swallows whatever it is sent: check() never goes to the network.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TryCheckBenchmark {
+    private ServerSocket coordinator;
+    private PrexClient client;
+    private Try block;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        coordinator = new ServerSocket(0);
+        Thread t = new Thread(() -> {
+            try (Socket s = coordinator.accept()) {
+                MessageChannel channel = MessageChannels.accept(s, null);
+                while (true)
+                    channel.read();
+            } catch (IOException | ClassNotFoundException e) {
+                // The client went away
+            }
+        }, "dummy-coordinator");
+        t.setDaemon(true);
+        t.start();
+
+        client = new PrexClient("benchmark", "localhost", coordinator.getLocalPort());
+
+        // Keep a Try block running for the whole trial, so that check() has a stream to look at
+        CountDownLatch entered = new CountDownLatch(1);
+        Thread runner = new Thread(() -> client.Try("benchmark", (b) -> {
+            block = b;
+            entered.countDown();
+            done.await();
+        }).sync(), "try-block");
+        runner.setDaemon(true);
+        runner.start();
+        entered.await();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        done.countDown();
+        client.close();
+        coordinator.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void check() {
+        block.check();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void checkShared() {
+        block.check();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TryCheckBenchmark.class.getSimpleName()).build()).run();
+    }
+}